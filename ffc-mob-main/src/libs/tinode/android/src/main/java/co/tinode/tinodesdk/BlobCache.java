@@ -0,0 +1,493 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Persistent size-bounded cache of downloaded files.
+ * <p>
+ * Blobs are stored under the SHA-256 of their content, so the same file downloaded through different
+ * references is stored once. References (download URLs) map to content hashes. Least recently used
+ * blobs are evicted when the total size exceeds the limit, except those handed out within the last
+ * {@link #EVICT_GRACE} ms: their paths may still be in use. A blob is deleted as soon as it has no
+ * references left, unless it was handed out recently too.
+ * <p>
+ * The index is kept in a text file, one blob per line in LRU order: hash, size, references.
+ * Blob files are never modified after they are added, so readers may use them concurrently.
+ * A file evicted while being read remains readable through already open streams.
+ */
+public class BlobCache {
+    private static final String TAG = "BlobCache";
+
+    private static final String INDEX_FILE = "index";
+    private static final String TEMP_PREFIX = "tmp-";
+    private static final String PART_PREFIX = "part-";
+    // Unfinished downloads older than this are deleted.
+    private static final long PART_MAX_AGE = 7 * 24 * 3600 * 1000L;
+    // Blobs returned to a caller less than this long ago are not evicted.
+    static final long EVICT_GRACE = 10 * 60 * 1000L;
+
+    public interface Loader {
+        /**
+         * Write blob content to the stream.
+         */
+        void load(@NotNull OutputStream out) throws Exception;
+    }
+
+    public interface FileLoader {
+        /**
+         * Write blob content to the file. The file may contain a partial result of an earlier
+         * failed call for the same reference. Progress is passed on to every caller waiting for
+         * the blob.
+         */
+        void load(@NotNull File dest, @NotNull Progress progress) throws Exception;
+    }
+
+    public interface Progress {
+        void onProgress(long loaded, long size);
+    }
+
+    private static class Entry {
+        final String hash;
+        final long size;
+        final List<String> refs = new ArrayList<>(1);
+        // When the blob was last returned to a caller, 0 if not since the start.
+        long handedOut = 0;
+
+        Entry(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+
+        boolean inUse(long now) {
+            return now - handedOut < EVICT_GRACE;
+        }
+    }
+
+    // Load shared by concurrent requests for the same reference.
+    private static class Load implements Progress {
+        FutureTask<File> task;
+        // Progress listeners of the waiting callers.
+        final List<Progress> listeners = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onProgress(long loaded, long size) {
+            for (Progress listener : listeners) {
+                listener.onProgress(loaded, size);
+            }
+        }
+    }
+
+    private interface Task {
+        File run(Load load) throws Exception;
+    }
+
+    private final File mDir;
+    private final long mMaxSize;
+
+    // Blobs by content hash in access order, least recently used first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    // Content hash by reference.
+    private final HashMap<String, String> mRefs = new HashMap<>();
+    // Downloads in progress by reference.
+    private final ConcurrentHashMap<String, Load> mInFlight = new ConcurrentHashMap<>();
+
+    private boolean mLoaded = false;
+    private long mSize = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    /**
+     * Create cache in the given directory.
+     *
+     * @param dir     directory to store blobs in; it's created if missing.
+     * @param maxSize maximum total size of blobs in bytes.
+     */
+    public BlobCache(@NotNull File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Find blob by reference.
+     *
+     * @return cached file or null if the reference is not cached.
+     */
+    @Nullable
+    public synchronized File get(@NotNull String ref) {
+        load();
+        String hash = mRefs.get(ref);
+        File file = hash != null ? getByHash(hash) : null;
+        if (file != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return file;
+    }
+
+    /**
+     * Find blob by SHA-256 of its content, lowercase hex.
+     *
+     * @return cached file or null if the content is not cached.
+     */
+    @Nullable
+    public synchronized File getByHash(@NotNull String hash) {
+        load();
+        Entry entry = mEntries.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        File file = new File(mDir, hash);
+        if (!file.exists()) {
+            // Removed externally.
+            remove(entry);
+            save();
+            return null;
+        }
+        entry.handedOut = System.currentTimeMillis();
+        return file;
+    }
+
+    /**
+     * Get blob by reference, loading it if it's not cached. Concurrent requests for the same reference
+     * share a single load.
+     *
+     * @param ref    reference to the blob, e.g. download URL.
+     * @param loader called to write the blob if it's not cached.
+     * @return cached file.
+     */
+    @NotNull
+    public File fetch(@NotNull final String ref, @NotNull final Loader loader) throws Exception {
+        return fetch(ref, load -> store(ref, loader), null);
+    }
+
+    /**
+     * Get blob by reference, loading it into a file if it's not cached. If the load fails, the partially
+     * loaded file is kept and passed to the loader again next time, so the load can be resumed.
+     * <p>
+     * Concurrent requests for the same reference share one load, which reports progress to each of
+     * them. If the caller running the load is canceled, the next waiting caller resumes it with its own
+     * loader.
+     *
+     * @param ref      reference to the blob, e.g. download URL.
+     * @param loader   called to write the blob if it's not cached.
+     * @param progress receives progress of the load, may be null.
+     * @return cached file.
+     */
+    @NotNull
+    public File fetchFile(@NotNull final String ref, @NotNull final FileLoader loader,
+                          @Nullable Progress progress) throws Exception {
+        return fetch(ref, load -> storeFile(ref, loader, load), progress);
+    }
+
+    private File fetch(String ref, Task task, Progress progress) throws Exception {
+        while (true) {
+            File file = get(ref);
+            if (file != null) {
+                return file;
+            }
+
+            final Load load = new Load();
+            load.task = new FutureTask<>(() -> task.run(load));
+            Load running = mInFlight.putIfAbsent(ref, load);
+            boolean owner = running == null;
+            if (owner) {
+                running = load;
+            }
+            if (progress != null) {
+                running.listeners.add(progress);
+            }
+            try {
+                if (owner) {
+                    try {
+                        load.task.run();
+                    } finally {
+                        mInFlight.remove(ref, load);
+                    }
+                }
+                return running.task.get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (!owner && cause instanceof CancellationException) {
+                    // Canceled by the caller which ran it, not by this one: take the load over.
+                    mInFlight.remove(ref, running);
+                    continue;
+                }
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw ex;
+            } finally {
+                if (progress != null) {
+                    running.listeners.remove(progress);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if the blob is being loaded.
+     */
+    public boolean isLoading(@NotNull String ref) {
+        return mInFlight.containsKey(ref);
+    }
+
+    /**
+     * Remove all blobs.
+     */
+    public synchronized void clear() {
+        load();
+        for (Entry entry : new ArrayList<>(mEntries.values())) {
+            remove(entry);
+        }
+        save();
+    }
+
+    public synchronized long getSize() {
+        load();
+        return mSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getCount() {
+        load();
+        return mEntries.size();
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    // Write blob to a temporary file while computing the hash, then move it in place.
+    private File store(String ref, Loader loader) throws Exception {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + mDir);
+        }
+        File temp = File.createTempFile(TEMP_PREFIX, null, mDir);
+        try {
+            MessageDigest digest = newDigest();
+            try (OutputStream out = new DigestOutputStream(new FileOutputStream(temp), digest)) {
+                loader.load(out);
+            }
+            return put(ref, toHex(digest.digest()), temp);
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "Failed to delete " + temp);
+            }
+        }
+    }
+
+    // Load blob into a file named after the reference, then hash it and move it in place.
+    private File storeFile(String ref, FileLoader loader, Progress progress) throws Exception {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + mDir);
+        }
+        MessageDigest digest = newDigest();
+        File part = new File(mDir, PART_PREFIX + toHex(digest.digest(ref.getBytes(StandardCharsets.UTF_8))));
+        loader.load(part, progress);
+        try (InputStream in = new FileInputStream(part)) {
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        }
+        File file = put(ref, toHex(digest.digest()), part);
+        if (part.exists() && !part.delete()) {
+            Log.w(TAG, "Failed to delete " + part);
+        }
+        return file;
+    }
+
+    private synchronized File put(String ref, String hash, File temp) throws IOException {
+        load();
+        File file = new File(mDir, hash);
+        Entry entry = mEntries.get(hash);
+        if (entry == null || !file.exists()) {
+            if (entry != null) {
+                remove(entry);
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to move blob into cache");
+            }
+            entry = new Entry(hash, file.length());
+            mEntries.put(hash, entry);
+            mSize += entry.size;
+        }
+        // Otherwise the same content is already cached: just add the reference.
+
+        long now = System.currentTimeMillis();
+        entry.handedOut = now;
+
+        String old = mRefs.put(ref, hash);
+        if (old != null && !old.equals(hash)) {
+            // The reference now points to new content.
+            Entry prev = mEntries.get(old);
+            if (prev != null) {
+                prev.refs.remove(ref);
+                if (prev.refs.isEmpty() && !prev.inUse(now)) {
+                    remove(prev);
+                }
+            }
+        }
+        if (!entry.refs.contains(ref)) {
+            entry.refs.add(ref);
+        }
+
+        trim(now);
+        save();
+        return file;
+    }
+
+    // Delete blobs without references, then evict least recently used blobs until the cache fits
+    // the limit. Blobs handed out recently are kept.
+    private void trim(long now) {
+        for (Entry entry : new ArrayList<>(mEntries.values())) {
+            if (entry.refs.isEmpty() && !entry.inUse(now)) {
+                remove(entry);
+            }
+        }
+        Iterator<Entry> iter = new ArrayList<>(mEntries.values()).iterator();
+        while (mSize > mMaxSize && iter.hasNext()) {
+            Entry entry = iter.next();
+            if (!entry.inUse(now)) {
+                remove(entry);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        mEntries.remove(entry.hash);
+        mSize -= entry.size;
+        for (String ref : entry.refs) {
+            mRefs.remove(ref);
+        }
+        File file = new File(mDir, entry.hash);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete " + file);
+        }
+    }
+
+    // Read index from disk on first use; delete files which are not in the index.
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        File index = new File(mDir, INDEX_FILE);
+        if (index.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    if (parts.length < 2 || !new File(mDir, parts[0]).exists()) {
+                        continue;
+                    }
+                    Entry entry = new Entry(parts[0], Long.parseLong(parts[1]));
+                    for (int i = 2; i < parts.length; i++) {
+                        entry.refs.add(parts[i]);
+                        mRefs.put(parts[i], entry.hash);
+                    }
+                    mEntries.put(entry.hash, entry);
+                    mSize += entry.size;
+                }
+            } catch (IOException | NumberFormatException ex) {
+                Log.w(TAG, "Failed to read cache index", ex);
+            }
+        }
+
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(PART_PREFIX) &&
+                        System.currentTimeMillis() - file.lastModified() < PART_MAX_AGE) {
+                    // Unfinished download, may be resumed.
+                    continue;
+                }
+                if (!name.equals(INDEX_FILE) && !mEntries.containsKey(name) && !file.delete()) {
+                    Log.w(TAG, "Failed to delete " + file);
+                }
+            }
+        }
+    }
+
+    // Write index to a temporary file then rename it, so the index is never partially written.
+    private void save() {
+        File temp = new File(mDir, INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (Entry entry : mEntries.values()) {
+                writer.write(entry.hash);
+                writer.write('\t');
+                writer.write(Long.toString(entry.size));
+                for (String ref : entry.refs) {
+                    writer.write('\t');
+                    writer.write(ref);
+                }
+                writer.write('\n');
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write cache index", ex);
+            return;
+        }
+        if (!temp.renameTo(new File(mDir, INDEX_FILE))) {
+            Log.w(TAG, "Failed to replace cache index");
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always available.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
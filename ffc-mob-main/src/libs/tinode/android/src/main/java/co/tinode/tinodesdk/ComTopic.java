@@ -143,7 +143,7 @@ public class ComTopic<DP extends TheCard> extends Topic<DP,PrivateType,DP,Privat
     }
 
     @Override
-    protected void routeData(MsgServerData data) {
+    protected void prepareData(MsgServerData data) {
         if (data.head != null && data.content != null) {
             // Rewrite VC body with info from the headers.
             try {
@@ -155,6 +155,5 @@ public class ComTopic<DP extends TheCard> extends Topic<DP,PrivateType,DP,Privat
                 }
             } catch (ClassCastException ignored) {}
         }
-        super.routeData(data);
     }
 }
@@ -0,0 +1,681 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Resumable HTTP downloads.
+ * <p>
+ * Files are downloaded with Range requests. Large files are split into segments which are fetched
+ * in parallel into a preallocated file. Progress of each segment is saved next to the file, so an
+ * interrupted download continues where it stopped, also after an app restart. Dropped connections
+ * are retried with exponential backoff. Segments run on the shared {@link TransferScheduler}.
+ */
+public class DownloadEngine {
+    private static final String TAG = "DownloadEngine";
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_SEGMENTS = 4;
+    // Files smaller than two segments are downloaded in one piece.
+    private static final long MIN_SEGMENT_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_RETRIES = 5;
+    // Save segment state after this many bytes received.
+    private static final long STATE_SAVE_INTERVAL = 512 * 1024;
+    // Number of finished downloads to keep statistics for.
+    private static final int MAX_STATS = 32;
+
+    private static final String STATE_SUFFIX = ".state";
+
+    private static final DownloadEngine sInstance = new DownloadEngine();
+
+    private final TransferScheduler mScheduler = TransferScheduler.getInstance();
+    private final ArrayDeque<Stats> mRecent = new ArrayDeque<>();
+
+    private DownloadEngine() {
+    }
+
+    public static DownloadEngine getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Statistics of the recently finished downloads, most recent first.
+     */
+    public List<Stats> getRecentStats() {
+        synchronized (mRecent) {
+            return new ArrayList<>(mRecent);
+        }
+    }
+
+    /**
+     * Download URL into a file. If the file was partially downloaded before, the download is resumed.
+     * Blocking operation: it should not be called on the UI thread.
+     *
+     * @param url      http(s) URL to download from.
+     * @param headers  optional request headers.
+     * @param dest     file to download into.
+     * @param req      handle to cancel the download.
+     * @param progress optional progress listener.
+     * @return statistics of the download.
+     */
+    public Stats downloadFile(@NotNull URL url, @Nullable Map<String, String> headers, @NotNull File dest,
+                              @NotNull Request req, @Nullable LargeFileHelper.FileHelperProgress progress)
+            throws IOException, CancellationException {
+        Stats stats = new Stats(url.toString());
+        try {
+            File stateFile = new File(dest.getPath() + STATE_SUFFIX);
+            State state = State.read(stateFile);
+            if (state != null && (!dest.exists() || dest.length() != state.size)) {
+                state = null;
+            }
+            if (state == null) {
+                state = probe(url, headers, dest, req, stats, progress);
+                if (state == null) {
+                    // Server does not support ranges: the file was downloaded in one piece.
+                    stats.finish(true);
+                    return stats;
+                }
+            } else {
+                stats.resumedFrom = state.done();
+            }
+
+            try {
+                fetchSegments(url, headers, dest, stateFile, state, req, stats, progress);
+            } catch (ChangedException ex) {
+                // The file has changed on the server since the download started: start over.
+                Log.i(TAG, "Restarting download, file has changed: " + url);
+                state = probe(url, headers, dest, req, stats, progress);
+                if (state != null) {
+                    fetchSegments(url, headers, dest, stateFile, state, req, stats, progress);
+                }
+            }
+
+            if (!stateFile.delete()) {
+                Log.w(TAG, "Failed to delete " + stateFile);
+            }
+            stats.finish(true);
+            return stats;
+        } finally {
+            if (!stats.success) {
+                stats.finish(false);
+            }
+            record(stats);
+        }
+    }
+
+    /**
+     * Download URL into a stream. A dropped connection is resumed from the last received byte
+     * if the server supports ranges. Blocking operation: it should not be called on the UI thread.
+     *
+     * @return statistics of the download.
+     */
+    public Stats downloadStream(@NotNull URL url, @Nullable Map<String, String> headers, @NotNull OutputStream out,
+                                @NotNull Request req, @Nullable LargeFileHelper.FileHelperProgress progress)
+            throws IOException, CancellationException {
+        Stats stats = new Stats(url.toString());
+        stats.segments = 1;
+        try {
+            ExpBackoff backoff = new ExpBackoff();
+            String validator = null;
+            boolean resumable = false;
+            long offset = 0;
+            while (true) {
+                req.check();
+                HttpURLConnection conn = open(url, headers);
+                try {
+                    if (offset > 0) {
+                        conn.setRequestProperty("Range", "bytes=" + offset + "-");
+                        conn.setRequestProperty("If-Range", validator);
+                    }
+                    int code = conn.getResponseCode();
+                    if (offset == 0) {
+                        if (code != HttpURLConnection.HTTP_OK) {
+                            throw new IOException("Failed to download: " + conn.getResponseMessage() +
+                                    " (" + code + ")");
+                        }
+                        stats.size = contentLength(conn);
+                        validator = validator(conn);
+                        resumable = validator != null && "bytes".equals(conn.getHeaderField("Accept-Ranges"));
+                    } else if (code != HttpURLConnection.HTTP_PARTIAL || rangeStart(conn) != offset) {
+                        throw new IOException("Unable to resume download (" + code + ")");
+                    }
+
+                    try (InputStream in = conn.getInputStream()) {
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        int len;
+                        while ((len = in.read(buffer)) != -1) {
+                            req.check();
+                            out.write(buffer, 0, len);
+                            offset += len;
+                            stats.received(len);
+                            mScheduler.transferred(len);
+                            if (progress != null) {
+                                progress.onProgress(offset, stats.size);
+                            }
+                        }
+                    }
+                    if (stats.size >= 0 && offset < stats.size) {
+                        throw new IOException("Connection closed early");
+                    }
+                    stats.finish(true);
+                    return stats;
+                } catch (IOException ex) {
+                    if (!resumable || offset == 0 || backoff.getAttemptCount() >= MAX_RETRIES) {
+                        throw ex;
+                    }
+                    Log.i(TAG, "Download interrupted at " + offset + ", retrying", ex);
+                    stats.retried();
+                    mScheduler.awaitResumed();
+                    if (!backoff.doSleep()) {
+                        throw new CancellationException("Interrupted");
+                    }
+                } finally {
+                    conn.disconnect();
+                }
+            }
+        } finally {
+            if (!stats.success) {
+                stats.finish(false);
+            }
+            record(stats);
+        }
+    }
+
+    // Find out if the server supports ranges and the size of the file. If it does, create the segment
+    // state and preallocate the file. If it does not, download the file in one piece and return null.
+    private State probe(URL url, Map<String, String> headers, File dest, Request req, Stats stats,
+                        LargeFileHelper.FileHelperProgress progress) throws IOException, CancellationException {
+        HttpURLConnection conn = open(url, headers);
+        try {
+            conn.setRequestProperty("Range", "bytes=0-0");
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                long size = rangeTotal(conn);
+                if (size >= 0) {
+                    State state = State.create(validator(conn), size);
+                    try (RandomAccessFile file = new RandomAccessFile(dest, "rw")) {
+                        file.setLength(size);
+                    }
+                    stats.size = size;
+                    return state;
+                }
+            } else if (code == 416) {
+                // Range not satisfiable: the file is empty.
+                stats.size = 0;
+                new FileOutputStream(dest).close();
+                return State.create(null, 0);
+            } else if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Failed to download: " + conn.getResponseMessage() + " (" + code + ")");
+            }
+
+            // Ranges are not supported or the total size is unknown: the body is the entire file.
+            stats.size = contentLength(conn);
+            stats.segments = 1;
+            try (InputStream in = conn.getInputStream(); OutputStream out = new FileOutputStream(dest)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long received = 0;
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    req.check();
+                    out.write(buffer, 0, len);
+                    received += len;
+                    stats.received(len);
+                    mScheduler.transferred(len);
+                    if (progress != null) {
+                        progress.onProgress(received, stats.size);
+                    }
+                }
+            }
+            return null;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    // Fetch all unfinished segments. The calling thread fetches the first segment, others are queued
+    // on the scheduler. Segments which have not started by the time the calling thread is done are
+    // fetched by the calling thread as well, so waiting downloads never hold transfer slots.
+    private void fetchSegments(URL url, Map<String, String> headers, File dest, File stateFile, State state,
+                               Request req, Stats stats, LargeFileHelper.FileHelperProgress progress)
+            throws IOException, CancellationException {
+        stats.size = state.size;
+        stats.segments = state.segments.size();
+        List<Segment> todo = new ArrayList<>();
+        for (Segment seg : state.segments) {
+            if (!seg.isDone()) {
+                todo.add(seg);
+            }
+        }
+        if (todo.isEmpty()) {
+            return;
+        }
+
+        final Progress shared = new Progress(state, stateFile, stats, progress);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch finished = new CountDownLatch(todo.size());
+        List<Runnable> tasks = new ArrayList<>();
+        List<TransferScheduler.Job> queued = new ArrayList<>();
+        for (final Segment seg : todo.subList(1, todo.size())) {
+            Runnable task = () -> {
+                try {
+                    fetchSegment(url, headers, dest, state.validator, seg, req, error, shared);
+                } catch (Exception ex) {
+                    error.compareAndSet(null, ex);
+                } finally {
+                    finished.countDown();
+                }
+            };
+            tasks.add(task);
+            queued.add(mScheduler.submit(url.getHost(), req.priority, task));
+        }
+
+        // First segment on the calling thread.
+        try {
+            fetchSegment(url, headers, dest, state.validator, todo.get(0), req, error, shared);
+        } catch (Exception ex) {
+            error.compareAndSet(null, ex);
+        } finally {
+            finished.countDown();
+        }
+        // Segments which are still queued.
+        for (int i = 0; i < queued.size(); i++) {
+            if (queued.get(i).cancel()) {
+                tasks.get(i).run();
+            }
+        }
+
+        try {
+            finished.await();
+        } catch (InterruptedException ex) {
+            req.cancel();
+            throw new CancellationException("Interrupted");
+        } finally {
+            shared.save();
+        }
+
+        Exception ex = error.get();
+        if (ex instanceof IOException) {
+            throw (IOException) ex;
+        } else if (ex instanceof CancellationException) {
+            throw (CancellationException) ex;
+        } else if (ex != null) {
+            throw new IOException(ex);
+        }
+    }
+
+    private void fetchSegment(URL url, Map<String, String> headers, File dest, String validator, Segment seg,
+                              Request req, AtomicReference<Exception> error, Progress progress)
+            throws IOException, CancellationException {
+        ExpBackoff backoff = new ExpBackoff();
+        try (RandomAccessFile file = new RandomAccessFile(dest, "rw")) {
+            while (!seg.isDone()) {
+                req.check();
+                if (error.get() != null) {
+                    // Another segment has failed.
+                    return;
+                }
+
+                long start = seg.start + seg.done;
+                HttpURLConnection conn = open(url, headers);
+                try {
+                    conn.setRequestProperty("Range", "bytes=" + start + "-" + seg.end);
+                    if (validator != null) {
+                        conn.setRequestProperty("If-Range", validator);
+                    }
+                    int code = conn.getResponseCode();
+                    if (code == HttpURLConnection.HTTP_OK) {
+                        // If-Range did not match.
+                        throw new ChangedException();
+                    }
+                    if (code != HttpURLConnection.HTTP_PARTIAL || rangeStart(conn) != start) {
+                        throw new IOException("Failed to download segment: " + conn.getResponseMessage() +
+                                " (" + code + ")");
+                    }
+
+                    file.seek(start);
+                    try (InputStream in = conn.getInputStream()) {
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        long left = seg.length() - seg.done;
+                        int len;
+                        while (left > 0 && (len = in.read(buffer, 0, (int) Math.min(buffer.length, left))) != -1) {
+                            req.check();
+                            file.write(buffer, 0, len);
+                            left -= len;
+                            progress.received(seg, len);
+                            mScheduler.transferred(len);
+                            backoff.reset();
+                        }
+                    }
+                    if (!seg.isDone()) {
+                        throw new IOException("Connection closed early");
+                    }
+                } catch (ChangedException ex) {
+                    throw ex;
+                } catch (IOException ex) {
+                    if (backoff.getAttemptCount() >= MAX_RETRIES) {
+                        throw ex;
+                    }
+                    Log.i(TAG, "Segment interrupted at " + (seg.start + seg.done) + ", retrying", ex);
+                    progress.retried();
+                    mScheduler.awaitResumed();
+                    if (!backoff.doSleep()) {
+                        throw new CancellationException("Interrupted");
+                    }
+                } finally {
+                    conn.disconnect();
+                }
+            }
+        }
+    }
+
+    private static HttpURLConnection open(URL url, Map<String, String> headers) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        if (headers != null) {
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                conn.setRequestProperty(h.getKey(), h.getValue());
+            }
+        }
+        return conn;
+    }
+
+    // Value for If-Range: strong ETag or Last-Modified.
+    private static String validator(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    // Files over 2GB overflow getContentLength(); getContentLengthLong() needs API 24.
+    private static long contentLength(HttpURLConnection conn) {
+        String length = conn.getHeaderField("Content-Length");
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // Content-Range: bytes 100-199/1000
+    private static long rangeStart(HttpURLConnection conn) {
+        String range = conn.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = range.indexOf('-');
+        try {
+            return dash > 0 ? Long.parseLong(range.substring(6, dash).trim()) : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static long rangeTotal(HttpURLConnection conn) {
+        String range = conn.getHeaderField("Content-Range");
+        int slash = range != null ? range.lastIndexOf('/') : -1;
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(slash + 1).trim());
+        } catch (NumberFormatException ex) {
+            // Size is unknown: "*".
+            return -1;
+        }
+    }
+
+    private void record(Stats stats) {
+        synchronized (mRecent) {
+            mRecent.addFirst(stats);
+            while (mRecent.size() > MAX_STATS) {
+                mRecent.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Handle of a download: priority and cancellation.
+     */
+    public static class Request {
+        final int priority;
+        private volatile boolean mCanceled = false;
+
+        /**
+         * @param priority one of TransferScheduler.PRIORITY_* values.
+         */
+        public Request(int priority) {
+            this.priority = priority;
+        }
+
+        public void cancel() {
+            mCanceled = true;
+        }
+
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        // Called between chunks: fails if the download is cancelled, blocks while transfers are paused.
+        void check() throws CancellationException {
+            if (mCanceled) {
+                throw new CancellationException("Cancelled");
+            }
+            TransferScheduler.getInstance().awaitResumed();
+        }
+    }
+
+    /**
+     * Statistics of a single download.
+     */
+    public static class Stats {
+        public final String url;
+        // Size of the file, -1 if unknown.
+        public volatile long size = -1;
+        // Bytes received by this download.
+        public volatile long received = 0;
+        // Bytes received by earlier interrupted attempts.
+        public volatile long resumedFrom = 0;
+        public volatile int segments = 1;
+        public volatile int retries = 0;
+        public final long startedAt;
+        public volatile long durationMs = 0;
+        public volatile boolean success = false;
+
+        Stats(String url) {
+            this.url = url;
+            startedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Average throughput in bytes per second.
+         */
+        public double getThroughput() {
+            long duration = durationMs > 0 ? durationMs : System.currentTimeMillis() - startedAt;
+            return duration > 0 ? received * 1000.0 / duration : 0;
+        }
+
+        synchronized void received(long bytes) {
+            received += bytes;
+        }
+
+        synchronized void retried() {
+            retries++;
+        }
+
+        void finish(boolean ok) {
+            success = ok;
+            durationMs = System.currentTimeMillis() - startedAt;
+        }
+    }
+
+    // Thrown when the file on the server no longer matches the partially downloaded file.
+    private static class ChangedException extends IOException {
+        ChangedException() {
+            super("File has changed");
+        }
+    }
+
+    // Byte range [start, end] of the file, 'done' bytes of which are downloaded.
+    private static class Segment {
+        final long start;
+        final long end;
+        volatile long done;
+
+        Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        boolean isDone() {
+            return done >= length();
+        }
+    }
+
+    // Segments of a download and the validator of the file they belong to.
+    private static class State {
+        final String validator;
+        final long size;
+        final List<Segment> segments = new ArrayList<>();
+
+        private State(String validator, long size) {
+            this.validator = validator;
+            this.size = size;
+        }
+
+        static State create(String validator, long size) {
+            State state = new State(validator, size);
+            int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, size / MIN_SEGMENT_SIZE));
+            long step = size / count;
+            for (int i = 0; i < count; i++) {
+                long start = i * step;
+                long end = i == count - 1 ? size - 1 : start + step - 1;
+                if (end >= start) {
+                    state.segments.add(new Segment(start, end, 0));
+                }
+            }
+            return state;
+        }
+
+        long done() {
+            long done = 0;
+            for (Segment seg : segments) {
+                done += seg.done;
+            }
+            return done;
+        }
+
+        // Format: first line is "size<TAB>validator", then "start<TAB>end<TAB>done" per segment.
+        static State read(File file) {
+            if (!file.exists()) {
+                return null;
+            }
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String[] head = reader.readLine().split("\t", 2);
+                State state = new State(head.length > 1 && !head[1].isEmpty() ? head[1] : null,
+                        Long.parseLong(head[0]));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    state.segments.add(new Segment(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                            Long.parseLong(parts[2])));
+                }
+                // Without a validator there is no way to tell if the file has changed.
+                return state.validator != null ? state : null;
+            } catch (IOException | RuntimeException ex) {
+                Log.w(TAG, "Invalid download state " + file, ex);
+                return null;
+            }
+        }
+
+        void write(File file) {
+            File temp = new File(file.getPath() + ".tmp");
+            try (BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+                writer.write(size + "\t" + (validator != null ? validator : "") + "\n");
+                for (Segment seg : segments) {
+                    writer.write(seg.start + "\t" + seg.end + "\t" + seg.done + "\n");
+                }
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to save download state", ex);
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Failed to save download state");
+            }
+        }
+    }
+
+    // Progress of all segments of one download.
+    private static class Progress {
+        private final State mState;
+        private final File mStateFile;
+        private final Stats mStats;
+        private final LargeFileHelper.FileHelperProgress mListener;
+        private long mDone;
+        private long mUnsaved = 0;
+
+        Progress(State state, File stateFile, Stats stats, LargeFileHelper.FileHelperProgress listener) {
+            mState = state;
+            mStateFile = stateFile;
+            mStats = stats;
+            mListener = listener;
+            mDone = state.done();
+        }
+
+        synchronized void received(Segment seg, long bytes) {
+            seg.done += bytes;
+            mDone += bytes;
+            mStats.received(bytes);
+            mUnsaved += bytes;
+            if (mUnsaved >= STATE_SAVE_INTERVAL) {
+                save();
+            }
+            if (mListener != null) {
+                mListener.onProgress(mDone, mState.size);
+            }
+        }
+
+        void retried() {
+            mStats.retried();
+        }
+
+        synchronized void save() {
+            mUnsaved = 0;
+            mState.write(mStateFile);
+        }
+    }
+}
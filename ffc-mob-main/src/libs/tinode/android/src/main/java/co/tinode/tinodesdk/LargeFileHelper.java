@@ -10,15 +10,19 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
@@ -31,32 +35,79 @@ public class LargeFileHelper {
     private static final String TWO_HYPHENS = "--";
     private static final String BOUNDARY = "*****" + System.currentTimeMillis() + "*****";
     private static final String LINE_END = "\r\n";
+    // Copy buffers are reused across transfers.
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<>();
 
     private final URL mUrlUpload;
     private final String mHost;
     private final String mApiKey;
     private final String mAuthToken;
     private final String mUserAgent;
+    // Optional cache of downloaded files.
+    private final BlobCache mCache;
 
-    private boolean mCanceled = false;
+    private volatile boolean mCanceled = false;
+    // Current download, if any.
+    private volatile DownloadEngine.Request mDownload = null;
+    private volatile DownloadEngine.Stats mLastStats = null;
+    private int mPriority = TransferScheduler.PRIORITY_NORMAL;
 
     private int mReqId = 1;
 
     public LargeFileHelper(URL urlUpload, String apikey, String authToken, String userAgent) {
+        this(urlUpload, apikey, authToken, userAgent, null);
+    }
+
+    public LargeFileHelper(URL urlUpload, String apikey, String authToken, String userAgent,
+                           @Nullable BlobCache cache) {
         mUrlUpload = urlUpload;
         mHost = mUrlUpload.getHost();
         mApiKey = apikey;
         mAuthToken = authToken;
         mUserAgent = userAgent;
+        mCache = cache;
     }
 
     // Upload file out of band. Blocking operation: it should not be called on the UI thread.
     public ServerMessage upload(@NotNull InputStream in, @NotNull String filename, @NotNull String mimetype, long size,
                                 @Nullable String topic, @Nullable FileHelperProgress progress)
             throws IOException, CancellationException {
+        if (in instanceof FileInputStream && size > 0) {
+            // Regular files are sent from the channel with the exact length known upfront.
+            FileChannel channel = ((FileInputStream) in).getChannel();
+            try {
+                if (channel.size() - channel.position() == size) {
+                    return upload(channel, filename, mimetype, topic, progress);
+                }
+            } catch (IOException ignored) {
+                // Not a regular file, e.g. a pipe.
+            }
+        }
+        return send(filename, mimetype, topic, -1,
+                (out, buffer) -> copyStream(in, out, size, progress, true, buffer));
+    }
+
+    // Upload file from the channel's current position to its end. Use it with files opened from
+    // a ParcelFileDescriptor: new FileInputStream(pfd.getFileDescriptor()).getChannel().
+    // Blocking operation: it should not be called on the UI thread.
+    public ServerMessage upload(@NotNull FileChannel in, @NotNull String filename, @NotNull String mimetype,
+                                @Nullable String topic, @Nullable FileHelperProgress progress)
+            throws IOException, CancellationException {
+        final long size = in.size() - in.position();
+        return send(filename, mimetype, topic, size,
+                (out, buffer) -> copyChannel(in, out, size, progress, buffer));
+    }
+
+    // Send multipart request: the envelope is built before connecting, file bytes are written by the body.
+    // If size is known, the request is sent with a fixed Content-Length instead of chunked encoding.
+    private ServerMessage send(String filename, String mimetype, String topic, long size, Body body)
+            throws IOException, CancellationException {
         mCanceled = false;
+        byte[][] envelope = envelope(filename, mimetype, topic);
         HttpURLConnection conn = null;
         ServerMessage msg;
+        byte[] buffer = acquireBuffer();
         try {
             conn = (HttpURLConnection) mUrlUpload.openConnection();
             conn.setDoOutput(true);
@@ -69,47 +120,17 @@ public class LargeFileHelper {
                 // mAuthToken could be null when uploading avatar on sign up.
                 conn.setRequestProperty("X-Tinode-Auth", "Token " + mAuthToken);
             }
-            conn.setChunkedStreamingMode(0);
-
-            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream()));
-            // Write req ID.
-            out.writeBytes(TWO_HYPHENS + BOUNDARY + LINE_END);
-            out.writeBytes("Content-Disposition: form-data; name=\"id\"" + LINE_END);
-            out.writeBytes(LINE_END);
-            out.writeBytes(++mReqId + LINE_END);
-
-            // Write topic.
-            if (topic != null) {
-                out.writeBytes(TWO_HYPHENS + BOUNDARY + LINE_END);
-                out.writeBytes("Content-Disposition: form-data; name=\"topic\"" + LINE_END);
-                out.writeBytes(LINE_END);
-                out.writeBytes(topic + LINE_END);
-            }
-
-            // File section.
-            out.writeBytes(TWO_HYPHENS + BOUNDARY + LINE_END);
-            // Content-Disposition: form-data; name="file"; filename="1519014549699.pdf"
-            out.writeBytes("Content-Disposition: form-data; name=\"file\"; ");
-            String encFileName = URLEncoder.encode(filename, "UTF-8");
-            if (filename.equals(encFileName)) {
-                // Plain ASCII file name.
-                out.writeBytes("filename=\"" + filename + "\"");
+            if (size >= 0) {
+                conn.setFixedLengthStreamingMode(envelope[0].length + size + envelope[1].length);
             } else {
-                // URL-encoded file name.
-                out.writeBytes("filename*=UTF-8''" + encFileName);
+                conn.setChunkedStreamingMode(0);
             }
-            out.writeBytes(LINE_END);
-            // Content-Type: application/pdf
-            out.writeBytes("Content-Type: " + mimetype + LINE_END);
-            out.writeBytes("Content-Transfer-Encoding: binary" + LINE_END);
-            out.writeBytes(LINE_END);
-
-            // File bytes.
-            copyStream(in, out, size, progress);
-            out.writeBytes(LINE_END);
-
-            // End of form boundary.
-            out.writeBytes(TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + LINE_END);
+
+            // Writes are large enough: no need for another layer of buffering.
+            OutputStream out = conn.getOutputStream();
+            out.write(envelope[0]);
+            body.write(out, buffer);
+            out.write(envelope[1]);
             out.flush();
             out.close();
 
@@ -122,6 +143,7 @@ public class LargeFileHelper {
             msg = readServerResponse(resp);
             resp.close();
         } finally {
+            releaseBuffer(buffer);
             if (conn != null) {
                 conn.disconnect();
             }
@@ -129,12 +151,57 @@ public class LargeFileHelper {
         return msg;
     }
 
-    // Uploads the file using Runnable, returns PromisedReply. Safe to call on UI thread.
+    // Multipart form before and after the file bytes.
+    private byte[][] envelope(String filename, String mimetype, String topic) throws IOException {
+        StringBuilder head = new StringBuilder(512);
+        // Req ID.
+        head.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_END);
+        head.append("Content-Disposition: form-data; name=\"id\"").append(LINE_END);
+        head.append(LINE_END);
+        head.append(++mReqId).append(LINE_END);
+
+        // Topic.
+        if (topic != null) {
+            head.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_END);
+            head.append("Content-Disposition: form-data; name=\"topic\"").append(LINE_END);
+            head.append(LINE_END);
+            head.append(topic).append(LINE_END);
+        }
+
+        // File section.
+        head.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_END);
+        // Content-Disposition: form-data; name="file"; filename="1519014549699.pdf"
+        head.append("Content-Disposition: form-data; name=\"file\"; ");
+        String encFileName = URLEncoder.encode(filename, "UTF-8");
+        if (filename.equals(encFileName)) {
+            // Plain ASCII file name.
+            head.append("filename=\"").append(filename).append("\"");
+        } else {
+            // URL-encoded file name.
+            head.append("filename*=UTF-8''").append(encFileName);
+        }
+        head.append(LINE_END);
+        // Content-Type: application/pdf
+        head.append("Content-Type: ").append(mimetype).append(LINE_END);
+        head.append("Content-Transfer-Encoding: binary").append(LINE_END);
+        head.append(LINE_END);
+
+        // End of form boundary.
+        String tail = LINE_END + TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + LINE_END;
+
+        // Same as DataOutputStream.writeBytes: one byte per char.
+        return new byte[][]{
+                head.toString().getBytes(StandardCharsets.ISO_8859_1),
+                tail.getBytes(StandardCharsets.ISO_8859_1)
+        };
+    }
+
+    // Uploads the file on the transfer scheduler, returns PromisedReply. Safe to call on UI thread.
     public PromisedReply<ServerMessage> uploadAsync(@NotNull InputStream in, @NotNull String filename,
                                                     @NotNull String mimetype, long size,
                                                     @Nullable String topic, @Nullable FileHelperProgress progress) {
         final PromisedReply<ServerMessage> result = new PromisedReply<>();
-        new Thread(() -> {
+        TransferScheduler.getInstance().submit(mHost, mPriority, () -> {
             try {
                 ServerMessage msg = upload(in, filename, mimetype, size, topic, progress);
                 if (mCanceled) {
@@ -147,43 +214,111 @@ public class LargeFileHelper {
                 } catch (Exception ignored) {
                 }
             }
-        }).start();
+        });
+        return result;
+    }
+
+    // Uploads the file from the channel on the transfer scheduler, returns PromisedReply. Safe to call on UI thread.
+    public PromisedReply<ServerMessage> uploadAsync(@NotNull FileChannel in, @NotNull String filename,
+                                                    @NotNull String mimetype,
+                                                    @Nullable String topic, @Nullable FileHelperProgress progress) {
+        final PromisedReply<ServerMessage> result = new PromisedReply<>();
+        TransferScheduler.getInstance().submit(mHost, mPriority, () -> {
+            try {
+                ServerMessage msg = upload(in, filename, mimetype, topic, progress);
+                if (mCanceled) {
+                    throw new CancellationException("Cancelled");
+                }
+                result.resolve(msg);
+            } catch (Exception ex) {
+                try {
+                    result.reject(ex);
+                } catch (Exception ignored) {
+                }
+            }
+        });
         return result;
     }
 
     // Download file from the given URL if the URL's host is the default host. Should not be called on the UI thread.
+    // If the cache is available, the file is served from the cache or added to it.
     public long download(String downloadFrom, OutputStream out, FileHelperProgress progress)
             throws IOException, CancellationException {
+        if (mCache == null) {
+            return downloadUncached(downloadFrom, out, progress);
+        }
+        File file = downloadCached(downloadFrom, progress);
+        if (file == null) {
+            return 0;
+        }
+        byte[] buffer = acquireBuffer();
+        try (InputStream in = new FileInputStream(file)) {
+            return copyStream(in, out, file.length(), null, false, buffer);
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    // Get file from the cache or download it into the cache. Concurrent downloads of the same URL are merged,
+    // an interrupted download is resumed. Returns null if the URL is not http(s) or there is no cache.
+    // Should not be called on the UI thread.
+    @Nullable
+    public File downloadCached(final String downloadFrom, final FileHelperProgress progress)
+            throws IOException, CancellationException {
+        if (mCache == null || !isHttp(new URL(downloadFrom))) {
+            return null;
+        }
+        try {
+            return mCache.fetchFile(downloadFrom,
+                    (dest, shared) -> downloadToFile(downloadFrom, dest, shared::onProgress),
+                    progress != null ? progress::onProgress : null);
+        } catch (IOException | CancellationException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    // Returns cached file for the given URL without downloading it.
+    @Nullable
+    public File getCached(String downloadFrom) {
+        return mCache != null ? mCache.get(downloadFrom) : null;
+    }
+
+    // Download file into the given file. Large files are downloaded in parallel segments. If the file contains
+    // a partial result of an earlier call, the download is resumed. Should not be called on the UI thread.
+    public long downloadToFile(String downloadFrom, File dest, FileHelperProgress progress)
+            throws IOException, CancellationException {
         URL url = new URL(downloadFrom);
-        long size = 0;
-        String scheme = url.getProtocol();
-        if (!scheme.equals("http") && !scheme.equals("https")) {
+        if (!isHttp(url)) {
             // As a security measure refuse to download using non-http(s) protocols.
-            return size;
+            return 0;
         }
-        HttpURLConnection urlConnection = null;
-        try {
-            urlConnection = (HttpURLConnection) url.openConnection();
-            if (url.getHost().equals(mHost)) {
-                // Send authentication only if the host is known.
-                urlConnection.setRequestProperty("X-Tinode-APIKey", mApiKey);
-                urlConnection.setRequestProperty("X-Tinode-Auth", "Token " + mAuthToken);
-            }
-            InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-            return copyStream(in, out, urlConnection.getContentLength(), progress);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+        DownloadEngine.Request req = startDownload();
+        mLastStats = DownloadEngine.getInstance().downloadFile(url, authHeaders(url), dest, req, progress);
+        return dest.length();
+    }
+
+    private long downloadUncached(String downloadFrom, OutputStream out, FileHelperProgress progress)
+            throws IOException, CancellationException {
+        URL url = new URL(downloadFrom);
+        if (!isHttp(url)) {
+            // As a security measure refuse to download using non-http(s) protocols.
+            return 0;
         }
+        DownloadEngine.Request req = startDownload();
+        DownloadEngine.Stats stats = DownloadEngine.getInstance().downloadStream(url, authHeaders(url), out,
+                req, progress);
+        mLastStats = stats;
+        return stats.received;
     }
 
-    // Downloads the file using Runnable, returns PromisedReply. Safe to call on UI thread.
+    // Downloads the file on the transfer scheduler, returns PromisedReply. Safe to call on UI thread.
     public PromisedReply<Long> downloadFuture(final String downloadFrom,
                                                  final OutputStream out,
                                                  final FileHelperProgress progress) {
         final PromisedReply<Long> result = new PromisedReply<>();
-        new Thread(() -> {
+        TransferScheduler.getInstance().submit(hostOf(downloadFrom), mPriority, () -> {
             try {
                 Long size = download(downloadFrom, out, progress);
                 if (mCanceled) {
@@ -196,31 +331,105 @@ public class LargeFileHelper {
                 } catch (Exception ignored) {
                 }
             }
-        }).start();
+        });
+        return result;
+    }
+
+    // Downloads the file into the cache on the transfer scheduler, returns PromisedReply. Safe to call on UI thread.
+    public PromisedReply<File> downloadCachedFuture(final String downloadFrom,
+                                                    final FileHelperProgress progress) {
+        final PromisedReply<File> result = new PromisedReply<>();
+        TransferScheduler.getInstance().submit(hostOf(downloadFrom), mPriority, () -> {
+            try {
+                File file = downloadCached(downloadFrom, progress);
+                if (mCanceled) {
+                    throw new CancellationException("Cancelled");
+                }
+                result.resolve(file);
+            } catch (Exception ex) {
+                try {
+                    result.reject(ex);
+                } catch (Exception ignored) {
+                }
+            }
+        });
         return result;
     }
 
+    // Set priority of the following transfers, one of TransferScheduler.PRIORITY_* values.
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    // Statistics of the last download made by this helper or null.
+    @Nullable
+    public DownloadEngine.Stats getLastDownloadStats() {
+        return mLastStats;
+    }
+
     // Try to cancel an ongoing upload or download.
     public void cancel() {
         mCanceled = true;
+        DownloadEngine.Request req = mDownload;
+        if (req != null) {
+            req.cancel();
+        }
     }
 
     public boolean isCanceled() {
         return mCanceled;
     }
 
-    private int copyStream(@NotNull InputStream in, @NotNull OutputStream out, long size, @Nullable FileHelperProgress p)
+    private DownloadEngine.Request startDownload() throws CancellationException {
+        if (mCanceled) {
+            throw new CancellationException("Cancelled");
+        }
+        DownloadEngine.Request req = new DownloadEngine.Request(mPriority);
+        mDownload = req;
+        return req;
+    }
+
+    // Send authentication only if the host is known.
+    private Map<String, String> authHeaders(URL url) {
+        return url.getHost().equals(mHost) ? headers() : null;
+    }
+
+    @Nullable
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isHttp(URL url) {
+        String scheme = url.getProtocol();
+        return scheme.equals("http") || scheme.equals("https");
+    }
+
+    // Copy stream, network transfers are accounted and paused by the transfer scheduler.
+    private int copyStream(@NotNull InputStream in, @NotNull OutputStream out, long size, @Nullable FileHelperProgress p,
+                           boolean network, byte[] buffer)
             throws IOException, CancellationException {
-        byte[] buffer = new byte[BUFFER_SIZE];
+        TransferScheduler scheduler = TransferScheduler.getInstance();
         int len, sent = 0;
         while ((len = in.read(buffer)) != -1) {
             if (mCanceled) {
                 throw new CancellationException("Cancelled");
             }
 
+            if (network) {
+                scheduler.awaitResumed();
+            }
+
             sent += len;
             out.write(buffer, 0, len);
 
+            if (network) {
+                scheduler.transferred(len);
+            }
+
             if (mCanceled) {
                 throw new CancellationException("Cancelled");
             }
@@ -232,6 +441,54 @@ public class LargeFileHelper {
         return sent;
     }
 
+    // Copy exactly 'size' bytes from the channel to the network.
+    private long copyChannel(@NotNull FileChannel in, @NotNull OutputStream out, long size,
+                             @Nullable FileHelperProgress p, byte[] buffer)
+            throws IOException, CancellationException {
+        TransferScheduler scheduler = TransferScheduler.getInstance();
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long sent = 0;
+        while (sent < size) {
+            if (mCanceled) {
+                throw new CancellationException("Cancelled");
+            }
+            scheduler.awaitResumed();
+
+            bb.clear();
+            bb.limit((int) Math.min(buffer.length, size - sent));
+            int len = in.read(bb);
+            if (len == -1) {
+                throw new IOException("File is shorter than expected");
+            }
+            out.write(buffer, 0, len);
+            sent += len;
+            scheduler.transferred(len);
+
+            if (p != null) {
+                p.onProgress(sent, size);
+            }
+        }
+        return sent;
+    }
+
+    private static byte[] acquireBuffer() {
+        synchronized (sBufferPool) {
+            byte[] buffer = sBufferPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void releaseBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.push(buffer);
+            }
+        }
+    }
+
     private ServerMessage readServerResponse(InputStream in) throws IOException {
         MsgServerCtrl ctrl = null;
         ObjectMapper mapper = Tinode.getJsonMapper();
@@ -254,6 +511,11 @@ public class LargeFileHelper {
         return new ServerMessage(ctrl);
     }
 
+    // Writes file bytes of a multipart upload.
+    private interface Body {
+        void write(OutputStream out, byte[] buffer) throws IOException, CancellationException;
+    }
+
     public interface FileHelperProgress {
         void onProgress(long sent, long size);
     }
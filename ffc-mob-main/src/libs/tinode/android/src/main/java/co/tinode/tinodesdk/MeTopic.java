@@ -579,7 +579,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
     protected void topicLeft(boolean unsub, int code, String reason) {
         super.topicLeft(unsub, code, reason);
 
-        Collection<Topic> topics = mTinode.getTopics();
+        // Topics which are not loaded yet are offline anyway.
+        Collection<Topic> topics = mTinode.getLoadedTopics();
         if (topics != null) {
             for (Topic t : topics) {
                 t.setOnline(false);
@@ -0,0 +1,205 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.ServerMessage;
+
+/**
+ * Staged pipeline for inbound packets. The websocket read thread only enqueues raw frames,
+ * packets are parsed on one worker thread and dispatched on another one.
+ * The dispatch stage drains everything already parsed and groups consecutive {data}
+ * packets for the same topic so they are persisted and announced as one batch.
+ * Packets are dispatched strictly in the order they were received.
+ */
+class PacketDispatcher {
+    private static final String TAG = "PacketDispatcher";
+
+    // Maximum number of packets taken from the parsed queue at once.
+    private static final int MAX_BATCH_SIZE = 128;
+
+    interface Handler {
+        /**
+         * Parse raw frame. Called on the parser thread.
+         *
+         * @return parsed packet or {@code null} if the frame should be dropped.
+         */
+        ServerMessage parse(String message);
+
+        /**
+         * Route a single packet. Called on the dispatcher thread.
+         */
+        void dispatch(ServerMessage pkt) throws Exception;
+
+        /**
+         * Route a run of {data} packets addressed to the same topic. Called on the dispatcher thread.
+         */
+        void dispatchData(List<ServerMessage> batch) throws Exception;
+    }
+
+    // Marks the end of the queues: the threads exit once everything before it is dispatched.
+    private static final Object STOP = new Object();
+
+    private final Handler mHandler;
+    // Raw frames and tasks, in order of arrival; null when the threads are not running.
+    private BlockingQueue<Object> mRaw = null;
+    private Thread mDispatcher = null;
+
+    PacketDispatcher(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Enqueue raw frame received from the server. Safe to call from any thread.
+     */
+    void post(String message) {
+        enqueue(message);
+    }
+
+    /**
+     * Enqueue a task to be executed on the dispatcher thread after all previously posted packets.
+     */
+    void post(Runnable task) {
+        enqueue(task);
+    }
+
+    /**
+     * Stop the worker threads once all packets and tasks posted so far are dispatched, e.g. on disconnect.
+     * The threads are started again by the next post.
+     */
+    synchronized void stop() {
+        if (mRaw != null) {
+            mRaw.add(STOP);
+            mRaw = null;
+        }
+    }
+
+    // Start the threads if needed and add the item to the raw queue.
+    private synchronized void enqueue(Object item) {
+        if (mRaw == null) {
+            final BlockingQueue<Object> raw = new LinkedBlockingQueue<>();
+            // Parsed packets and tasks, in order of arrival.
+            final BlockingQueue<Object> parsed = new LinkedBlockingQueue<>();
+            final Thread previous = mDispatcher;
+
+            Thread parser = new Thread(() -> parseLoop(raw, parsed), "tinode-parser");
+            parser.setDaemon(true);
+            mDispatcher = new Thread(() -> {
+                // Packets of the previous connection are dispatched first.
+                awaitFinished(previous);
+                dispatchLoop(parsed);
+            }, "tinode-dispatcher");
+            mDispatcher.setDaemon(true);
+            parser.start();
+            mDispatcher.start();
+            mRaw = raw;
+        }
+        mRaw.add(item);
+    }
+
+    private static void awaitFinished(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void parseLoop(BlockingQueue<Object> raw, BlockingQueue<Object> parsed) {
+        while (true) {
+            Object item;
+            try {
+                item = raw.take();
+            } catch (InterruptedException ignored) {
+                continue;
+            }
+
+            if (item instanceof String) {
+                try {
+                    ServerMessage pkt = mHandler.parse((String) item);
+                    if (pkt != null) {
+                        parsed.add(pkt);
+                    }
+                } catch (Exception ex) {
+                    Log.w(TAG, "Exception while parsing packet", ex);
+                }
+            } else {
+                parsed.add(item);
+                if (item == STOP) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void dispatchLoop(BlockingQueue<Object> parsed) {
+        final List<Object> batch = new ArrayList<>();
+        final List<ServerMessage> run = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(parsed.take());
+            } catch (InterruptedException ignored) {
+                continue;
+            }
+            parsed.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            for (Object item : batch) {
+                MsgServerData data = item instanceof ServerMessage ? ((ServerMessage) item).data : null;
+                if (data != null && data.topic != null) {
+                    if (!run.isEmpty() && !data.topic.equals(run.get(0).data.topic)) {
+                        // {data} for a different topic starts a new run.
+                        flush(run);
+                    }
+                    run.add((ServerMessage) item);
+                    continue;
+                }
+
+                flush(run);
+                if (item == STOP) {
+                    return;
+                } else if (item instanceof ServerMessage) {
+                    dispatch((ServerMessage) item);
+                } else {
+                    run((Runnable) item);
+                }
+            }
+            flush(run);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<ServerMessage> run) {
+        if (run.isEmpty()) {
+            return;
+        }
+        try {
+            mHandler.dispatchData(run);
+        } catch (Exception ex) {
+            Log.w(TAG, "Exception while dispatching {data}", ex);
+        }
+        run.clear();
+    }
+
+    private void dispatch(ServerMessage pkt) {
+        try {
+            mHandler.dispatch(pkt);
+        } catch (Exception ex) {
+            Log.w(TAG, "Exception while dispatching packet", ex);
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception ex) {
+            Log.w(TAG, "Exception in dispatcher task: ", ex);
+        }
+    }
+}
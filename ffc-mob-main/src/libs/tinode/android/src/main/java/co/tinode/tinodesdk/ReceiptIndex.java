@@ -0,0 +1,175 @@
+package co.tinode.tinodesdk;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Index of 'read' and 'recv' values reported by topic subscribers.
+ * <p>
+ * Values are kept in two sorted arrays, so the number of subscribers who have read
+ * or received a given message is found with a binary search instead of a scan over all subscriptions.
+ * An update moves a single value within the array.
+ */
+class ReceiptIndex {
+    // Per-user values currently in the index: [read, recv].
+    private final HashMap<String, int[]> mUsers = new HashMap<>();
+    // All 'read' values, sorted ascending.
+    private int[] mRead = new int[8];
+    // All 'recv' values, sorted ascending.
+    private int[] mRecv = new int[8];
+    private int mSize = 0;
+
+    /**
+     * Add or update subscriber's values.
+     */
+    synchronized void put(String user, int read, int recv) {
+        if (user == null) {
+            return;
+        }
+
+        int[] old = mUsers.get(user);
+        if (old != null) {
+            if (old[0] == read && old[1] == recv) {
+                return;
+            }
+            replace(mRead, old[0], read);
+            replace(mRecv, old[1], recv);
+            old[0] = read;
+            old[1] = recv;
+            return;
+        }
+
+        if (mSize == mRead.length) {
+            mRead = Arrays.copyOf(mRead, mSize * 2);
+            mRecv = Arrays.copyOf(mRecv, mSize * 2);
+        }
+        insert(mRead, mSize, read);
+        insert(mRecv, mSize, recv);
+        mSize++;
+        mUsers.put(user, new int[]{read, recv});
+    }
+
+    /**
+     * Remove subscriber from the index.
+     */
+    synchronized void remove(String user) {
+        int[] old = user != null ? mUsers.remove(user) : null;
+        if (old == null) {
+            return;
+        }
+        delete(mRead, mSize, old[0]);
+        delete(mRecv, mSize, old[1]);
+        mSize--;
+    }
+
+    synchronized void clear() {
+        mUsers.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Count subscribers other than {@code except} who have read message {@code seq}.
+     */
+    synchronized int readCount(int seq, String except) {
+        return count(mRead, seq, except, 0);
+    }
+
+    /**
+     * Count subscribers other than {@code except} who have received message {@code seq}.
+     */
+    synchronized int recvCount(int seq, String except) {
+        return count(mRecv, seq, except, 1);
+    }
+
+    /**
+     * Read counts for every message in the range [fromSeq, toSeq], inclusive.
+     * Element i of the result is the count for fromSeq + i.
+     */
+    synchronized int[] readCounts(int fromSeq, int toSeq, String except) {
+        return counts(mRead, fromSeq, toSeq, except, 0);
+    }
+
+    /**
+     * Recv counts for every message in the range [fromSeq, toSeq], inclusive.
+     * Element i of the result is the count for fromSeq + i.
+     */
+    synchronized int[] recvCounts(int fromSeq, int toSeq, String except) {
+        return counts(mRecv, fromSeq, toSeq, except, 1);
+    }
+
+    private int count(int[] values, int seq, String except, int what) {
+        if (seq <= 0) {
+            return 0;
+        }
+        int count = mSize - lowerBound(values, mSize, seq);
+        int[] own = except != null ? mUsers.get(except) : null;
+        if (own != null && own[what] >= seq) {
+            count--;
+        }
+        return count;
+    }
+
+    private int[] counts(int[] values, int fromSeq, int toSeq, String except, int what) {
+        if (toSeq < fromSeq) {
+            return new int[0];
+        }
+        int[] result = new int[toSeq - fromSeq + 1];
+        int[] own = except != null ? mUsers.get(except) : null;
+        // Values are sorted: walk both the range and the array once.
+        int idx = lowerBound(values, mSize, Math.max(fromSeq, 1));
+        for (int i = 0; i < result.length; i++) {
+            int seq = fromSeq + i;
+            if (seq <= 0) {
+                continue;
+            }
+            while (idx < mSize && values[idx] < seq) {
+                idx++;
+            }
+            result[i] = mSize - idx - (own != null && own[what] >= seq ? 1 : 0);
+        }
+        return result;
+    }
+
+    // Index of the first element which is >= value.
+    private static int lowerBound(int[] values, int size, int value) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static void insert(int[] values, int size, int value) {
+        int pos = lowerBound(values, size, value);
+        System.arraycopy(values, pos, values, pos + 1, size - pos);
+        values[pos] = value;
+    }
+
+    private static void delete(int[] values, int size, int value) {
+        int pos = lowerBound(values, size, value);
+        System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+    }
+
+    // Replace one occurrence of oldValue with newValue, shifting only the elements in between.
+    private void replace(int[] values, int oldValue, int newValue) {
+        if (oldValue == newValue) {
+            return;
+        }
+        int pos = lowerBound(values, mSize, oldValue);
+        if (newValue > oldValue) {
+            // Move towards the end: find the last position where newValue fits.
+            int end = lowerBound(values, mSize, newValue) - 1;
+            System.arraycopy(values, pos + 1, values, pos, end - pos);
+            values[end] = newValue;
+        } else {
+            int start = lowerBound(values, mSize, newValue);
+            System.arraycopy(values, start, values, start + 1, pos - start);
+            values[start] = newValue;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.Closeable;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import co.tinode.tinodesdk.model.Drafty;
@@ -38,6 +39,8 @@ public interface Storage {
 
     // Fetch all topics
     Topic[] topicGetAll(Tinode tinode);
+    // Fetch lightweight headers of all topics or null if not supported: topics will be loaded with topicGetAll
+    TopicHeader[] topicGetHeaders();
     // Fetch one topic by name
     Topic topicGet(Tinode tinode, String name);
     // Add new topic
@@ -80,6 +83,13 @@ public interface Storage {
      */
     Message msgReceived(Topic topic, Subscription sub, MsgServerData msg);
 
+    /**
+     * Consecutive messages for the same topic received from the server. Saved in one transaction.
+     *
+     * @return stored messages, in the same order as received; messages which failed to save are skipped.
+     */
+    List<Message> msgReceivedBatch(Topic topic, List<MsgServerData> msgs);
+
     /**
      * Save message to DB as "sending".
      *
@@ -231,6 +241,11 @@ public interface Storage {
      */
     <T extends Iterator<Message> & Closeable> T getLatestMessagePreviews();
 
+    /**
+     * Get the latest message in the given topic or null if the topic has no messages.
+     */
+    Message getLatestMessagePreview(Topic topic);
+
     /** Get a list of unsent messages. Close the result after use. */
     <T extends Iterator<Message> & Closeable> T getQueuedMessages(Topic topic);
 
@@ -246,6 +261,19 @@ public interface Storage {
      */
     <T extends Message> T getMessageBySeq(Topic topic, int seq);
 
+    /**
+     * Find messages which contain all the given words. Only the latest versions of edited messages are found.
+     *
+     * @param query words to find, the last word is matched as a prefix.
+     * @param topic topic to search in or null to search all topics.
+     * @param from UID of the sender or null for any sender.
+     * @param since find messages sent at or after this time, null for no limit.
+     * @param before find messages sent before this time, null for no limit.
+     * @param limit maximum number of messages to return.
+     * @return database IDs of the found messages, best matches first.
+     */
+    long[] msgSearch(String query, Topic topic, String from, Date since, Date before, int limit);
+
     interface Message {
         String getTopic();
 
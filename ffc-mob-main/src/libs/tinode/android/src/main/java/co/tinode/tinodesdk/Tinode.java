@@ -6,16 +6,18 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonStreamContext;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserSequence;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.deser.DeserializationProblemHandler;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -168,7 +170,12 @@ public class Tinode {
     private final ListenerNotifier mNotifier;
     private final ConcurrentMap<String, FutureHolder> mFutures;
     private final ConcurrentHashMap<String, Pair<Topic, Storage.Message>> mTopics;
+    // Topics known to the local store but not loaded into memory yet.
+    private final ConcurrentHashMap<String, TopicHeader> mTopicHeaders;
+    private final Object mHydrateLock = new Object();
     private final ConcurrentHashMap<String, User> mUsers;
+    // Off-socket-thread parsing and dispatching of inbound packets.
+    private final PacketDispatcher mDispatcher;
 
     private JavaType mDefaultTypeOfMetaPacket = null;
     private URI mServerURI = null;
@@ -177,6 +184,8 @@ public class Tinode {
     private String mDeviceToken = null;
     private String mLanguage = null;
     private String mOsVersion;
+    // Cache of downloaded files shared by all LargeFileHelper instances, optional.
+    private BlobCache mBlobCache = null;
     // Counter for the active background connections.
     private int mBkgConnCounter = 0;
     // Indicator of active foreground connection.
@@ -246,7 +255,24 @@ public class Tinode {
             }
         }, EXPIRE_FUTURES_TIMEOUT, EXPIRE_FUTURES_PERIOD);
         mTopics = new ConcurrentHashMap<>();
+        mTopicHeaders = new ConcurrentHashMap<>();
         mUsers = new ConcurrentHashMap<>();
+        mDispatcher = new PacketDispatcher(new PacketDispatcher.Handler() {
+            @Override
+            public ServerMessage parse(String message) {
+                return parsePacket(message);
+            }
+
+            @Override
+            public void dispatch(ServerMessage pkt) throws Exception {
+                dispatchServerMessage(pkt);
+            }
+
+            @Override
+            public void dispatchData(List<ServerMessage> batch) throws Exception {
+                dispatchDataBatch(batch);
+            }
+        });
 
         mStore = store;
         if (mStore != null) {
@@ -414,36 +440,65 @@ public class Tinode {
         mOsVersion = os;
     }
 
+    /**
+     * Set cache for downloaded files, used by {@link LargeFileHelper}.
+     */
+    public void setBlobCache(BlobCache cache) {
+        mBlobCache = cache;
+    }
+
+    public BlobCache getBlobCache() {
+        return mBlobCache;
+    }
+
+    /**
+     * Load topics from the local store. If the store supports topic headers, only the headers are loaded
+     * and topics are hydrated on first access, see {@link #getTopic(String)} and {@link #hydrateTopics(int)}.
+     */
     private <ML extends Iterator<Storage.Message> & Closeable> void loadTopics() {
-        if (mStore != null && mStore.isReady() && !mTopicsLoaded) {
-            Topic[] topics = mStore.topicGetAll(this);
-            if (topics != null) {
-                for (Topic tt : topics) {
-                    tt.setStorage(mStore);
-                    mTopics.put(tt.getName(), new Pair<>(tt, null));
-                    setTopicsUpdated(tt.getUpdated());
+        if (mStore == null || !mStore.isReady() || mTopicsLoaded) {
+            return;
+        }
+
+        TopicHeader[] headers = mStore.topicGetHeaders();
+        if (headers != null) {
+            for (TopicHeader h : headers) {
+                if (!mTopics.containsKey(h.name)) {
+                    mTopicHeaders.put(h.name, h);
                 }
+                setTopicsUpdated(h.updated);
             }
-            // Load last message for each topic.
-            ML latest = mStore.getLatestMessagePreviews();
-            if (latest != null) {
-                while (latest.hasNext()) {
-                    Storage.Message msg = latest.next();
-                    String topic = msg.getTopic();
-                    if (topic != null) {
-                        Pair<Topic, Storage.Message> pair = mTopics.get(topic);
-                        if (pair != null) {
-                            pair.second = msg;
-                        }
+            mTopicsLoaded = true;
+            return;
+        }
+
+        Topic[] topics = mStore.topicGetAll(this);
+        if (topics != null) {
+            for (Topic tt : topics) {
+                tt.setStorage(mStore);
+                mTopics.put(tt.getName(), new Pair<>(tt, null));
+                setTopicsUpdated(tt.getUpdated());
+            }
+        }
+        // Load last message for each topic.
+        ML latest = mStore.getLatestMessagePreviews();
+        if (latest != null) {
+            while (latest.hasNext()) {
+                Storage.Message msg = latest.next();
+                String topic = msg.getTopic();
+                if (topic != null) {
+                    Pair<Topic, Storage.Message> pair = mTopics.get(topic);
+                    if (pair != null) {
+                        pair.second = msg;
                     }
                 }
-
-                try {
-                    latest.close();
-                } catch (IOException ignored) {}
             }
-            mTopicsLoaded = true;
+
+            try {
+                latest.close();
+            } catch (IOException ignored) {}
         }
+        mTopicsLoaded = true;
     }
 
     /**
@@ -675,17 +730,14 @@ public class Tinode {
     }
 
     /**
-     * Finds topic for the packet and calls topic's appropriate routeXXX method.
-     * This method can be safely called from the UI thread after overriding
-     * {@link Connection.WsListener#onMessage(String)}
-     * *
+     * Parse raw packet received from the server.
      *
-     * @param message message to be parsed dispatched
+     * @param message message to be parsed
+     * @return parsed packet or {@code null} if the packet is empty, a network probe or malformed.
      */
-    @SuppressWarnings("unchecked")
-    private void dispatchPacket(String message) throws Exception {
+    private ServerMessage parsePacket(String message) {
         if (message == null || message.equals(""))
-            return;
+            return null;
 
         Log.d(TAG, "in: " + message);
 
@@ -693,15 +745,52 @@ public class Tinode {
 
         if (message.length() == 1 && message.charAt(0) == '0') {
             // This is a network probe. No further processing is necessary.
-            return;
+            return null;
         }
 
         ServerMessage pkt = parseServerMessageFromJson(message);
         if (pkt == null) {
             Log.w(TAG, "Failed to parse packet");
+        }
+        return pkt;
+    }
+
+    /**
+     * Route a run of consecutive {data} packets for the same topic.
+     *
+     * @param batch packets to dispatch, all with the same non-null {@code data.topic}.
+     */
+    private void dispatchDataBatch(List<ServerMessage> batch) throws Exception {
+        if (batch.size() == 1) {
+            dispatchServerMessage(batch.get(0));
             return;
         }
 
+        List<MsgServerData> data = new ArrayList<>(batch.size());
+        for (ServerMessage pkt : batch) {
+            mNotifier.onMessage(pkt);
+            data.add(pkt.data);
+        }
+
+        Topic topic = getTopic(data.get(0).topic);
+        if (topic != null) {
+            topic.routeDataBatch(data);
+        } else {
+            Log.i(TAG, "Topic is null " + data.get(0).topic);
+        }
+
+        for (MsgServerData d : data) {
+            mNotifier.onDataMessage(d);
+        }
+    }
+
+    /**
+     * Finds topic for the parsed packet and calls topic's appropriate routeXXX method.
+     *
+     * @param pkt packet to dispatch
+     */
+    @SuppressWarnings("unchecked")
+    private void dispatchServerMessage(ServerMessage pkt) throws Exception {
         mNotifier.onMessage(pkt);
 
         if (pkt.ctrl != null) {
@@ -1160,7 +1249,7 @@ public class Tinode {
             url = new URL(getBaseUrl(), "." + UPLOAD_PATH);
         } catch (MalformedURLException ignored) {
         }
-        return new LargeFileHelper(url, getApiKey(), getAuthToken(), makeUserAgent());
+        return new LargeFileHelper(url, getApiKey(), getAuthToken(), makeUserAgent(), mBlobCache);
     }
 
     /**
@@ -2001,6 +2090,15 @@ public class Tinode {
      */
     @SuppressWarnings("unchecked")
     public Collection<Topic> getTopics() {
+        hydrateAllTopics();
+        return getLoadedTopics();
+    }
+
+    /**
+     * Return a list of topics already loaded into memory, sorted by Topic.touched in descending order.
+     * Unlike {@link #getTopics()} it does not load topics from the local store.
+     */
+    Collection<Topic> getLoadedTopics() {
         List<Topic> result = new ArrayList<>(mTopics.size());
         for (Pair<Topic, Storage.Message> p : mTopics.values()) {
             result.add(p.first);
@@ -2040,6 +2138,7 @@ public class Tinode {
         if (filter == null) {
             return (Collection<T>) getTopics();
         }
+        hydrateAllTopics();
         ArrayList<T> result = new ArrayList<>();
         for (Pair<Topic, Storage.Message> p : mTopics.values()) {
             if (filter.isIncluded(p.first)) {
@@ -2060,10 +2159,104 @@ public class Tinode {
         if (name == null) {
             return null;
         }
+        if (mTopicHeaders.containsKey(name)) {
+            return hydrateTopic(name);
+        }
         Pair<Topic, ?> p = mTopics.get(name);
         return p != null? p.first : null;
     }
 
+    /**
+     * Get topic by name if it is already loaded into memory. Unlike {@link #getTopic(String)}
+     * it does not load the topic from the local store.
+     *
+     * @param name name of the topic to find.
+     * @return loaded topic or null.
+     */
+    public Topic getLoadedTopic(@Nullable String name) {
+        if (name == null) {
+            return null;
+        }
+        Pair<Topic, ?> p = mTopics.get(name);
+        return p != null ? p.first : null;
+    }
+
+    /**
+     * Get headers of all known topics, loaded or not, sorted by touched in descending order.
+     * Headers are cheap: use them to show the topic list before topics are hydrated.
+     *
+     * @return list of topic headers.
+     */
+    public List<TopicHeader> getTopicHeaders() {
+        List<TopicHeader> result = new ArrayList<>(mTopics.size() + mTopicHeaders.size());
+        for (Pair<Topic, Storage.Message> p : mTopics.values()) {
+            result.add(new TopicHeader(p.first));
+        }
+        for (TopicHeader h : mTopicHeaders.values()) {
+            if (!mTopics.containsKey(h.name)) {
+                result.add(h);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Load the next page of topics from the local store, most recently touched first.
+     *
+     * @param count maximum number of topics to load.
+     * @return number of topics loaded; 0 when all topics are already in memory.
+     */
+    public int hydrateTopics(int count) {
+        List<TopicHeader> pending = new ArrayList<>(mTopicHeaders.values());
+        Collections.sort(pending);
+        int loaded = 0;
+        for (TopicHeader h : pending) {
+            if (loaded >= count) {
+                break;
+            }
+            if (hydrateTopic(h.name) != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Load all remaining topics from the local store.
+     */
+    public void hydrateAllTopics() {
+        if (!mTopicHeaders.isEmpty()) {
+            hydrateTopics(Integer.MAX_VALUE);
+        }
+    }
+
+    // Deserialize topic and its latest message from the store and start tracking it.
+    // The header is removed only when the topic is fully loaded: concurrent callers wait here.
+    private Topic hydrateTopic(String name) {
+        synchronized (mHydrateLock) {
+            Pair<Topic, ?> p = mTopics.get(name);
+            if (!mTopicHeaders.containsKey(name)) {
+                // Loaded by another thread.
+                return p != null ? p.first : null;
+            }
+
+            Topic topic = null;
+            if (p != null) {
+                // Topic was created before its header was loaded.
+                topic = p.first;
+            } else if (mStore != null) {
+                topic = mStore.topicGet(this, name);
+                if (topic != null) {
+                    topic.setStorage(mStore);
+                    mTopics.put(name, new Pair<>(topic, mStore.getLatestMessagePreview(topic)));
+                }
+            }
+            mTopicHeaders.remove(name);
+            return topic;
+        }
+    }
+
     /**
      * Start tracking topic: add it to in-memory cache.
      */
@@ -2081,6 +2274,7 @@ public class Tinode {
      */
     void stopTrackingTopic(@NotNull String topicName) {
         mTopics.remove(topicName);
+        mTopicHeaders.remove(topicName);
     }
 
     /**
@@ -2093,6 +2287,9 @@ public class Tinode {
             return null;
         }
         Pair<?, Storage.Message> p = mTopics.get(topicName);
+        if (mTopicHeaders.containsKey(topicName) && getTopic(topicName) != null) {
+            p = mTopics.get(topicName);
+        }
         return p != null? p.second : null;
     }
 
@@ -2119,6 +2316,7 @@ public class Tinode {
      */
     @SuppressWarnings("UnusedReturnValue")
     synchronized boolean changeTopicName(@NotNull Topic topic, @NotNull String oldName) {
+        mTopicHeaders.remove(oldName);
         boolean found = mTopics.remove(oldName) != null;
         mTopics.put(topic.getName(), new Pair<>(topic, null));
         if (mStore != null) {
@@ -2190,6 +2388,44 @@ public class Tinode {
         }
     }
 
+    /**
+     * Parse {meta} packet without building a tree. The type of the packet depends on the topic name,
+     * so the tokens preceding the "topic" field are buffered, then replayed in front of the live parser.
+     * The server normally sends "topic" right after "id", so only a couple of tokens are buffered.
+     *
+     * @param mapper mapper to use for deserialization.
+     * @param parser parser positioned at the start of the {meta} object.
+     * @return parsed {meta} or {@code null} if topic name is missing.
+     */
+    private MsgServerMeta parseMetaPacket(ObjectMapper mapper, JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "{meta} must be an object", parser.getCurrentLocation());
+        }
+
+        TokenBuffer prefix = new TokenBuffer(parser);
+        prefix.writeStartObject();
+        String topicName = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            prefix.writeFieldName(field);
+            prefix.copyCurrentStructure(parser);
+            if ("topic".equals(field)) {
+                topicName = parser.getValueAsString();
+                break;
+            }
+        }
+
+        if (topicName == null) {
+            Log.w(TAG, "Failed to parse {meta}: missing topic name");
+            return null;
+        }
+
+        JsonParser meta = JsonParserSequence.createFlattened(false, prefix.asParser(parser), parser);
+        meta.nextToken();
+        return mapper.readValue(meta, getTypeOfMetaPacket(topicName));
+    }
+
     /**
      * Parse JSON received from the server into {@link ServerMessage}
      *
@@ -2208,39 +2444,44 @@ public class Tinode {
                 throw new JsonParseException(parser, "Packet must start with an object",
                         parser.getCurrentLocation());
             }
-            // Iterate over object fields:
+            JsonStreamContext packetCtx = parser.getParsingContext();
+            // Iterate over object fields. Each value is bound directly from the stream, no intermediate tree.
             while (parser.nextToken() != JsonToken.END_OBJECT) {
                 String name = parser.getCurrentName();
                 parser.nextToken();
-                JsonNode node = mapper.readTree(parser);
                 try {
                     switch (name) {
                         case "ctrl":
-                            msg.ctrl = mapper.readValue(node.traverse(), MsgServerCtrl.class);
+                            msg.ctrl = mapper.readValue(parser, MsgServerCtrl.class);
                             break;
                         case "pres":
-                            msg.pres = mapper.readValue(node.traverse(), MsgServerPres.class);
+                            msg.pres = mapper.readValue(parser, MsgServerPres.class);
                             break;
                         case "info":
-                            msg.info = mapper.readValue(node.traverse(), MsgServerInfo.class);
+                            msg.info = mapper.readValue(parser, MsgServerInfo.class);
                             break;
                         case "data":
-                            msg.data = mapper.readValue(node.traverse(), MsgServerData.class);
+                            msg.data = mapper.readValue(parser, MsgServerData.class);
                             break;
                         case "meta":
-                            if (node.has("topic")) {
-                                msg.meta = mapper.readValue(node.traverse(),
-                                        getTypeOfMetaPacket(node.get("topic").asText()));
-                            } else {
-                                Log.w(TAG, "Failed to parse {meta}: missing topic name");
-                            }
+                            msg.meta = parseMetaPacket(mapper, parser);
                             break;
                         default:  // Unrecognized field, ignore
                             Log.w(TAG, "Unknown field in packet: '" + name + "'");
+                            parser.skipChildren();
                             break;
                     }
+                } catch (JsonParseException e) {
+                    // Malformed JSON: the rest of the packet cannot be trusted.
+                    throw e;
                 } catch (Exception e) {
                     Log.w(TAG, "Failed to deserialize network message", e);
+                    // Skip the remainder of the failed value and resume with the next field.
+                    while (parser.getParsingContext() != packetCtx) {
+                        if (parser.nextToken() == null) {
+                            break;
+                        }
+                    }
                 }
             }
             parser.close(); // important to close both parser and underlying reader
@@ -2376,9 +2617,7 @@ public class Tinode {
         }
 
         /**
-         * Handle unparsed message. Default handler calls {@code #dispatchPacket(...)} on a
-         * websocket thread.
-         * A subclassed listener may wish to call {@code dispatchPacket()} on a UI thread
+         * Handle unparsed message. Called on the packet parser thread before the message is parsed.
          *
          * @param msg message to be processed
          */
@@ -2632,22 +2871,24 @@ public class Tinode {
 
         @Override
         public void onMessage(Connection conn, String message) {
-            try {
-                dispatchPacket(message);
-            } catch (Exception ex) {
-                Log.w(TAG, "Exception in dispatchPacket: ", ex);
-            }
+            // Parsing and dispatching happen on worker threads, do not block the socket reader.
+            mDispatcher.post(message);
         }
 
         @Override
         public void onDisconnect(Connection conn, boolean byServer, int code, String reason) {
-            handleDisconnect(byServer, -code, reason);
-            // Promises may have already been rejected if onError was called first.
-            try {
-                rejectPromises(new ServerResponseException(503, "disconnected"));
-            } catch (Exception ignored) {
-                // Don't throw an exception as no one can catch it.
-            }
+            // Process packets received before the disconnect first.
+            mDispatcher.post(() -> {
+                handleDisconnect(byServer, -code, reason);
+                // Promises may have already been rejected if onError was called first.
+                try {
+                    rejectPromises(new ServerResponseException(503, "disconnected"));
+                } catch (Exception ignored) {
+                    // Don't throw an exception as no one can catch it.
+                }
+            });
+            // Worker threads exit after the disconnect is handled and start again on the next packet.
+            mDispatcher.stop();
         }
 
         @Override
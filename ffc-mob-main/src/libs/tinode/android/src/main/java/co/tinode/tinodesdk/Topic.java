@@ -56,6 +56,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     protected Description<DP, DR> mDesc;
     // Cache of topic subscribers indexed by userID
     protected HashMap<String, Subscription<SP, SR>> mSubs = null;
+    // Read/recv values of cached subscriptions.
+    protected final ReceiptIndex mReceipts = new ReceiptIndex();
     // Timestamp of the last update to subscriptions. Default: Oct 25, 2014 05:06:02 UTC, incidentally equal
     // to the first few digits of sqrt(2)
     protected Date mSubsUpdated = null;
@@ -1762,6 +1764,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
 
         mSubs.put(sub.user, sub);
+        mReceipts.put(sub.user, sub.read, sub.recv);
     }
 
     /**
@@ -1773,6 +1776,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         if (mSubs != null) {
             mSubs.remove(sub.user);
         }
+        mReceipts.remove(sub.user);
     }
 
     public Subscription<SP, SR> getSubscription(String key) {
@@ -1806,19 +1810,10 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @return count of recepients who claim to have received the message
      */
     public int msgRecvCount(int seq) {
-        int count = 0;
-        if (seq > 0) {
-            String me = mTinode.getMyId();
-            Collection<Subscription<SP, SR>> subs = getSubscriptions();
-            if (subs != null) {
-                for (Subscription sub : subs) {
-                    if (!sub.user.equals(me) && sub.recv >= seq) {
-                        count++;
-                    }
-                }
-            }
+        if (seq <= 0 || getSubscriptions() == null) {
+            return 0;
         }
-        return count;
+        return mReceipts.recvCount(seq, mTinode.getMyId());
     }
 
     /**
@@ -1828,19 +1823,34 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @return count of recipients who claim to have read the message.
      */
     public int msgReadCount(int seq) {
-        int count = 0;
-        if (seq > 0) {
-            String me = mTinode.getMyId();
-            Collection<Subscription<SP, SR>> subs = getSubscriptions();
-            if (subs != null) {
-                for (Subscription sub : subs) {
-                    if (!sub.user.equals(me) && sub.read >= seq) {
-                        count++;
-                    }
-                }
-            }
+        if (seq <= 0 || getSubscriptions() == null) {
+            return 0;
         }
-        return count;
+        return mReceipts.readCount(seq, mTinode.getMyId());
+    }
+
+    /**
+     * Receive counts for a range of messages.
+     *
+     * @param fromSeq first sequence id of the range, inclusive.
+     * @param toSeq last sequence id of the range, inclusive.
+     * @return array of counts, element i is the count for message fromSeq + i.
+     */
+    public int[] msgRecvCounts(int fromSeq, int toSeq) {
+        getSubscriptions();
+        return mReceipts.recvCounts(fromSeq, toSeq, mTinode.getMyId());
+    }
+
+    /**
+     * Read counts for a range of messages.
+     *
+     * @param fromSeq first sequence id of the range, inclusive.
+     * @param toSeq last sequence id of the range, inclusive.
+     * @return array of counts, element i is the count for message fromSeq + i.
+     */
+    public int[] msgReadCounts(int fromSeq, int toSeq) {
+        getSubscriptions();
+        return mReceipts.readCounts(fromSeq, toSeq, mTinode.getMyId());
     }
 
     /**
@@ -1982,6 +1992,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             sub = getSubscription(newsub.user);
             if (sub != null) {
                 sub.merge(newsub);
+                mReceipts.put(sub.user, sub.read, sub.recv);
                 if (mStore != null) {
                     mStore.subUpdate(this, sub);
                 }
@@ -2043,7 +2054,15 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
     }
 
+    /**
+     * Called for every received {data} message before it is stored and announced, in single
+     * and batched delivery alike. Subclasses may rewrite the message here.
+     */
+    protected void prepareData(MsgServerData data) {
+    }
+
     protected void routeData(MsgServerData data) {
+        prepareData(data);
         if (mStore != null) {
             Storage.Message msg = mStore.msgReceived(this, getSubscription(data.from), data);
             if (msg != null) {
@@ -2077,6 +2096,75 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
     }
 
+    /**
+     * Route a run of consecutive {data} packets addressed to this topic. Messages are persisted
+     * in a single transaction, side effects which depend only on the final state of the topic
+     * ({note recv}, read notifications from senders, 'me' refresh) are issued once per batch.
+     *
+     * @param batch messages in the order they were received.
+     */
+    protected void routeDataBatch(List<MsgServerData> batch) {
+        if (batch.size() == 1) {
+            routeData(batch.get(0));
+            return;
+        }
+
+        for (MsgServerData data : batch) {
+            prepareData(data);
+        }
+
+        boolean fromMe = true;
+        // Without a store every message counts as new.
+        boolean received = true;
+        if (mStore != null) {
+            List<Storage.Message> stored = mStore.msgReceivedBatch(this, batch);
+            for (Storage.Message msg : stored) {
+                mTinode.setLastMessage(getName(), msg);
+            }
+            // All messages were duplicates: nothing to acknowledge.
+            received = !stored.isEmpty();
+        }
+
+        // Highest seq per sender: used to mark messages as read by the sender.
+        HashMap<String, Integer> readBy = new HashMap<>();
+        for (MsgServerData data : batch) {
+            boolean mine = mTinode.isMe(data.from);
+            fromMe = fromMe && mine;
+            setSeq(data.seq);
+            setTouched(data.ts);
+            if (data.from != null && !mine) {
+                Integer seq = readBy.get(data.from);
+                if (seq == null || seq < data.seq) {
+                    readBy.put(data.from, data.seq);
+                }
+            }
+        }
+        if (received) {
+            noteRecv(fromMe);
+        }
+
+        if (!isChannel(getName())) {
+            for (Map.Entry<String, Integer> e : readBy.entrySet()) {
+                MsgServerInfo info = new MsgServerInfo();
+                info.what = Tinode.NOTE_READ;
+                info.from = e.getKey();
+                info.seq = e.getValue();
+                routeInfo(info);
+            }
+        }
+
+        if (mListener != null) {
+            for (MsgServerData data : batch) {
+                mListener.onData(data);
+            }
+        }
+
+        MeTopic me = mTinode.getMeTopic();
+        if (me != null) {
+            me.setMsgReadRecv(getName(), "", 0);
+        }
+    }
+
     protected void allMessagesReceived(Integer count) {
         if (mListener != null) {
             mListener.onAllMessagesReceived(count);
@@ -2185,8 +2273,9 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                 }
                 break;
             default:
-                break;
+                return;
         }
+        mReceipts.put(sub.user, sub.read, sub.recv);
     }
 
     protected void routeInfo(MsgServerInfo info) {
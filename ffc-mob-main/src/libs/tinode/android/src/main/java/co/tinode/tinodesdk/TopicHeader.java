@@ -0,0 +1,53 @@
+package co.tinode.tinodesdk;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Date;
+
+/**
+ * Lightweight summary of a topic: enough to sort and badge the topic list
+ * without deserializing the topic description or loading subscriptions.
+ */
+public class TopicHeader implements Comparable<TopicHeader> {
+    public final String name;
+    // Last update to the topic description.
+    public final Date updated;
+    // Last activity in the topic: message or description update.
+    public final Date touched;
+    public final int seq;
+    public final int read;
+    public final int recv;
+
+    public TopicHeader(String name, Date updated, Date touched, int seq, int read, int recv) {
+        this.name = name;
+        this.updated = updated;
+        this.touched = touched;
+        this.seq = seq;
+        this.read = read;
+        this.recv = recv;
+    }
+
+    TopicHeader(Topic topic) {
+        this(topic.getName(), topic.getUpdated(), topic.getTouched(), topic.getSeq(), topic.getRead(),
+                topic.getRecv());
+    }
+
+    public int getUnreadCount() {
+        int unread = seq - read;
+        return Math.max(unread, 0);
+    }
+
+    /**
+     * Sort by {@link #touched} in descending order, same as {@link Topic#compareTo(Topic)}.
+     */
+    @Override
+    public int compareTo(@NotNull TopicHeader h) {
+        if (h.touched == null) {
+            return touched == null ? 0 : -1;
+        }
+        if (touched == null) {
+            return 1;
+        }
+        return -touched.compareTo(h.touched);
+    }
+}
@@ -0,0 +1,298 @@
+package co.tinode.tinodesdk;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler of network transfers shared by uploads and downloads.
+ * <p>
+ * Limits the number of concurrent transfers globally and per host. Waiting transfers start in
+ * the order of priority, then in the order of submission. One slot is reserved for interactive
+ * transfers (avatars, visible images), so background transfers cannot block them.
+ * <p>
+ * When paused, no new transfers start; running transfers which call {@link #awaitResumed()}
+ * block until the scheduler is resumed.
+ */
+public class TransferScheduler {
+    // Priority classes: lower value starts first.
+    public static final int PRIORITY_AVATAR = 0;
+    public static final int PRIORITY_VISIBLE = 1;
+    public static final int PRIORITY_NORMAL = 2;
+    public static final int PRIORITY_BACKGROUND = 3;
+
+    private static final int DEFAULT_MAX_TOTAL = 4;
+    private static final int DEFAULT_MAX_PER_HOST = 2;
+    // Slots which only interactive transfers may use.
+    private static final int RESERVED_INTERACTIVE = 1;
+    // Bandwidth is averaged over this many seconds.
+    private static final int BANDWIDTH_WINDOW = 5;
+
+    private static final TransferScheduler sInstance = new TransferScheduler();
+
+    private final ThreadPoolExecutor mExecutor;
+    // Waiting transfers in the order they should start.
+    private final TreeSet<Job> mPending = new TreeSet<>();
+    // Running transfers by host.
+    private final HashMap<String, Integer> mHostRunning = new HashMap<>();
+    private int mRunning = 0;
+    private long mSequence = 0;
+
+    private int mMaxTotal = DEFAULT_MAX_TOTAL;
+    private int mMaxPerHost = DEFAULT_MAX_PER_HOST;
+    private volatile boolean mPaused = false;
+
+    // Bytes transferred per second, ring buffer indexed by second.
+    private final long[] mBuckets = new long[BANDWIDTH_WINDOW];
+    private long mBucketSecond = 0;
+    private long mBytesTotal = 0;
+
+    private TransferScheduler() {
+        // Concurrency is limited by the scheduler, threads are only reused.
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static TransferScheduler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Queue transfer.
+     *
+     * @param host     host the transfer connects to, null if unknown.
+     * @param priority one of PRIORITY_* values.
+     * @param task     transfer to run.
+     * @return handle to cancel the transfer before it starts.
+     */
+    public Job submit(@Nullable String host, int priority, @NotNull Runnable task) {
+        Job job;
+        synchronized (this) {
+            job = new Job(host != null ? host : "", priority, mSequence++, task);
+            mPending.add(job);
+            dispatch();
+        }
+        return job;
+    }
+
+    /**
+     * Run a part of a running transfer, e.g. one part of a parallel upload, on a transfer thread.
+     * The part shares the slot of its transfer, so it starts at once and is not counted against
+     * the limits.
+     *
+     * @param task part of the transfer to run.
+     */
+    public void runShared(@NotNull Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Change concurrency limits, e.g. lower them on a slow network.
+     *
+     * @param maxTotal   maximum number of concurrent transfers.
+     * @param maxPerHost maximum number of concurrent transfers to the same host.
+     */
+    public synchronized void setLimits(int maxTotal, int maxPerHost) {
+        mMaxTotal = Math.max(1, maxTotal);
+        mMaxPerHost = Math.max(1, Math.min(maxPerHost, mMaxTotal));
+        dispatch();
+    }
+
+    /**
+     * Restore default concurrency limits.
+     */
+    public void resetLimits() {
+        setLimits(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_HOST);
+    }
+
+    /**
+     * Stop starting new transfers and block running ones at {@link #awaitResumed()}, e.g. when offline.
+     */
+    public synchronized void pause() {
+        mPaused = true;
+    }
+
+    /**
+     * Continue all transfers.
+     */
+    public synchronized void resume() {
+        mPaused = false;
+        notifyAll();
+        dispatch();
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Called by transfers between chunks: blocks while the scheduler is paused.
+     *
+     * @throws CancellationException if the thread is interrupted while waiting.
+     */
+    public void awaitResumed() throws CancellationException {
+        if (!mPaused) {
+            return;
+        }
+        synchronized (this) {
+            while (mPaused) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted");
+                }
+            }
+        }
+    }
+
+    /**
+     * Account for transferred bytes.
+     */
+    public synchronized void transferred(long bytes) {
+        long second = System.currentTimeMillis() / 1000;
+        advance(second);
+        mBuckets[(int) (second % BANDWIDTH_WINDOW)] += bytes;
+        mBytesTotal += bytes;
+    }
+
+    /**
+     * Snapshot of the scheduler state.
+     */
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.queued = mPending.size();
+        for (Job job : mPending) {
+            if (job.priority <= PRIORITY_VISIBLE) {
+                stats.queuedInteractive++;
+            }
+        }
+        stats.running = mRunning;
+        stats.maxTotal = mMaxTotal;
+        stats.maxPerHost = mMaxPerHost;
+        stats.paused = mPaused;
+        stats.bytesTotal = mBytesTotal;
+        advance(System.currentTimeMillis() / 1000);
+        long sum = 0;
+        for (long b : mBuckets) {
+            sum += b;
+        }
+        stats.bandwidth = (double) sum / BANDWIDTH_WINDOW;
+        return stats;
+    }
+
+    // Clear buckets of the seconds passed since the last update.
+    private void advance(long second) {
+        long gap = Math.min(second - mBucketSecond, BANDWIDTH_WINDOW);
+        for (long i = 1; i <= gap; i++) {
+            mBuckets[(int) ((mBucketSecond + i) % BANDWIDTH_WINDOW)] = 0;
+        }
+        mBucketSecond = Math.max(mBucketSecond, second);
+    }
+
+    // Start waiting transfers which fit the limits. Must be called while holding the lock.
+    private void dispatch() {
+        if (mPaused) {
+            return;
+        }
+        // Background transfers may not take the reserved slots.
+        int maxBackground = mMaxTotal > RESERVED_INTERACTIVE ? mMaxTotal - RESERVED_INTERACTIVE : mMaxTotal;
+        for (Job job : new TreeSet<>(mPending)) {
+            if (mRunning >= mMaxTotal) {
+                break;
+            }
+            if (job.priority > PRIORITY_VISIBLE && mRunning >= maxBackground) {
+                continue;
+            }
+            Integer count = mHostRunning.get(job.host);
+            if (count != null && count >= mMaxPerHost) {
+                continue;
+            }
+            mPending.remove(job);
+            job.started = true;
+            mRunning++;
+            mHostRunning.put(job.host, count != null ? count + 1 : 1);
+            mExecutor.execute(() -> {
+                try {
+                    job.task.run();
+                } finally {
+                    finished(job);
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(Job job) {
+        mRunning--;
+        Integer count = mHostRunning.get(job.host);
+        if (count == null || count <= 1) {
+            mHostRunning.remove(job.host);
+        } else {
+            mHostRunning.put(job.host, count - 1);
+        }
+        dispatch();
+    }
+
+    /**
+     * Queued transfer.
+     */
+    public class Job implements Comparable<Job> {
+        final String host;
+        final int priority;
+        final long seq;
+        final Runnable task;
+        boolean started = false;
+
+        Job(String host, int priority, long seq, Runnable task) {
+            this.host = host;
+            this.priority = priority;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        /**
+         * Remove transfer from the queue.
+         *
+         * @return true if the transfer was removed, false if it has already started.
+         */
+        public boolean cancel() {
+            synchronized (TransferScheduler.this) {
+                return !started && mPending.remove(this);
+            }
+        }
+
+        @Override
+        public int compareTo(@NotNull Job j) {
+            if (priority != j.priority) {
+                return priority < j.priority ? -1 : 1;
+            }
+            return Long.compare(seq, j.seq);
+        }
+    }
+
+    /**
+     * Queue depth, concurrency and bandwidth.
+     */
+    public static class Stats {
+        public int queued;
+        // Waiting avatars and visible images.
+        public int queuedInteractive;
+        public int running;
+        public int maxTotal;
+        public int maxPerHost;
+        public boolean paused;
+        public long bytesTotal;
+        // Bytes per second over the last few seconds.
+        public double bandwidth;
+    }
+}
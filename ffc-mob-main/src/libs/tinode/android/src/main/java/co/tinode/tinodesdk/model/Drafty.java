@@ -19,7 +19,6 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Stack;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_DEFAULT;
@@ -98,54 +97,21 @@ public class Drafty implements Serializable {
         WRAPPER_TYPE_MAP.put(Short.class, short.class);
     }
 
-    // Regular expressions for parsing inline formats.
-    // Name of the style, regexp start, regexp end.
-    private static final String[] INLINE_STYLE_NAME = {
-            "ST", "EM", "DL", "CO"
-    };
-    private static final Pattern[] INLINE_STYLE_RE = {
-            Pattern.compile("(?<=^|[\\W_])\\*([^*]+[^\\s*])\\*(?=$|[\\W_])"), // bold *bo*
-            Pattern.compile("(?<=^|\\W)_([^_]+[^\\s_])_(?=$|\\W)"),    // italic _it_
-            Pattern.compile("(?<=^|[\\W_])~([^~]+[^\\s~])~(?=$|[\\W_])"), // strikethough ~st~
-            Pattern.compile("(?<=^|\\W)`([^`]+)`(?=$|\\W)")     // code/monospace `mono`
-    };
+    // Inline formatting: markup characters and names of the styles they stand for.
+    private static final char[] INLINE_STYLE_MARK = {'*', '_', '~', '`'};
+    private static final String[] INLINE_STYLE_NAME = {"ST", "EM", "DL", "CO"};
+
+    // Character classes of the platform regex engine: java.util.regex on the JVM, ICU on Android.
+    // The markup syntax was defined by regular expressions, the parser applies the same classes
+    // to produce identical results.
+    private static final boolean UNICODE_WORD = Pattern.compile("\\w").matcher("\u00e9").matches();
+    private static final boolean UNICODE_SPACE = Pattern.compile("\\s").matcher("\u00a0").matches();
+    private static final boolean UNICODE_CASE =
+            Pattern.compile("k", Pattern.CASE_INSENSITIVE).matcher("\u212a").matches();
 
     // Relative weights of formatting spans. Greater index in array means greater weight.
     private static final List<String> FMT_WEIGHTS = Collections.singletonList("QQ");
 
-    private static final String[] ENTITY_NAME = {"LN", "MN", "HT"};
-    private static final EntityProc[] ENTITY_PROC = {
-            new EntityProc("LN",
-                    Pattern.compile("(?<=^|[\\W_])(https?://)?(?:www\\.)?(?:[a-z0-9][-a-z0-9]*[a-z0-9]\\.){1,5}" +
-                            "[a-z]{2,6}(?:[/?#:][-a-z0-9@:%_+.~#?&/=]*)?", Pattern.CASE_INSENSITIVE)) {
-
-                @Override
-                Map<String, Object> pack(Matcher m) {
-                    Map<String, Object> data = new HashMap<>();
-                    data.put("url", m.group(1) == null ? "http://" + m.group() : m.group());
-                    return data;
-                }
-            },
-            new EntityProc("MN",
-                    Pattern.compile("(?<=^|[\\W_])@([\\p{L}\\p{N}][._\\p{L}\\p{N}]*[\\p{L}\\p{N}])")) {
-                @Override
-                Map<String, Object> pack(Matcher m) {
-                    Map<String, Object> data = new HashMap<>();
-                    data.put("val", m.group());
-                    return data;
-                }
-            },
-            new EntityProc("HT",
-                    Pattern.compile("(?<=^|[\\W_])#([\\p{L}\\p{N}][._\\p{L}\\p{N}]*[\\p{L}\\p{N}])")) {
-                @Override
-                Map<String, Object> pack(Matcher m) {
-                    Map<String, Object> data = new HashMap<>();
-                    data.put("val", m.group());
-                    return data;
-                }
-            }
-    };
-
     public String txt;
     public Style[] fmt;
     public Entity[] ent;
@@ -185,157 +151,25 @@ public class Drafty implements Serializable {
         this.ent = ent;
     }
 
-    // Detect starts and ends of formatting spans. Unformatted spans are
-    // ignored at this stage.
-    private static List<Span> spannify(String original, Pattern re, String type) {
-        List<Span> spans = new ArrayList<>();
-        Matcher matcher = re.matcher(original);
-        while (matcher.find()) {
-            Span s = new Span();
-            s.start = matcher.start(0);  // 'hello *world*'
-                                                // ^ group(zero) -> index of the opening markup character
-            s.end = matcher.end(1);      // group(one) -> index of the closing markup character
-            s.text = matcher.group(1);          // text without the markup
-            s.type = type;
-            spans.add(s);
-        }
-        return spans;
-    }
-
-    // Take a string and defined earlier style spans, re-compose them into a tree where each leaf is
-    // a same-style (including unstyled) string. I.e. 'hello *bold _italic_* and ~more~ world' ->
-    // ('hello ', (b: 'bold ', (i: 'italic')), ' and ', (s: 'more'), ' world');
-    //
-    // This is needed in order to clear markup, i.e. 'hello *world*' -> 'hello world' and convert
-    // ranges from markup-ed offsets to plain text offsets.
-    private static List<Span> chunkify(String line, int start, int end, List<Span> spans) {
-
-        if (spans == null || spans.size() == 0) {
-            return null;
-        }
-
-        List<Span> chunks = new ArrayList<>();
-        for (Span span : spans) {
-
-            // Grab the initial unstyled chunk.
-            if (span.start > start) {
-                chunks.add(new Span(line.substring(start, span.start)));
-            }
-
-            // Grab the styled chunk. It may include subchunks.
-            Span chunk = new Span();
-            chunk.type = span.type;
-
-            List<Span> chld = chunkify(line, span.start + 1, span.end, span.children);
-            if (chld != null) {
-                chunk.children = chld;
-            } else {
-                chunk.text = span.text;
-            }
-
-            chunks.add(chunk);
-            start = span.end + 1; // '+1' is to skip the formatting character
-        }
-
-        // Grab the remaining unstyled chunk, after the last span
-        if (start < end) {
-            chunks.add(new Span(line.substring(start, end)));
-        }
-
-        return chunks;
-    }
-
-    // Convert linear array or spans into a tree representation.
-    // Keep standalone and nested spans, throw away partially overlapping spans.
-    private static List<Span> toSpanTree(List<Span> spans) {
-        if (spans == null || spans.isEmpty()) {
-            return null;
-        }
-
-        List<Span> tree = new ArrayList<>();
-
-        Span last = spans.get(0);
-        tree.add(last);
-        for (int i = 1; i < spans.size(); i++) {
-            Span curr = spans.get(i);
-            // Keep spans which start after the end of the previous span or those which
-            // are complete within the previous span.
-            if (curr.start > last.end) {
-                // Span is completely outside of the previous span.
-                tree.add(curr);
-                last = curr;
-            } else if (curr.end < last.end) {
-                // Span is fully inside of the previous span. Push to subnode.
-                if (last.children == null) {
-                    last.children = new ArrayList<>();
-                }
-                last.children.add(curr);
-            }
-            // Span could also partially overlap, ignore it as invalid.
-        }
-
-        // Recursively rearrange the subnodes.
-        for (Span s : tree) {
-            s.children = toSpanTree(s.children);
-        }
-
-        return tree;
-    }
-
-    // Convert a list of chunks into block.
-    private static Block draftify(List<Span> chunks, int startAt) {
-        if (chunks == null) {
-            return null;
-        }
-
-        Block block = new Block("");
-        List<Style> ranges = new ArrayList<>();
-        for (Span chunk : chunks) {
-            if (chunk.text == null) {
-                Block drafty = draftify(chunk.children, block.txt.length() + startAt);
-                if (drafty != null) {
-                    chunk.text = drafty.txt;
-                    if (drafty.fmt != null) {
-                        ranges.addAll(drafty.fmt);
-                    }
-                }
-            }
-
-            if (chunk.type != null) {
-                ranges.add(new Style(chunk.type, block.txt.length() + startAt, chunk.text.length()));
-            }
-
-            if (chunk.text != null) {
-                block.txt += chunk.text;
-            }
+    // Same as content.split("\\r?\\n"): trailing empty lines are dropped.
+    private static List<String> splitLines(String content) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        int nl;
+        while ((nl = content.indexOf('\n', start)) >= 0) {
+            lines.add(content.substring(start, nl > start && content.charAt(nl - 1) == '\r' ? nl - 1 : nl));
+            start = nl + 1;
         }
-
-        if (ranges.size() > 0) {
-            block.fmt = ranges;
+        if (start == 0) {
+            lines.add(content);
+            return lines;
         }
-
-        return block;
-    }
-
-    // Get a list of entities from a text.
-    private static List<ExtractedEnt> extractEntities(String line) {
-        List<ExtractedEnt> extracted = new ArrayList<>();
-
-        for (int i = 0; i < ENTITY_NAME.length; i++) {
-            Matcher matcher = ENTITY_PROC[i].re.matcher(line);
-            while (matcher.find()) {
-                ExtractedEnt ee = new ExtractedEnt();
-                ee.at = matcher.start(0);
-                ee.value = matcher.group(0);
-                //noinspection ConstantConditions
-                ee.len = ee.value.length();
-                ee.tp = ENTITY_NAME[i];
-                ee.data = ENTITY_PROC[i].pack(matcher);
-                extracted.add(ee);
-            }
+        lines.add(content.substring(start));
+        int size = lines.size();
+        while (size > 0 && lines.get(size - 1).isEmpty()) {
+            lines.remove(--size);
         }
-
-        return extracted;
+        return lines;
     }
 
     /**
@@ -352,55 +186,14 @@ public class Drafty implements Serializable {
         content = Normalizer.normalize(content, Normalizer.Form.NFC);
 
         // Break input into individual lines. Markdown cannot span multiple lines.
-        String[] lines = content.split("\\r?\\n");
-        List<Block> blks = new ArrayList<>();
+        List<String> lines = splitLines(content);
+        List<Block> blks = new ArrayList<>(lines.size());
         List<Entity> refs = new ArrayList<>();
-
-        List<Span> spans = new ArrayList<>();
         Map<String, Integer> entityMap = new HashMap<>();
-        List<ExtractedEnt> entities;
-        for (String line : lines) {
-            // The 'may be null' warning is a false positive: toTree() and chunkify() may return null only
-            // if spans is empty or null. But they are not called if it's empty or null.
-            spans.clear();
-            // Select styled spans.
-            for (int i = 0;i < INLINE_STYLE_NAME.length; i++) {
-                spans.addAll(spannify(line, INLINE_STYLE_RE[i], INLINE_STYLE_NAME[i]));
-            }
-
-            Block b;
-            if (!spans.isEmpty()) {
-                // Sort styled spans in ascending order by .start
-                Collections.sort(spans);
-
-                // Rearrange linear list of styled spans into a tree, throw away invalid spans.
-                spans = toSpanTree(spans);
-
-                // Parse the entire string into spans, styled or unstyled.
-                spans = chunkify(line, 0, line.length(), spans);
-
-                // Convert line into a block.
-                b = draftify(spans, 0);
-            } else {
-                b = new Block(line);
-            }
-
-            // Extract entities from the string already cleared of markup.
-            entities = extractEntities(b.txt);
-            // Normalize entities by splitting them into spans and references.
-            for (ExtractedEnt ent : entities) {
-                // Check if the entity has been indexed already
-                Integer index = entityMap.get(ent.value);
-                if (index == null) {
-                    index = refs.size();
-                    entityMap.put(ent.value, index);
-                    refs.add(new Entity(ent.tp, ent.data));
-                }
-
-                b.addStyle(new Style(ent.at, ent.len, index));
-            }
 
-            blks.add(b);
+        LineParser parser = new LineParser();
+        for (String line : lines) {
+            blks.add(parser.parse(line, refs, entityMap));
         }
 
         StringBuilder text = new StringBuilder();
@@ -495,6 +288,24 @@ public class Drafty implements Serializable {
         return result.size() > 0 ? result.toArray(new String[]{}) : null;
     }
 
+    /**
+     * Check if the document has attachment references without collecting them.
+     *
+     * @return true if {@link #getEntReferences()} would return a non-null value.
+     */
+    public boolean hasEntReferences() {
+        if (ent == null) {
+            return false;
+        }
+        for (Entity anEnt : ent) {
+            if (anEnt != null && anEnt.data != null &&
+                    (anEnt.data.get("ref") instanceof String || anEnt.data.get("preref") instanceof String)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // Ensure Drafty has enough space to add 'count' formatting styles.
     // Returns old length.
     private int prepareForStyle(int count) {
@@ -998,6 +809,49 @@ public class Drafty implements Serializable {
         return treeBottomUp(toTree(), formatter, new Stack<>());
     }
 
+    /**
+     * Walk the document without building a tree. Spans are sanitized and nested the same way as by
+     * {@link #format(Formatter)}, but the visitor receives entity data as stored: button titles
+     * are not added. Use for read-only passes such as previews; complex rewrites should
+     * use {@link #transform(Transformer)}.
+     *
+     * @param visitor receiver of the document events.
+     */
+    public void visit(@NotNull Visitor visitor) {
+        CharSequence text = txt == null ? "" : txt;
+        Style[] styles = fmt;
+        int entCount = ent != null ? ent.length : 0;
+        if (styles == null || styles.length == 0) {
+            if (entCount != 1) {
+                if (text.length() > 0) {
+                    visitor.text(text, 0, text.length());
+                }
+                return;
+            }
+            // Same special case as in toTree(): a single entity covering nothing.
+            styles = new Style[]{new Style(0, 0, 0)};
+        }
+        List<Span> spans = sanitizeSpans(text, styles, ent);
+        visitSpans(visitor, text, 0, text.length(), spans, 0, spans.size());
+    }
+
+    /**
+     * Plain text of {@link #preview(int)}, computed in a single pass without building the preview.
+     *
+     * @param length length in characters to shorten to.
+     * @return the same string as <code>preview(length).toString()</code>.
+     */
+    @NotNull
+    public String previewText(int length) {
+        if (length < 2) {
+            // Nothing fits but the tail.
+            return preview(length).toString();
+        }
+        PreviewBuilder builder = new PreviewBuilder(length, "…", MAX_PREVIEW_ATTACHMENTS);
+        visit(builder);
+        return builder.finish();
+    }
+
     /**
      * Mostly for testing: convert Drafty to a markdown string.
      * @param plainLink links should be written as plain text, without any formatting.
@@ -1127,6 +981,58 @@ public class Drafty implements Serializable {
         return parent;
     }
 
+    // Same traversal as spansToTree(), reporting nodes to the visitor instead of building them.
+    // Subspans of a span are compacted in place right after it: spans[from, to).
+    // Returns false if the visitor has stopped the walk.
+    private static boolean visitSpans(@NotNull Visitor visitor, @NotNull CharSequence text,
+                                      int start, int end, @NotNull List<Span> spans, int from, int to) {
+        int i = from;
+        while (i < to) {
+            Span span = spans.get(i++);
+
+            if (span.start < 0 && span.type.equals("EX")) {
+                if (!visitor.attachment(span.type, span.data)) {
+                    return false;
+                }
+                continue;
+            }
+
+            // Un-styled range before the styled span starts.
+            if (start < span.start) {
+                if (!visitor.text(text, start, span.start)) {
+                    return false;
+                }
+                start = span.start;
+            }
+
+            // Spans which are within the current span.
+            int subFrom = i;
+            int subTo = i;
+            while (i < to) {
+                Span inner = spans.get(i);
+                if (inner.start < 0 || inner.start >= span.end) {
+                    break;
+                }
+                i++;
+                if (inner.end <= span.end && (inner.start < inner.end || inner.isVoid())) {
+                    spans.set(subTo++, inner);
+                }
+            }
+
+            if (visitor.enter(span.type, span.data, subTo == subFrom)) {
+                if (!visitSpans(visitor, text, start, span.end, spans, subFrom, subTo)) {
+                    return false;
+                }
+            }
+            visitor.leave(span.type);
+
+            start = span.end;
+        }
+
+        // The last unformatted range.
+        return start >= end || visitor.text(text, start, end);
+    }
+
     @Nullable
     // Traverse tree top down.
     protected static Node treeTopDown(@NotNull Node node, @NotNull Transformer tr) {
@@ -1184,26 +1090,11 @@ public class Drafty implements Serializable {
         return formatter.apply(src.tp, src.data, content, stack);
     }
 
-    // Convert Drafty document to a tree of formatted nodes.
-    protected Node toTree() {
-        CharSequence text = txt == null ? "" : txt;
-
-        int entCount = ent != null ? ent.length : 0;
-
-        // Handle special case when all values in fmt are 0 and fmt therefore was
-        // skipped.
-        if (fmt == null || fmt.length == 0) {
-            if (entCount == 1) {
-                fmt = new Style[1];
-                fmt[0] = new Style(0, 0, 0);
-            } else {
-                return new Node(text);
-            }
-        }
-
-        // Sanitize spans
+    // Drop invalid spans, sort the rest and resolve entity references. Attachments are moved to the end.
+    private static List<Span> sanitizeSpans(@NotNull CharSequence text, @NotNull Style[] fmt, @Nullable Entity[] ent) {
         List<Span> spans = new ArrayList<>();
         List<Span> attachments = new ArrayList<>();
+        int entCount = ent != null ? ent.length : 0;
         int maxIndex = text.length();
         for (Style aFmt : fmt) {
             if (aFmt == null || aFmt.len < 0) {
@@ -1266,6 +1157,28 @@ public class Drafty implements Serializable {
             }
         }
 
+        return spans;
+    }
+
+    // Convert Drafty document to a tree of formatted nodes.
+    protected Node toTree() {
+        CharSequence text = txt == null ? "" : txt;
+
+        int entCount = ent != null ? ent.length : 0;
+
+        // Handle special case when all values in fmt are 0 and fmt therefore was
+        // skipped.
+        if (fmt == null || fmt.length == 0) {
+            if (entCount == 1) {
+                fmt = new Style[1];
+                fmt[0] = new Style(0, 0, 0);
+            } else {
+                return new Node(text);
+            }
+        }
+
+        List<Span> spans = sanitizeSpans(text, fmt, ent);
+
         Node tree = spansToTree(new Node(), text, 0, text.length(), spans);
 
         // Flatten tree nodes, remove styling from buttons, copy button text to 'title' data.
@@ -1757,6 +1670,43 @@ public class Drafty implements Serializable {
         <T extends Node> Node transform(T node);
     }
 
+    /**
+     * Receives the document from {@link #visit(Visitor)} as a stream of events in document order.
+     */
+    public interface Visitor {
+        /**
+         * Start of a styled span or an entity.
+         *
+         * @param tp span style such as "EM", or entity type such as "LN".
+         * @param data entity data or null.
+         * @param leaf true if the span has no nested spans: its content is a single text or nothing.
+         * @return true to visit the content of the span, false to skip it. {@link #leave(String)} is called in both cases.
+         */
+        boolean enter(@NotNull String tp, @Nullable Map<String,Object> data, boolean leaf);
+
+        /**
+         * Unstyled text.
+         *
+         * @param text document text.
+         * @param start start of the range, inclusive.
+         * @param end end of the range, exclusive.
+         * @return false to stop the walk.
+         */
+        boolean text(@NotNull CharSequence text, int start, int end);
+
+        /**
+         * End of a span started by {@link #enter(String, Map, boolean)}.
+         */
+        void leave(@NotNull String tp);
+
+        /**
+         * Out-of-line attachment. Attachments are reported at the top level after all spans they follow.
+         *
+         * @return false to stop the walk.
+         */
+        boolean attachment(@NotNull String tp, @Nullable Map<String,Object> data);
+    }
+
     public static class Node {
         Node parent;
         String tp;
@@ -1986,6 +1936,131 @@ public class Drafty implements Serializable {
     // ================
     // Internal classes
 
+    // Builds the plain text of preview() from the document events: applies the same changes as
+    // preview() does to the tree, in the order shortenTree() visits the nodes.
+    private static class PreviewBuilder implements Visitor {
+        private final StringBuilder out = new StringBuilder();
+        private final String tail;
+        private final int maxAttachments;
+        // Characters left; -1 after the text was clipped.
+        private int limit;
+        private int depth = 0;
+        // Number of top level nodes, not counting attachments.
+        private int topLevel = 0;
+        private int attachments = 0;
+        private int shownAttachments = 0;
+        // Inside a top level mention without nested spans.
+        private boolean mention = false;
+        // Forwarding mention which is the first top level node. It's replaced with the symbol only
+        // if other nodes follow: the tree root is unwrapped otherwise, and the mention is not a leaf.
+        private CharSequence pending = null;
+
+        PreviewBuilder(int length, @NotNull String tail, int maxAttachments) {
+            this.limit = length - tail.length();
+            this.tail = tail;
+            this.maxAttachments = maxAttachments;
+        }
+
+        @Override
+        public boolean enter(@NotNull String tp, @Nullable Map<String, Object> data, boolean leaf) {
+            if (depth++ == 0) {
+                topLevelNode();
+            }
+            if (tp.equals("QQ") || tp.equals("BR")) {
+                // Replaced with a space.
+                node(" ", 0, 1);
+                return false;
+            }
+            mention = depth == 1 && leaf && tp.equals("MN");
+            node(null, 0, 0);
+            return limit >= 0;
+        }
+
+        @Override
+        public boolean text(@NotNull CharSequence text, int start, int end) {
+            if (depth == 0) {
+                topLevelNode();
+            }
+            if (mention) {
+                mention = false;
+                if (text.charAt(start) == '➦') {
+                    if (topLevel == 1) {
+                        pending = text.subSequence(start, end);
+                    } else {
+                        node("➦", 0, 1);
+                    }
+                    return limit >= 0;
+                }
+            }
+            node(text, start, end);
+            return limit >= 0;
+        }
+
+        @Override
+        public void leave(@NotNull String tp) {
+            depth--;
+            mention = false;
+        }
+
+        @Override
+        public boolean attachment(@NotNull String tp, @Nullable Map<String, Object> data) {
+            attachments++;
+            // JSON attachments are not shown in preview.
+            if (shownAttachments < maxAttachments && !JSON_MIME_TYPE.equals(data != null ? data.get("mime") : null)) {
+                shownAttachments++;
+            }
+            return true;
+        }
+
+        String finish() {
+            if (pending != null) {
+                node(attachments > 0 ? "➦" : pending, 0, attachments > 0 ? 1 : pending.length());
+            }
+            if (topLevel == 0 && attachments == 1) {
+                // The document is a single attachment: shown regardless of type.
+                node(" ", 0, 1);
+            } else {
+                // Attachments are moved to the end.
+                for (int i = 0; i < shownAttachments; i++) {
+                    node(" ", 0, 1);
+                }
+            }
+            return Normalizer.normalize(out, Normalizer.Form.NFC);
+        }
+
+        private void topLevelNode() {
+            topLevel++;
+            if (pending != null) {
+                node("➦", 0, 1);
+                pending = null;
+            }
+        }
+
+        // Visit node with the given text or, if text is null, a node with nested content.
+        private void node(@Nullable CharSequence text, int start, int end) {
+            if (limit < 0) {
+                return;
+            }
+            if (limit == 0) {
+                out.append(tail);
+                limit = -1;
+                return;
+            }
+            if (text == null) {
+                return;
+            }
+            int len = Character.codePointCount(text, start, end);
+            if (len > limit) {
+                out.append(text, start, Character.offsetByCodePoints(text, start, limit));
+                out.append(tail);
+                limit = -1;
+            } else {
+                out.append(text, start, end);
+                limit -= len;
+            }
+        }
+    }
+
     private static class Block {
         String txt;
         List<Style> fmt;
@@ -2073,25 +2148,476 @@ public class Drafty implements Serializable {
         }
     }
 
-    private static class ExtractedEnt {
-        int at;
-        int len;
-        String tp;
-        String value;
+    /**
+     * Single pass parser of one line of text: finds inline markup, then entities in the text
+     * cleared of markup.
+     * <p>
+     * The results are the same as of finding each of these expressions separately:
+     * <pre>
+     * ST  (?&lt;=^|[\W_])\*([^*]+[^\s*])\*(?=$|[\W_])
+     * EM  (?&lt;=^|\W)_([^_]+[^\s_])_(?=$|\W)
+     * DL  (?&lt;=^|[\W_])~([^~]+[^\s~])~(?=$|[\W_])
+     * CO  (?&lt;=^|\W)`([^`]+)`(?=$|\W)
+     *
+     * LN  (?&lt;=^|[\W_])(https?://)?(?:www\.)?(?:[a-z0-9][-a-z0-9]*[a-z0-9]\.){1,5}[a-z]{2,6}
+     *         (?:[/?#:][-a-z0-9@:%_+.~#?&amp;/=]*)?  case insensitive
+     * MN  (?&lt;=^|[\W_])@([\p{L}\p{N}][._\p{L}\p{N}]*[\p{L}\p{N}])
+     * HT  (?&lt;=^|[\W_])#([\p{L}\p{N}][._\p{L}\p{N}]*[\p{L}\p{N}])
+     * </pre>
+     * Inline styles are kept if standalone or fully nested, partially overlapping styles are dropped.
+     * Entities of one type don't overlap, entities of different types may.
+     */
+    private static class LineParser {
+        private static final int ST = 0;
+        private static final int DL = 2;
+
+        private static final int LN = 0;
+        private static final int MN = 1;
+        private static final int HT = 2;
+        private static final String[] ENTITY_NAME = {"LN", "MN", "HT"};
+
+        private static final String LINK_PATH_CHARS = "-@:%_+.~#?&/=";
+        private static final int MAX_LABELS = 5;
+        private static final int MIN_TLD = 2;
+        private static final int MAX_TLD = 6;
+
+        // Inline spans in the order of opening: positions of the markup characters and the style.
+        private int[] spanStart = new int[8];
+        private int[] spanEnd = new int[8];
+        private int[] spanStyle = new int[8];
+        // Offset of the styled text in the cleared line and number of spans accepted before this one.
+        private int[] spanAt = new int[8];
+        private int[] spanBefore = new int[8];
+        private int spanCount;
+        // Closing character of the last span of each style.
+        private final int[] lastClose = new int[INLINE_STYLE_MARK.length];
+
+        // Spans accepted and not closed yet, innermost last.
+        private int[] open = new int[8];
+        private int depth;
+        private int accepted;
+        private int closed;
+        // Positions of markup characters to remove, ascending.
+        private int[] markup = new int[16];
+        private int markupCount;
+
+        // Entities: type, start and end in the cleared line.
+        private int[] entType = new int[8];
+        private int[] entStart = new int[8];
+        private int[] entEnd = new int[8];
+        private boolean[] entScheme = new boolean[8];
+        private int entCount;
+
+        // Ends of domain labels of the link being matched.
+        private final int[] labels = new int[MAX_LABELS];
+        // The last run of link label characters: [runStart, runEnd).
+        private int runStart;
+        private int runEnd;
+        // If the last matched link has a scheme.
+        private boolean linkScheme;
+
+        Block parse(String line, List<Entity> refs, Map<String, Integer> entityMap) {
+            findSpans(line);
+            Block b = spanCount > 0 ? clearMarkup(line) : new Block(line);
+            findEntities(b, refs, entityMap);
+            return b;
+        }
+
+        private void findSpans(String line) {
+            spanCount = 0;
+            Arrays.fill(lastClose, -1);
+            int n = line.length();
+            for (int i = 0; i < n; i++) {
+                int style = styleOf(line.charAt(i));
+                // Closing character of a span does not open another span of the same style.
+                if (style < 0 || lastClose[style] == i) {
+                    continue;
+                }
+                int close = closeSpan(line, i, style);
+                if (close > 0) {
+                    addSpan(i, close, style);
+                    lastClose[style] = close;
+                }
+            }
+        }
 
-        Map<String,Object> data;
+        // Find the closing character of the span which opens at 'at'. Returns -1 if the span is invalid.
+        private static int closeSpan(String line, int at, int style) {
+            // Underscore is a word character: it separates bold and strikethrough, not italic and mono.
+            boolean underscore = style == ST || style == DL;
+            if (at > 0 && !isSeparator(line.charAt(at - 1), underscore)) {
+                return -1;
+            }
+            char mark = line.charAt(at);
+            int close = line.indexOf(mark, at + 1);
+            if (close < 0) {
+                return -1;
+            }
+            if (mark == '`') {
+                if (close == at + 1) {
+                    return -1;
+                }
+            } else if (close - at < 3 ||
+                    (close - at == 3 && Character.isSurrogatePair(line.charAt(at + 1), line.charAt(at + 2))) ||
+                    isSpace(line.codePointBefore(close))) {
+                // Styled text must be at least two characters long and must not end with a space.
+                return -1;
+            }
+            if (close + 1 < line.length() && !isSeparator(line.codePointAt(close + 1), underscore)) {
+                return -1;
+            }
+            return close;
+        }
+
+        private void addSpan(int start, int end, int style) {
+            if (spanCount == spanStart.length) {
+                int size = spanCount * 2;
+                spanStart = Arrays.copyOf(spanStart, size);
+                spanEnd = Arrays.copyOf(spanEnd, size);
+                spanStyle = Arrays.copyOf(spanStyle, size);
+                spanAt = Arrays.copyOf(spanAt, size);
+                spanBefore = Arrays.copyOf(spanBefore, size);
+                open = Arrays.copyOf(open, size);
+                markup = Arrays.copyOf(markup, size * 2);
+            }
+            spanStart[spanCount] = start;
+            spanEnd[spanCount] = end;
+            spanStyle[spanCount] = style;
+            spanCount++;
+        }
+
+        // Drop overlapping spans, remove markup of the rest and convert them to styles.
+        private Block clearMarkup(String line) {
+            List<Style> fmt = new ArrayList<>();
+            depth = 0;
+            accepted = 0;
+            closed = 0;
+            markupCount = 0;
+            for (int i = 0; i < spanCount; i++) {
+                while (depth > 0 && spanEnd[open[depth - 1]] < spanStart[i]) {
+                    closeStyle(fmt);
+                }
+                if (depth > 0 && spanEnd[i] > spanEnd[open[depth - 1]]) {
+                    // Partially overlaps the enclosing span.
+                    continue;
+                }
+                // Each closed span has removed two markup characters, each open span one.
+                spanAt[i] = spanStart[i] - closed * 2 - depth;
+                spanBefore[i] = accepted++;
+                markup[markupCount++] = spanStart[i];
+                open[depth++] = i;
+            }
+            while (depth > 0) {
+                closeStyle(fmt);
+            }
+
+            StringBuilder txt = new StringBuilder(line.length() - markupCount);
+            int from = 0;
+            for (int i = 0; i < markupCount; i++) {
+                txt.append(line, from, markup[i]);
+                from = markup[i] + 1;
+            }
+            txt.append(line, from, line.length());
+
+            Block b = new Block(txt.toString());
+            b.fmt = fmt;
+            return b;
+        }
+
+        // Close the innermost open span. Styles are added in the order of closing, nested first.
+        private void closeStyle(List<Style> fmt) {
+            int i = open[--depth];
+            closed++;
+            markup[markupCount++] = spanEnd[i];
+            int nested = accepted - spanBefore[i] - 1;
+            fmt.add(new Style(INLINE_STYLE_NAME[spanStyle[i]], spanAt[i],
+                    spanEnd[i] - spanStart[i] - 1 - nested * 2));
+        }
+
+        private void findEntities(Block b, List<Entity> refs, Map<String, Integer> entityMap) {
+            String txt = b.txt;
+            int n = txt.length();
+            entCount = 0;
+            runStart = runEnd = -1;
+            // Matches of the same type do not overlap: the next one is searched after the end of the previous.
+            int nextLink = 0;
+            int nextMention = 0;
+            int nextHashtag = 0;
+            for (int i = 0; i < n; i++) {
+                if (i > 0 && !isSeparator(txt.charAt(i - 1), true)) {
+                    continue;
+                }
+                char c = txt.charAt(i);
+                int end;
+                if (c == '@') {
+                    if (i >= nextMention && (end = matchName(txt, i)) > 0) {
+                        addEntity(MN, i, end, false);
+                        nextMention = end;
+                    }
+                } else if (c == '#') {
+                    if (i >= nextHashtag && (end = matchName(txt, i)) > 0) {
+                        addEntity(HT, i, end, false);
+                        nextHashtag = end;
+                    }
+                } else if (i >= nextLink && isLinkAlnum(c) && (end = matchLink(txt, i)) > 0) {
+                    addEntity(LN, i, end, linkScheme);
+                    nextLink = end;
+                }
+            }
+
+            // Links first, then mentions, then hashtags.
+            for (int type = LN; type <= HT; type++) {
+                for (int i = 0; i < entCount; i++) {
+                    if (entType[i] != type) {
+                        continue;
+                    }
+                    String value = txt.substring(entStart[i], entEnd[i]);
+                    // Check if the entity has been indexed already
+                    Integer index = entityMap.get(value);
+                    if (index == null) {
+                        index = refs.size();
+                        entityMap.put(value, index);
+                        Map<String, Object> data = new HashMap<>();
+                        if (type == LN) {
+                            data.put("url", entScheme[i] ? value : "http://" + value);
+                        } else {
+                            data.put("val", value);
+                        }
+                        refs.add(new Entity(ENTITY_NAME[type], data));
+                    }
+                    b.addStyle(new Style(entStart[i], value.length(), index));
+                }
+            }
+        }
+
+        private void addEntity(int type, int start, int end, boolean scheme) {
+            if (entCount == entType.length) {
+                int size = entCount * 2;
+                entType = Arrays.copyOf(entType, size);
+                entStart = Arrays.copyOf(entStart, size);
+                entEnd = Arrays.copyOf(entEnd, size);
+                entScheme = Arrays.copyOf(entScheme, size);
+            }
+            entType[entCount] = type;
+            entStart[entCount] = start;
+            entEnd[entCount] = end;
+            entScheme[entCount] = scheme;
+            entCount++;
+        }
+
+        // @mention or #hashtag at 'at': letters and digits with optional '.' and '_' in between.
+        // Returns the end of the match or -1.
+        private static int matchName(String txt, int at) {
+            int n = txt.length();
+            int i = at + 1;
+            if (i >= n) {
+                return -1;
+            }
+            int cp = txt.codePointAt(i);
+            if (!isLetterOrNumber(cp)) {
+                return -1;
+            }
+            i += Character.charCount(cp);
+            int end = -1;
+            while (i < n) {
+                cp = txt.codePointAt(i);
+                if (isLetterOrNumber(cp)) {
+                    i += Character.charCount(cp);
+                    end = i;
+                } else if (cp == '.' || cp == '_') {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            return end;
+        }
+
+        // URL at 'at'. Sets linkScheme. Returns the end of the match or -1.
+        private int matchLink(String txt, int at) {
+            int host = matchScheme(txt, at);
+            if (host > 0) {
+                int end = matchHost(txt, host);
+                if (end > 0) {
+                    linkScheme = true;
+                    return end;
+                }
+            }
+            linkScheme = false;
+            return matchHost(txt, at);
+        }
+
+        // "http://" or "https://". Returns the position after the scheme or -1.
+        private static int matchScheme(String txt, int at) {
+            if (!startsWith(txt, at, "http")) {
+                return -1;
+            }
+            int i = at + 4;
+            if (i < txt.length() && fold(txt.charAt(i)) == 's') {
+                i++;
+            }
+            return txt.startsWith("://", i) ? i + 3 : -1;
+        }
+
+        // Optional "www." then the domain. Returns the end or -1.
+        private int matchHost(String txt, int at) {
+            if (startsWith(txt, at, "www.")) {
+                int end = matchDomain(txt, at + 4);
+                if (end > 0) {
+                    return end;
+                }
+            }
+            return matchDomain(txt, at);
+        }
+
+        // One to five labels ending with '.', a top level domain of 2-6 letters and an optional path.
+        private int matchDomain(String txt, int at) {
+            int n = txt.length();
+            int count = 0;
+            int i = at;
+            while (count < MAX_LABELS) {
+                int end = labelRunEnd(txt, i);
+                if (end - i < 2 || end >= n || txt.charAt(end) != '.' ||
+                        !isLinkAlnum(txt.charAt(i)) || !isLinkAlnum(txt.charAt(end - 1))) {
+                    break;
+                }
+                i = end + 1;
+                labels[count++] = i;
+            }
+            // Fewer labels leave more text to the top level domain.
+            for (int k = count - 1; k >= 0; k--) {
+                int tld = labels[k];
+                int end = tld;
+                while (end - tld < MAX_TLD && end < n && isLinkLetter(txt.charAt(end))) {
+                    end++;
+                }
+                if (end - tld >= MIN_TLD) {
+                    if (end < n && "/?#:".indexOf(txt.charAt(end)) >= 0) {
+                        end++;
+                        while (end < n && (isLinkAlnum(txt.charAt(end)) ||
+                                LINK_PATH_CHARS.indexOf(txt.charAt(end)) >= 0)) {
+                            end++;
+                        }
+                    }
+                    return end;
+                }
+            }
+            return -1;
+        }
+
+        // End of the run of letters, digits and '-' which includes 'at'. Link candidates which start
+        // at hyphens within one run share the result.
+        private int labelRunEnd(String txt, int at) {
+            if (at >= runStart && at < runEnd) {
+                return runEnd;
+            }
+            int end = at;
+            while (end < txt.length() && (isLinkAlnum(txt.charAt(end)) || txt.charAt(end) == '-')) {
+                end++;
+            }
+            runStart = at;
+            runEnd = end;
+            return end;
+        }
+
+        // Case insensitive comparison with a lowercase ASCII string.
+        private static boolean startsWith(String txt, int at, String prefix) {
+            if (at + prefix.length() > txt.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (fold(txt.charAt(at + i)) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int styleOf(char c) {
+            for (int i = 0; i < INLINE_STYLE_MARK.length; i++) {
+                if (INLINE_STYLE_MARK[i] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
     }
 
-    private static abstract class EntityProc {
-        final String name;
-        final Pattern re;
+    // Lowercase ASCII letters, including the characters which fold to them in case insensitive matching.
+    private static char fold(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return (char) (c + ('a' - 'A'));
+        }
+        if (UNICODE_CASE) {
+            if (c == '\u212a') {
+                // Kelvin sign.
+                return 'k';
+            }
+            if (c == '\u017f') {
+                // Long s.
+                return 's';
+            }
+        }
+        return c;
+    }
+
+    private static boolean isLinkLetter(char c) {
+        c = fold(c);
+        return c >= 'a' && c <= 'z';
+    }
+
+    private static boolean isLinkAlnum(char c) {
+        return (c >= '0' && c <= '9') || isLinkLetter(c);
+    }
 
-        EntityProc(String name, Pattern patten) {
-            this.name = name;
-            this.re = patten;
+    // \w
+    private static boolean isWordChar(int cp) {
+        if (cp < 0x80) {
+            return (cp >= 'a' && cp <= 'z') || (cp >= 'A' && cp <= 'Z') || (cp >= '0' && cp <= '9') || cp == '_';
+        }
+        if (!UNICODE_WORD) {
+            return false;
+        }
+        if (Character.isAlphabetic(cp)) {
+            return true;
+        }
+        switch (Character.getType(cp)) {
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.CONNECTOR_PUNCTUATION:
+                return true;
         }
+        // Zero width non-joiner and joiner.
+        return cp == 0x200c || cp == 0x200d;
+    }
+
+    // \W or, if 'underscore' is true, [\W_].
+    private static boolean isSeparator(int cp, boolean underscore) {
+        return !isWordChar(cp) || (underscore && cp == '_');
+    }
 
-        abstract Map<String,Object> pack(Matcher m);
+    // \s
+    private static boolean isSpace(int cp) {
+        if (cp == ' ' || (cp >= '\t' && cp <= '\r')) {
+            return true;
+        }
+        return UNICODE_SPACE && (cp == 0x85 || Character.isSpaceChar(cp));
+    }
+
+    // [\p{L}\p{N}]
+    private static boolean isLetterOrNumber(int cp) {
+        if (Character.isLetter(cp)) {
+            return true;
+        }
+        switch (Character.getType(cp)) {
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.LETTER_NUMBER:
+            case Character.OTHER_NUMBER:
+                return true;
+        }
+        return false;
     }
 
     private static boolean equalsNullable(@Nullable Object first, @Nullable Object second) {
@@ -5,6 +5,7 @@ import android.util.Log;
 
 // import com.google.firebase.messaging.FirebaseMessaging;
 
+import java.io.File;
 import java.util.Locale;
 
 import androidx.annotation.NonNull;
@@ -14,6 +15,7 @@ import com.rntinodeclient.db.BaseDb;
 import com.rntinodeclient.media.VxCard;
 // import com.rntinodeclient.services.CallConnection;
 
+import co.tinode.tinodesdk.BlobCache;
 import co.tinode.tinodesdk.ComTopic;
 import co.tinode.tinodesdk.FndTopic;
 import co.tinode.tinodesdk.MeTopic;
@@ -33,6 +35,10 @@ public class Cache {
 
     private static final String API_KEY = "AQEAAAABAAD_rAp4DJh05a1HAwFT3A6K";
 
+    // Directory and size limit of the downloaded files cache.
+    private static final String BLOB_CACHE_DIR = "blobs";
+    private static final long BLOB_CACHE_SIZE = 256L * 1024 * 1024;
+
     private static final Cache sInstance = new Cache();
 
     private Tinode mTinode = null;
@@ -54,6 +60,11 @@ public class Cache {
             sInstance.mTinode.setMeTypeOfMetaPacket(VxCard.class);
             sInstance.mTinode.setFndTypeOfMetaPacket(VxCard.class);
 
+            // Downloaded attachments are kept in app storage which is not purged by the OS.
+            sInstance.mTinode.setBlobCache(new BlobCache(
+                new File(RNTinodeClientModule.getAppContext().getFilesDir(), BLOB_CACHE_DIR),
+                BLOB_CACHE_SIZE));
+
             // Set device language
             sInstance.mTinode.setLanguage(Locale.getDefault().toString());
 
@@ -0,0 +1,347 @@
+package com.rntinodeclient;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+
+import com.rntinodeclient.db.BaseDb;
+import com.rntinodeclient.db.StoredMessage;
+import com.rntinodeclient.media.VxCard;
+
+import co.tinode.tinodesdk.ComTopic;
+import co.tinode.tinodesdk.Storage;
+import co.tinode.tinodesdk.Tinode;
+import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.TopicHeader;
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Model of the conversation list shown to JS.
+ * <p>
+ * Events only mark conversations as dirty. Changes are collected and sent as a single delta
+ * at most {@link #setMaxEmitRate(double)} times per second, aligned with the next display frame.
+ * Only rows which actually changed are serialized.
+ * <p>
+ * Delta format:
+ * <pre>
+ * {
+ *   reset: true if the list must be replaced with 'updated' entirely,
+ *   updated: [row, ...],
+ *   removed: [topic, ...],
+ *   order: [topic, ...] // present only if the order or membership of the list has changed
+ * }
+ * </pre>
+ * Rows are built from topic headers: topics which are not loaded yet are sent with
+ * {@code loaded: false} and only the fields the header has. They are loaded when they become visible,
+ * see {@link RNTinodeClientModule#hydrateTopics}, and sent again in full.
+ * <p>
+ * All state is confined to the model's worker thread.
+ */
+class ConversationListModel {
+    private static final double DEFAULT_MAX_EMIT_RATE = 4.0;
+    private static final String DEFAULT_NAME = "FilmFestBook User";
+
+    interface Emitter {
+        void emit(WritableMap delta);
+    }
+
+    private final Emitter mEmitter;
+    private final Handler mWorker;
+    private final Handler mMain;
+
+    // Rows last sent to JS by topic name.
+    private HashMap<String, Row> mRows = new HashMap<>();
+    // Order of topics last sent to JS.
+    private List<String> mOrder = new ArrayList<>();
+    // Topics changed since the last emit.
+    private final HashSet<String> mDirty = new HashSet<>();
+    private boolean mAllDirty = true;
+    private boolean mReset = true;
+
+    private boolean mScheduled = false;
+    private long mLastEmit = 0;
+    private long mMinInterval = (long) (1000 / DEFAULT_MAX_EMIT_RATE);
+
+    private final Runnable mFlush = this::flush;
+    private final Choreographer.FrameCallback mFrameCallback;
+    private final Runnable mRequestFrame;
+
+    ConversationListModel(Emitter emitter) {
+        mEmitter = emitter;
+        HandlerThread thread = new HandlerThread("conversation-list");
+        thread.start();
+        mWorker = new Handler(thread.getLooper());
+        mMain = new Handler(Looper.getMainLooper());
+        // Choreographer must be used on the main thread; the delta itself is built on the worker.
+        mFrameCallback = frameTimeNanos -> mWorker.post(mFlush);
+        mRequestFrame = () -> mMain.post(() -> Choreographer.getInstance().postFrameCallback(mFrameCallback));
+    }
+
+    /**
+     * Limit the number of deltas sent to JS.
+     *
+     * @param perSecond maximum number of deltas per second; values <= 0 restore the default.
+     */
+    void setMaxEmitRate(double perSecond) {
+        final long interval = (long) (1000 / (perSecond > 0 ? perSecond : DEFAULT_MAX_EMIT_RATE));
+        mWorker.post(() -> mMinInterval = interval);
+    }
+
+    /**
+     * Mark conversation as changed.
+     */
+    void markDirty(final String topicName) {
+        if (topicName == null) {
+            markAllDirty();
+            return;
+        }
+        mWorker.post(() -> {
+            mDirty.add(topicName);
+            schedule();
+        });
+    }
+
+    /**
+     * Mark all conversations as changed, e.g. after reconnect or a change in the list of subscriptions.
+     */
+    void markAllDirty() {
+        mWorker.post(() -> {
+            mAllDirty = true;
+            schedule();
+        });
+    }
+
+    /**
+     * Forget the state sent to JS. The next delta will replace the entire list.
+     */
+    void reset() {
+        mWorker.post(() -> {
+            mRows = new HashMap<>();
+            mOrder = new ArrayList<>();
+            mAllDirty = true;
+            mReset = true;
+        });
+    }
+
+    /**
+     * Build all rows of the current conversation list. May be called from any thread.
+     */
+    static WritableArray getConversations() {
+        WritableArray conversations = new WritableNativeArray();
+        Tinode tinode = Cache.getTinode();
+        for (TopicHeader h : getHeaders(tinode)) {
+            conversations.pushMap(makeRow(tinode, h).toMap());
+        }
+        return conversations;
+    }
+
+    // Headers of user topics, most recent first. Does not load topics from the store.
+    private static List<TopicHeader> getHeaders(Tinode tinode) {
+        List<TopicHeader> headers = tinode.getTopicHeaders();
+        List<TopicHeader> result = new ArrayList<>(headers.size());
+        for (TopicHeader h : headers) {
+            if (Topic.getTopicTypeByName(h.name).match(Topic.TopicType.USER)) {
+                result.add(h);
+            }
+        }
+        return result;
+    }
+
+    // Full row if the topic is loaded, partial row from the header otherwise.
+    @SuppressWarnings("unchecked")
+    private static Row makeRow(Tinode tinode, TopicHeader h) {
+        Topic topic = tinode.getLoadedTopic(h.name);
+        return topic instanceof ComTopic ? new Row((ComTopic<VxCard>) topic) : new Row(h);
+    }
+
+    private void schedule() {
+        if (mScheduled) {
+            return;
+        }
+        mScheduled = true;
+        long delay = Math.max(0, mLastEmit + mMinInterval - SystemClock.uptimeMillis());
+        mWorker.postDelayed(mRequestFrame, delay);
+    }
+
+    private void flush() {
+        mScheduled = false;
+        mLastEmit = SystemClock.uptimeMillis();
+
+        Tinode tinode = Cache.getTinode();
+        List<TopicHeader> headers = getHeaders(tinode);
+        HashMap<String, Row> rows = new HashMap<>(headers.size());
+        List<String> order = new ArrayList<>(headers.size());
+        WritableArray updated = new WritableNativeArray();
+        for (TopicHeader h : headers) {
+            String name = h.name;
+            Row prev = mRows.get(name);
+            Row row = prev;
+            if (row == null || mAllDirty || mDirty.contains(name)) {
+                row = makeRow(tinode, h);
+            }
+            if (mReset || !row.equals(prev)) {
+                updated.pushMap(row.toMap());
+            }
+            rows.put(name, row);
+            order.add(name);
+        }
+
+        WritableArray removed = new WritableNativeArray();
+        if (!mReset) {
+            for (String name : mRows.keySet()) {
+                if (!rows.containsKey(name)) {
+                    removed.pushString(name);
+                }
+            }
+        }
+
+        boolean reordered = mReset || !order.equals(mOrder);
+        boolean reset = mReset;
+        mRows = rows;
+        mOrder = order;
+        mDirty.clear();
+        mAllDirty = false;
+        mReset = false;
+
+        if (!reset && !reordered && updated.size() == 0 && removed.size() == 0) {
+            return;
+        }
+
+        WritableMap delta = Arguments.createMap();
+        delta.putBoolean("reset", reset);
+        delta.putArray("updated", updated);
+        delta.putArray("removed", removed);
+        if (reordered) {
+            WritableArray names = new WritableNativeArray();
+            for (String name : order) {
+                names.pushString(name);
+            }
+            delta.putArray("order", names);
+        }
+        mEmitter.emit(delta);
+    }
+
+    /**
+     * Snapshot of a single conversation as sent to JS.
+     */
+    private static class Row {
+        final String topic;
+        final String name;
+        final String delivery;
+        final String previewText;
+        final int unreadCount;
+        final boolean online;
+        final String lastseen;
+        final boolean muted;
+        final boolean blocked;
+        // False if the row was built from the topic header only.
+        final boolean loaded;
+
+        Row(ComTopic<VxCard> t) {
+            topic = t.getName();
+            VxCard pub = t.getPub();
+            name = pub != null && pub.fn != null ? pub.fn : DEFAULT_NAME;
+
+            Storage.Message msg = Cache.getTinode().getLastMessage(topic);
+            String preview = msg != null ? previewText(msg) : null;
+            if (preview != null) {
+                delivery = msg.isMine() ? delivery(t, msg) : null;
+                previewText = preview;
+            } else {
+                delivery = null;
+                previewText = t.getComment();
+            }
+            unreadCount = t.getUnreadCount();
+            online = t.getOnline();
+            lastseen = RNTinodeClientModule.relativeDateFormat(t.getLastSeen());
+            muted = t.isMuted();
+            blocked = t.isJoiner();
+            loaded = true;
+        }
+
+        Row(TopicHeader h) {
+            topic = h.name;
+            name = DEFAULT_NAME;
+            delivery = null;
+            previewText = null;
+            unreadCount = h.getUnreadCount();
+            online = false;
+            lastseen = null;
+            muted = false;
+            blocked = false;
+            loaded = false;
+        }
+
+        // Stored messages carry the preview text computed when the message was saved.
+        private static String previewText(Storage.Message msg) {
+            if (msg instanceof StoredMessage) {
+                return ((StoredMessage) msg).getPreviewText();
+            }
+            Drafty content = msg.getContent();
+            return content != null ? content.previewText(StoredMessage.PREVIEW_TEXT_LENGTH) : null;
+        }
+
+        private static String delivery(ComTopic<VxCard> topic, Storage.Message msg) {
+            if (msg.getStatus() <= BaseDb.Status.SENDING.value) {
+                return "pending";
+            } else if (msg.getStatus() == BaseDb.Status.FAILED.value) {
+                return "warn";
+            } else if (topic.msgReadCount(msg.getSeqId()) > 0) {
+                return "sent_read";
+            } else if (topic.msgRecvCount(msg.getSeqId()) > 0) {
+                return "sent_got";
+            }
+            return "sent";
+        }
+
+        WritableMap toMap() {
+            WritableMap conversation = Arguments.createMap();
+            conversation.putString("name", name);
+            if (delivery != null) {
+                conversation.putString("delivery", delivery);
+            }
+            conversation.putString("previewText", previewText);
+            conversation.putInt("unreadCount", unreadCount);
+            conversation.putBoolean("online", online);
+            conversation.putString("lastseen", lastseen);
+            conversation.putBoolean("muted", muted);
+            conversation.putBoolean("blocked", blocked);
+            conversation.putString("topic", topic);
+            conversation.putBoolean("loaded", loaded);
+            return conversation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Row)) {
+                return false;
+            }
+            Row r = (Row) o;
+            return unreadCount == r.unreadCount && online == r.online && muted == r.muted &&
+                    blocked == r.blocked && loaded == r.loaded && Objects.equals(topic, r.topic) && Objects.equals(name, r.name) &&
+                    Objects.equals(delivery, r.delivery) && Objects.equals(previewText, r.previewText) &&
+                    Objects.equals(lastseen, r.lastseen);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(topic);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.rntinodeclient;
+
+import android.database.Cursor;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeArray;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.rntinodeclient.db.BaseDb;
+import com.rntinodeclient.db.MessageDb;
+import com.rntinodeclient.db.RenderCache;
+import com.rntinodeclient.db.StoredMessage;
+import com.rntinodeclient.media.VxCard;
+
+import co.tinode.tinodesdk.ComTopic;
+import co.tinode.tinodesdk.model.Subscription;
+
+/**
+ * Keeps the last state of the chat message list sent to JS and computes incremental changes:
+ * rows inserted, updated and removed, keyed by message database ID.
+ * <p>
+ * Diff format:
+ * <pre>
+ * {
+ *   reset: true if the list must be replaced with 'inserted' entirely,
+ *   inserted: [row, ...],
+ *   updated: [row, ...],
+ *   removed: [msgId, ...]
+ * }
+ * </pre>
+ */
+class MessageListDiffer {
+    // Entities AU, BN, EX, HT, IM, LN, MN, QQ, VD.
+    private static final int FILE_FLAGS = StoredMessage.FLAG_AUDIO | StoredMessage.FLAG_BUTTON |
+            StoredMessage.FLAG_FILE | StoredMessage.FLAG_HASHTAG | StoredMessage.FLAG_IMAGE |
+            StoredMessage.FLAG_LINK | StoredMessage.FLAG_MENTION | StoredMessage.FLAG_QUOTE |
+            StoredMessage.FLAG_VIDEO;
+
+    // Rows last sent to JS, in cursor order.
+    private LinkedHashMap<Long, Row> mRows = new LinkedHashMap<>();
+    private boolean mReset = true;
+    // Rows must be rebuilt from the cursor, e.g. because sender names have changed.
+    private boolean mStale = false;
+
+    /**
+     * Forget the current state. The next diff will replace the entire list.
+     */
+    synchronized void reset() {
+        mRows = new LinkedHashMap<>();
+        mReset = true;
+        mStale = false;
+    }
+
+    /**
+     * Rebuild all rows on the next update, e.g. after subscriptions have changed.
+     * Only rows which actually changed are reported.
+     */
+    synchronized void invalidate() {
+        mStale = true;
+    }
+
+    /**
+     * Compare messages in the cursor with the last state.
+     *
+     * @return diff or {@code null} if nothing has changed.
+     */
+    synchronized WritableMap update(Cursor cursor, ComTopic<VxCard> topic) {
+        LinkedHashMap<Long, Row> rows = new LinkedHashMap<>();
+        WritableArray inserted = new WritableNativeArray();
+        WritableArray updated = new WritableNativeArray();
+        boolean changed = mReset;
+        // Rebuilt rows take the text from the cache: unchanged messages are not decoded.
+        RenderCache renders = BaseDb.getInstance().getRenderCache();
+        long generation = cursor instanceof MessageDb.WindowCursor ?
+                ((MessageDb.WindowCursor) cursor).renderGeneration : -1;
+
+        if (cursor != null && cursor.moveToFirst()) {
+            do {
+                Row prev = mRows.get(StoredMessage.readDbId(cursor));
+                Row row;
+                if (prev != null && !mStale && prev.isStable(cursor)) {
+                    // Content cannot change without changing the status. Only delivery may change.
+                    row = prev.withDelivery(topic);
+                } else {
+                    row = new Row(StoredMessage.readMessage(cursor, -1), topic, renders, generation);
+                }
+                rows.put(row.msgId, row);
+
+                if (prev == null || mReset) {
+                    inserted.pushMap(row.toMap());
+                    changed = true;
+                } else if (!row.equals(prev)) {
+                    updated.pushMap(row.toMap());
+                    changed = true;
+                }
+            } while (cursor.moveToNext());
+        }
+
+        WritableArray removed = new WritableNativeArray();
+        if (!mReset) {
+            for (Long id : mRows.keySet()) {
+                if (!rows.containsKey(id)) {
+                    removed.pushDouble(id.doubleValue());
+                    changed = true;
+                }
+            }
+        }
+
+        boolean reset = mReset;
+        mRows = rows;
+        mReset = false;
+        mStale = false;
+        return changed ? diff(reset, inserted, updated, removed) : null;
+    }
+
+    /**
+     * Recompute delivery status of the current rows, e.g. after a read or recv notification.
+     *
+     * @return diff or {@code null} if nothing has changed.
+     */
+    synchronized WritableMap updateDelivery(ComTopic<VxCard> topic) {
+        if (mReset) {
+            return null;
+        }
+
+        WritableArray updated = new WritableNativeArray();
+        boolean changed = false;
+        for (Map.Entry<Long, Row> e : mRows.entrySet()) {
+            Row prev = e.getValue();
+            Row row = prev.withDelivery(topic);
+            if (row != prev) {
+                e.setValue(row);
+                updated.pushMap(row.toMap());
+                changed = true;
+            }
+        }
+        return changed ? diff(false, new WritableNativeArray(), updated, new WritableNativeArray()) : null;
+    }
+
+    private static WritableMap diff(boolean reset, WritableArray inserted, WritableArray updated,
+                                    WritableArray removed) {
+        WritableMap diff = Arguments.createMap();
+        diff.putBoolean("reset", reset);
+        diff.putArray("inserted", inserted);
+        diff.putArray("updated", updated);
+        diff.putArray("removed", removed);
+        return diff;
+    }
+
+    /**
+     * Snapshot of a single message as sent to JS.
+     */
+    private static class Row {
+        final long msgId;
+        final int seqId;
+        final int status;
+        final boolean isMine;
+        final boolean isFile;
+        final boolean hasAtt;
+        final String text;
+        final String attStatus;
+        final String userName;
+        final String delivery;
+
+        Row(StoredMessage m, ComTopic<VxCard> topic, RenderCache renders, long generation) {
+            msgId = m.getDbId();
+            seqId = m.seq;
+            status = m.status.value;
+            isMine = m.isMine();
+            // Flags are precomputed when the message is saved.
+            int flags = m.getContentFlags();
+            hasAtt = (flags & StoredMessage.FLAG_REFERENCE) != 0;
+            isFile = (flags & FILE_FLAGS) != 0;
+            text = renders.render(m, RenderCache.TEXT, 0, generation);
+            if (hasAtt) {
+                attStatus = m.status == BaseDb.Status.FAILED && !m.isPending() ? "failed" : null;
+            } else {
+                attStatus = "none";
+            }
+            Subscription<VxCard, ?> sub = topic.getSubscription(m.from);
+            userName = sub != null && sub.pub != null ? sub.pub.fn : null;
+            delivery = delivery(topic, status, seqId);
+        }
+
+        private Row(Row other, String delivery) {
+            msgId = other.msgId;
+            seqId = other.seqId;
+            status = other.status;
+            isMine = other.isMine;
+            isFile = other.isFile;
+            hasAtt = other.hasAtt;
+            text = other.text;
+            attStatus = other.attStatus;
+            userName = other.userName;
+            this.delivery = delivery;
+        }
+
+        // Row may be reused if it's already synced and the status has not changed.
+        boolean isStable(Cursor cursor) {
+            return status > BaseDb.Status.SENDING.value && status != BaseDb.Status.FAILED.value &&
+                    StoredMessage.readStatus(cursor) == status;
+        }
+
+        // Returns this row if delivery status has not changed.
+        Row withDelivery(ComTopic<VxCard> topic) {
+            String d = delivery(topic, status, seqId);
+            return d.equals(delivery) ? this : new Row(this, d);
+        }
+
+        private static String delivery(ComTopic<VxCard> topic, int status, int seq) {
+            if (status <= BaseDb.Status.SENDING.value) {
+                return "pending";
+            } else if (status == BaseDb.Status.FAILED.value) {
+                return "warn";
+            } else if (topic.msgReadCount(seq) > 0) {
+                return "sent_read";
+            } else if (topic.msgRecvCount(seq) > 0) {
+                return "sent_got";
+            }
+            return "sent";
+        }
+
+        WritableMap toMap() {
+            WritableMap message = Arguments.createMap();
+            message.putInt("seqId", seqId);
+            message.putBoolean("isMine", isMine);
+            message.putDouble("msgId", (double) msgId);
+            message.putBoolean("isFile", isFile);
+            message.putBoolean("hasAtt", hasAtt);
+            if (text != null) {
+                message.putString("text", text);
+            }
+            if (attStatus != null) {
+                message.putString("attStatus", attStatus);
+            }
+            if (userName != null) {
+                message.putString("userName", userName);
+            }
+            message.putString("delivery", delivery);
+            return message;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Row)) {
+                return false;
+            }
+            Row r = (Row) o;
+            return msgId == r.msgId && seqId == r.seqId && status == r.status && isMine == r.isMine &&
+                    isFile == r.isFile && hasAtt == r.hasAtt && Objects.equals(text, r.text) &&
+                    Objects.equals(attStatus, r.attStatus) && Objects.equals(userName, r.userName) &&
+                    Objects.equals(delivery, r.delivery);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(msgId);
+        }
+    }
+}
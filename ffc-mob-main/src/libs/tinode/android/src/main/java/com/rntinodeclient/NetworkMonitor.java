@@ -0,0 +1,88 @@
+package com.rntinodeclient;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.HashSet;
+
+import co.tinode.tinodesdk.TransferScheduler;
+
+/**
+ * Pauses file transfers while there is no network and limits their concurrency when the default
+ * network is a slow link.
+ */
+class NetworkMonitor extends ConnectivityManager.NetworkCallback {
+    private static final String TAG = "NetworkMonitor";
+
+    // Links slower than this are considered weak.
+    private static final int WEAK_LINK_KBPS = 1000;
+    // Transfer limits on a weak link: keep the radio from being oversubscribed.
+    private static final int WEAK_LINK_MAX_TOTAL = 2;
+    private static final int WEAK_LINK_MAX_PER_HOST = 1;
+
+    private final TransferScheduler mScheduler = TransferScheduler.getInstance();
+    // Networks with internet access.
+    private final HashSet<Network> mNetworks = new HashSet<>();
+
+    static void start(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) {
+            return;
+        }
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        try {
+            cm.registerNetworkCallback(request, new NetworkMonitor());
+            // Transfers go over the default network only: a slow background network must not
+            // throttle them. Before Android N the limits stay at their defaults.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                cm.registerDefaultNetworkCallback(new DefaultNetworkMonitor());
+            }
+        } catch (RuntimeException ex) {
+            // SecurityException without ACCESS_NETWORK_STATE permission.
+            Log.w(TAG, "Unable to monitor network", ex);
+        }
+    }
+
+    @Override
+    public synchronized void onAvailable(Network network) {
+        mNetworks.add(network);
+        mScheduler.resume();
+    }
+
+    @Override
+    public synchronized void onLost(Network network) {
+        mNetworks.remove(network);
+        if (mNetworks.isEmpty()) {
+            Log.i(TAG, "Network lost, pausing transfers");
+            mScheduler.pause();
+        }
+    }
+
+    // Adjusts transfer limits to the bandwidth of the default network.
+    private static class DefaultNetworkMonitor extends ConnectivityManager.NetworkCallback {
+        private final TransferScheduler mScheduler = TransferScheduler.getInstance();
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities caps) {
+            int kbps = caps.getLinkDownstreamBandwidthKbps();
+            if (kbps > 0 && kbps < WEAK_LINK_KBPS) {
+                mScheduler.setLimits(WEAK_LINK_MAX_TOTAL, WEAK_LINK_MAX_PER_HOST);
+            } else {
+                mScheduler.resetLimits();
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            // The next default network reports its own capabilities.
+            mScheduler.resetLimits();
+        }
+    }
+}
@@ -21,6 +21,7 @@ import com.facebook.react.bridge.UiThreadUtil;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.Promise;
@@ -38,7 +39,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Date;
-import java.util.Arrays;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -58,8 +58,12 @@ import java.util.List;
 
 // import com.rntinodeclient.account.Utils;
 import co.tinode.tinodesdk.AlreadySubscribedException;
+import co.tinode.tinodesdk.BlobCache;
+import co.tinode.tinodesdk.DownloadEngine;
+import co.tinode.tinodesdk.LargeFileHelper;
 import co.tinode.tinodesdk.PromisedReply;
 import co.tinode.tinodesdk.Tinode;
+import co.tinode.tinodesdk.TransferScheduler;
 import co.tinode.tinodesdk.model.AuthScheme;
 import co.tinode.tinodesdk.model.ServerMessage;
 import co.tinode.tinodesdk.ComTopic;
@@ -67,11 +71,15 @@ import co.tinode.tinodesdk.Storage;
 import com.rntinodeclient.media.VxCard;
 import com.rntinodeclient.db.BaseDb;
 import com.rntinodeclient.db.MessageDb;
+import com.rntinodeclient.db.MessageEntityDb;
+import com.rntinodeclient.db.MessageWindow;
+import com.rntinodeclient.db.StatementRegistry;
 import com.rntinodeclient.db.StoredMessage;
 import co.tinode.tinodesdk.MeTopic;
 import co.tinode.tinodesdk.NotConnectedException;
 import co.tinode.tinodesdk.ServerResponseException;
 import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.TopicHeader;
 import co.tinode.tinodesdk.model.Acs;
 import co.tinode.tinodesdk.model.Credential;
 import co.tinode.tinodesdk.model.PrivateType;
@@ -86,19 +94,25 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
     private static final String TAG = "RNTinodeClient";
 
     // Connection Constants    
-    private static final int MAX_MESSAGE_PREVIEW_LENGTH = 60;
     private static final String ON_CONNECTION_CHANGE = "connectionChange";
     private static final String ON_CONVERSATION_CHANGE = "conversationChange";
     private static final String ON_USERDATA_CHANGE = "userDataChange";
     private static final String ON_SUBSCRIPTION_ERROR = "onSubscriptionError";
-    private static final String ON_MESSAGE_CHANGE = "onMessageChange";
+    private static final String ON_MESSAGE_DIFF = "onMessageDiff";
     private static final String ON_TYPING_STATUS = "onTypingStatus";
     private static final String ON_USER_UPDATE = "onUserUpdate";
 
     // Chat Screen Constants
     private static final int MESSAGES_QUERY_ID = 200;
     private static final int MESSAGES_TO_LOAD = 20000;
+    // Number of messages in the visible range of the chat and the prefetch margin on each side.
+    private static final int MESSAGES_VISIBLE = 50;
+    private static final int MESSAGES_PREFETCH = 50;
     private static final int READ_DELAY = 1000;
+    // Default number of results of a local message search.
+    private static final int MAX_SEARCH_RESULTS = 50;
+    // Default page size of entity and mention lookups.
+    private static final int MAX_ENTITY_RESULTS = 50;
 
     private static final String HARD_RESET = "hard_reset";
     private static final int REFRESH_NONE = 0;
@@ -132,10 +146,20 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
     private boolean mSendTypingNotifications = true;
     private boolean mSendReadReceipts = true;
     private Cursor mCursor = null;
+    private final MessageWindow mMessageWindow = new MessageWindow(MESSAGES_VISIBLE, MESSAGES_PREFETCH);
+    // Last state of the message list sent to JS.
+    private final MessageListDiffer mMessageDiffer = new MessageListDiffer();
+
+    // Conversation list sent to JS as throttled deltas.
+    private final ConversationListModel mConversations;
 
     public RNTinodeClientModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
+        mConversations = new ConversationListModel(delta ->
+            reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(ON_CONVERSATION_CHANGE, delta));
+        NetworkMonitor.start(reactContext);
     }
 
     public static Context getAppContext() {
@@ -173,6 +197,239 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
         Cache.invalidate();
     }
 
+    @ReactMethod
+    public void getDbStats(boolean reset, Promise promise) {
+        WritableArray stats = new WritableNativeArray();
+        for (StatementRegistry.StatementStats st : BaseDb.getInstance().getStatementStats()) {
+            WritableMap item = Arguments.createMap();
+            item.putString("name", st.name);
+            item.putDouble("calls", st.calls);
+            item.putDouble("totalMs", st.totalNanos / 1e6);
+            item.putDouble("maxMs", st.maxNanos / 1e6);
+            stats.pushMap(item);
+        }
+        if (reset) {
+            BaseDb.getInstance().resetStatementStats();
+        }
+        promise.resolve(stats);
+    }
+
+    // Search local message history. Options: topic (name), from (sender UID), since and before (ms), limit.
+    // Resolves to the latest versions of the matching messages, best matches first.
+    @ReactMethod
+    public void searchMessages(String query, ReadableMap options, Promise promise) {
+        Storage store = BaseDb.getInstance().getStore();
+        Topic topic = null;
+        if (options.hasKey("topic")) {
+            topic = Cache.getTinode().getTopic(options.getString("topic"));
+            if (topic == null) {
+                promise.resolve(new WritableNativeArray());
+                return;
+            }
+        }
+        String from = options.hasKey("from") ? options.getString("from") : null;
+        Date since = options.hasKey("since") ? new Date((long) options.getDouble("since")) : null;
+        Date before = options.hasKey("before") ? new Date((long) options.getDouble("before")) : null;
+        int limit = options.hasKey("limit") ? options.getInt("limit") : MAX_SEARCH_RESULTS;
+
+        WritableArray result = new WritableNativeArray();
+        for (long id : store.msgSearch(query, topic, from, since, before, limit)) {
+            StoredMessage msg = store.getMessagePreviewById(id);
+            if (msg == null) {
+                continue;
+            }
+            WritableMap item = Arguments.createMap();
+            item.putDouble("msgId", (double) id);
+            item.putString("topic", msg.topic);
+            item.putInt("seqId", msg.seq);
+            item.putString("from", msg.from);
+            if (msg.ts != null) {
+                item.putDouble("ts", (double) msg.ts.getTime());
+            }
+            item.putString("text", msg.getPreviewText());
+            result.pushMap(item);
+        }
+        promise.resolve(result);
+    }
+
+    // Page of entities shared in the topic, newest first. Types: IM, VD, AU, EX, LN, MN, HT.
+    // Options: beforeTs and beforeId of the last item of the previous page, limit.
+    @ReactMethod
+    public void getTopicEntities(String topicName, ReadableArray types, ReadableMap options, Promise promise) {
+        Topic topic = Cache.getTinode().getTopic(topicName);
+        if (topic == null || types == null) {
+            promise.resolve(new WritableNativeArray());
+            return;
+        }
+        String[] tps = new String[types.size()];
+        for (int i = 0; i < tps.length; i++) {
+            tps[i] = types.getString(i);
+        }
+        long beforeTs = options.hasKey("beforeTs") ? (long) options.getDouble("beforeTs") : 0;
+        long beforeId = options.hasKey("beforeId") ? (long) options.getDouble("beforeId") : 0;
+        int limit = options.hasKey("limit") ? options.getInt("limit") : MAX_ENTITY_RESULTS;
+        promise.resolve(entitiesToArray(topicName,
+                BaseDb.getInstance().getStore().getEntities(topic, tps, beforeTs, beforeId, limit)));
+    }
+
+    // Page of mentions, newest first. Options: topic (name, all topics if missing), uid (current user
+    // if missing), beforeTs and beforeId of the last item of the previous page, limit.
+    @ReactMethod
+    public void getMentions(ReadableMap options, Promise promise) {
+        Topic topic = null;
+        String topicName = options.hasKey("topic") ? options.getString("topic") : null;
+        if (topicName != null) {
+            topic = Cache.getTinode().getTopic(topicName);
+            if (topic == null) {
+                promise.resolve(new WritableNativeArray());
+                return;
+            }
+        }
+        String uid = options.hasKey("uid") ? options.getString("uid") : Cache.getTinode().getMyId();
+        if (uid == null) {
+            promise.resolve(new WritableNativeArray());
+            return;
+        }
+        long beforeTs = options.hasKey("beforeTs") ? (long) options.getDouble("beforeTs") : 0;
+        long beforeId = options.hasKey("beforeId") ? (long) options.getDouble("beforeId") : 0;
+        int limit = options.hasKey("limit") ? options.getInt("limit") : MAX_ENTITY_RESULTS;
+        promise.resolve(entitiesToArray(topicName,
+                BaseDb.getInstance().getStore().getMentions(topic, uid, beforeTs, beforeId, limit)));
+    }
+
+    // Topic name is included only when the entities come from more than one topic.
+    private static WritableArray entitiesToArray(String topicName, List<MessageEntityDb.StoredEntity> entities) {
+        WritableArray result = new WritableNativeArray();
+        for (MessageEntityDb.StoredEntity ent : entities) {
+            WritableMap item = Arguments.createMap();
+            item.putDouble("id", (double) ent.id);
+            item.putDouble("msgId", (double) ent.msgId);
+            if (topicName == null) {
+                StoredMessage msg = BaseDb.getInstance().getStore().getMessagePreviewById(ent.msgId);
+                item.putString("topic", msg != null ? msg.topic : null);
+            }
+            item.putInt("seqId", ent.seq);
+            item.putDouble("ts", (double) ent.ts);
+            item.putString("tp", ent.tp);
+            item.putString("ref", ent.ref);
+            item.putString("mime", ent.mime);
+            if (ent.size >= 0) {
+                item.putDouble("size", (double) ent.size);
+            }
+            item.putString("name", ent.name);
+            item.putString("uid", ent.uid);
+            result.pushMap(item);
+        }
+        return result;
+    }
+
+    // Local file URI of the cached attachment or null if it's not cached.
+    @ReactMethod
+    public void getCachedFile(String ref, Promise promise) {
+        try {
+            File file = Cache.getTinode().getLargeFileHelper().getCached(resolveUrl(ref));
+            promise.resolve(file != null ? fileUri(file) : null);
+        } catch (MalformedURLException ex) {
+            promise.reject(ex);
+        }
+    }
+
+    // Download attachment into the local cache unless it's cached already. Resolves to the local file URI.
+    @ReactMethod
+    public void downloadAttachment(String ref, Promise promise) {
+        String url;
+        try {
+            url = resolveUrl(ref);
+        } catch (MalformedURLException ex) {
+            promise.reject(ex);
+            return;
+        }
+        LargeFileHelper helper = Cache.getTinode().getLargeFileHelper();
+        // Requested by the UI: the attachment is on screen.
+        helper.setPriority(TransferScheduler.PRIORITY_VISIBLE);
+        helper.downloadCachedFuture(url, null)
+            .thenApply(new PromisedReply.SuccessListener<File>() {
+                @Override
+                public PromisedReply<File> onSuccess(File file) {
+                    promise.resolve(file != null ? fileUri(file) : null);
+                    return null;
+                }
+            }, new PromisedReply.FailureListener<File>() {
+                @Override
+                public <E extends Exception> PromisedReply<File> onFailure(E err) {
+                    promise.reject(err);
+                    return null;
+                }
+            });
+    }
+
+    @ReactMethod
+    public void getBlobCacheStats(Promise promise) {
+        BlobCache cache = Cache.getTinode().getBlobCache();
+        WritableMap stats = Arguments.createMap();
+        if (cache != null) {
+            stats.putDouble("size", cache.getSize());
+            stats.putDouble("maxSize", cache.getMaxSize());
+            stats.putInt("count", cache.getCount());
+            stats.putDouble("hits", cache.getHits());
+            stats.putDouble("misses", cache.getMisses());
+        }
+        promise.resolve(stats);
+    }
+
+    // Queue depth, concurrency and bandwidth of file transfers.
+    @ReactMethod
+    public void getTransferStats(Promise promise) {
+        TransferScheduler.Stats st = TransferScheduler.getInstance().getStats();
+        WritableMap stats = Arguments.createMap();
+        stats.putInt("queued", st.queued);
+        stats.putInt("queuedInteractive", st.queuedInteractive);
+        stats.putInt("running", st.running);
+        stats.putInt("maxTotal", st.maxTotal);
+        stats.putInt("maxPerHost", st.maxPerHost);
+        stats.putBoolean("paused", st.paused);
+        stats.putDouble("bytesTotal", st.bytesTotal);
+        stats.putDouble("bandwidth", st.bandwidth);
+        promise.resolve(stats);
+    }
+
+    // Throughput and retries of the recent attachment downloads, most recent first.
+    @ReactMethod
+    public void getDownloadStats(Promise promise) {
+        WritableArray list = Arguments.createArray();
+        for (DownloadEngine.Stats st : DownloadEngine.getInstance().getRecentStats()) {
+            WritableMap stats = Arguments.createMap();
+            stats.putString("url", st.url);
+            stats.putDouble("size", st.size);
+            stats.putDouble("received", st.received);
+            stats.putDouble("resumedFrom", st.resumedFrom);
+            stats.putInt("segments", st.segments);
+            stats.putInt("retries", st.retries);
+            stats.putDouble("duration", st.durationMs);
+            stats.putDouble("throughput", st.getThroughput());
+            stats.putBoolean("success", st.success);
+            list.pushMap(stats);
+        }
+        promise.resolve(list);
+    }
+
+    @ReactMethod
+    public void clearBlobCache() {
+        BlobCache cache = Cache.getTinode().getBlobCache();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    // Attachment references may be relative to the server URL.
+    private static String resolveUrl(String ref) throws MalformedURLException {
+        return new URL(Cache.getTinode().getBaseUrl(), ref).toString();
+    }
+
+    private static String fileUri(File file) {
+        return "file://" + file.getAbsolutePath();
+    }
+
     @ReactMethod
     public void readMessages() {
         sendNoteRead(0);
@@ -263,66 +520,57 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
     }
 
     public WritableArray getConversations() {
-        WritableArray conversations = new WritableNativeArray();
-        final Collection <ComTopic<VxCard>> newTopics = Cache.getTinode().getFilteredTopics(t ->
-            t.getTopicType().match(ComTopic.TopicType.USER));
-
-        for (ComTopic < VxCard > topic: newTopics) {
-            WritableMap conversation = Arguments.createMap();
-            Storage.Message msg = Cache.getTinode().getLastMessage(topic.getName());
-            VxCard pub = topic.getPub();
-            if (pub != null && pub.fn != null) {
-                conversation.putString("name", pub.fn);
-            } else {
-                conversation.putString("name", "FilmFestBook User");
-            }
-
-            Drafty content = msg != null ? msg.getContent() : null;
-            if (content != null) {
-                if (msg.isMine()) {
-                    if (msg.getStatus() <= BaseDb.Status.SENDING.value) {
-                        conversation.putString("delivery", "pending");
-                    } else if (msg.getStatus() == BaseDb.Status.FAILED.value) {
-                        conversation.putString("delivery", "warn");
-                    } else {
-                        if (topic.msgReadCount(msg.getSeqId()) > 0) {
-                            conversation.putString("delivery", "sent_read");
-                        } else if (topic.msgRecvCount(msg.getSeqId()) > 0) {
-                            conversation.putString("delivery", "sent_got");
-                        } else {
-                            conversation.putString("delivery", "sent");
-                        }
-                    }
-                }
-                conversation.putString("previewText",
-                    content.preview(MAX_MESSAGE_PREVIEW_LENGTH).toString()
-                );
-            } else {
-                conversation.putString("previewText", topic.getComment());
-            }
-            conversation.putInt("unreadCount", topic.getUnreadCount());
-            conversation.putBoolean("online", topic.getOnline());
-            conversation.putString("lastseen", relativeDateFormat(topic.getLastSeen()));            
+        return ConversationListModel.getConversations();
+    }
 
-            conversation.putBoolean("muted", topic.isMuted());
-            conversation.putBoolean("blocked", topic.isJoiner());
-            conversation.putString("topic", topic.getName());
+    @ReactMethod
+    public void getConversationList(Callback callback) {
+        callback.invoke(getConversations());
+    }
 
-            conversations.pushMap(conversation);
+    // Headers of all conversations, most recent first: [{topic, touched, unreadCount}].
+    // Cheap: topics are not loaded from the local store.
+    @ReactMethod
+    public void getTopicHeaders(Promise promise) {
+        WritableArray result = new WritableNativeArray();
+        for (TopicHeader h : Cache.getTinode().getTopicHeaders()) {
+            if (!Topic.getTopicTypeByName(h.name).match(Topic.TopicType.USER)) {
+                continue;
+            }
+            WritableMap item = Arguments.createMap();
+            item.putString("topic", h.name);
+            if (h.touched != null) {
+                item.putDouble("touched", (double) h.touched.getTime());
+            }
+            item.putInt("unreadCount", h.getUnreadCount());
+            result.pushMap(item);
         }
+        promise.resolve(result);
+    }
 
-        return conversations;
+    // Load conversations shown on screen. Their full rows follow in 'conversationChange' events.
+    @ReactMethod
+    public void hydrateTopics(ReadableArray names) {
+        Tinode tinode = Cache.getTinode();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.getString(i);
+            if (tinode.getLoadedTopic(name) == null && tinode.getTopic(name) != null) {
+                conversationChanged(name);
+            }
+        }
     }
 
+    // Limit the rate of conversation list updates sent to JS, per second.
     @ReactMethod
-    public void getConversationList(Callback callback) {
-        callback.invoke(getConversations());
+    public void setConversationEmitRate(double maxPerSecond) {
+        mConversations.setMaxEmitRate(maxPerSecond);
     }
     // Conversation Listeners
 
     @ReactMethod
     public void startMeListener() {
         final Tinode tinode = Cache.getTinode();
+        mConversations.reset();
         contactTinodeListener = new ContactsEventListener(tinode.isConnected());
         tinode.addListener(contactTinodeListener);
         Cache.setSelectedTopicName(null);
@@ -354,8 +602,12 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
     }
 
     public void datasetChanged() {
-        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-            .emit(ON_CONVERSATION_CHANGE, getConversations());
+        mConversations.markAllDirty();
+    }
+
+    // Conversation with the given topic has changed.
+    private void conversationChanged(String topicName) {
+        mConversations.markDirty(topicName);
     }
 
     public void onUserDataChange() {
@@ -404,15 +656,15 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
 
         @Override
         public void onInfo(MsgServerInfo info) {
-            datasetChanged();
+            conversationChanged(info.src);
         }
 
         @Override
         public void onPres(MsgServerPres pres) {
             if ("msg".equals(pres.what)) {
-                datasetChanged();
+                conversationChanged(pres.src);
             } else if ("off".equals(pres.what) || "on".equals(pres.what)) {
-                datasetChanged();
+                conversationChanged(pres.src);
             }
         }
 
@@ -444,7 +696,7 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
 
         @Override
         public void onContUpdated(final String contact) {
-            datasetChanged();
+            conversationChanged(contact);
         }
 
         @Override
@@ -522,7 +774,7 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
     }
 
     @NonNull
-    private static String relativeDateFormat(Date then) {
+    static String relativeDateFormat(Date then) {
         if (then == null) {
             return "Never";
         }
@@ -748,6 +1000,8 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
         if (mTopicName == null || !mTopicName.equals(topicName)) {
             Cache.setSelectedTopicName(topicName);
             mTopicName = topicName;
+            mMessageWindow.reset();
+            mMessageDiffer.reset();
 
             Log.w(TAG, "Topic name is :" + topicName);
 
@@ -845,6 +1099,7 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
         mCursor = null;
         mTopic = null;
         mTopicName = null;
+        mMessageDiffer.reset();
 
         promise.resolve(true);
     }
@@ -890,75 +1145,44 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
         sendMessage(msg, -1, false);
     }
 
-    private static StoredMessage getMessage(Cursor cur, int position) {
-        if (cur.moveToPosition(position)) {
-            return StoredMessage.readMessage(cur, -1);
+    // Extend the message window towards older messages, e.g. when the user scrolls up.
+    @ReactMethod
+    public void loadOlderMessages() {
+        if (mMessageWindow.pageOlder()) {
+            runMessagesLoader();
         }
-        return null;
     }
 
-    public void onChatChange() {
-        if (mCursor.moveToFirst()) {
-            WritableArray messages = new WritableNativeArray();
-            final ComTopic <VxCard> topic = (ComTopic <VxCard>) Cache.getTinode().getTopic(mTopicName);
-            do {
-                final StoredMessage m = getMessage(mCursor, mCursor.getPosition());
-                WritableMap message = Arguments.createMap();
-                final Long msgId = m.getDbId();
-                boolean hasAttachment = m.content != null && m.content.getEntReferences() != null;
-                boolean uploadingAttachment = hasAttachment && m.isPending();
-                boolean uploadFailed = hasAttachment && (m.status == BaseDb.Status.FAILED);
-                Boolean isFile = m.content != null && m.content.hasEntities(
-                    Arrays.asList("AU", "BN", "EX", "HT", "IM", "LN", "MN", "QQ", "VD")
-                );
-
-                message.putInt("seqId", m.seq);
-                message.putBoolean("isMine", m.isMine());
-                message.putDouble("msgId", msgId.doubleValue());
-                message.putBoolean("isFile", isFile);
-                message.putBoolean("hasAtt", hasAttachment);
-
-                // Normal message.
-                if (m.content != null) {
-                    message.putString("text", m.content.toString());
-                }
-
-                if (hasAttachment) {
-                    if (uploadingAttachment) {
-                        // cancelUpload(msgId);
-                    } else if (uploadFailed) {
-                        message.putString("attStatus", "failed");
-                    }
-                } else {
-                    message.putString("attStatus", "none");
-                }
-
-                Subscription <VxCard, ? > sub = topic.getSubscription(m.from);
-                if (sub != null && sub.pub != null) {
-                    message.putString("userName", sub.pub.fn);
-                }
-
-                // message.putString("time", relativeDateFormat(m.ts));
+    // Move the message window towards newer messages, e.g. when the user scrolls down.
+    @ReactMethod
+    public void loadNewerMessages() {
+        if (mMessageWindow.pageNewer(BaseDb.getInstance().getReadableDatabase())) {
+            runMessagesLoader();
+        }
+    }
 
-                if (m.status.value <= BaseDb.Status.SENDING.value) {
-                    message.putString("delivery", "pending");
-                } else if (m.status.value == BaseDb.Status.FAILED.value) {
-                    message.putString("delivery", "warn");
-                } else {
-                    if (topic.msgReadCount(m.seq) > 0) {
-                        message.putString("delivery", "sent_read");
-                    } else if (topic.msgRecvCount(m.seq) > 0) {
-                        message.putString("delivery", "sent_got");
-                    } else {
-                        message.putString("delivery", "sent");
-                    }
-                }
-                messages.pushMap(message);
+    // Send changes in the message list to JS.
+    public void onChatChange() {
+        final ComTopic<VxCard> topic = (ComTopic<VxCard>) Cache.getTinode().getTopic(mTopicName);
+        if (mCursor == null || mCursor.isClosed() || topic == null) {
+            return;
+        }
+        emitMessageDiff(mMessageDiffer.update(mCursor, topic));
+    }
 
-            } while (mCursor.moveToNext());
+    // Send changes in delivery status of the loaded messages to JS.
+    private void onDeliveryChange() {
+        final ComTopic<VxCard> topic = (ComTopic<VxCard>) Cache.getTinode().getTopic(mTopicName);
+        if (topic == null) {
+            return;
+        }
+        emitMessageDiff(mMessageDiffer.updateDelivery(topic));
+    }
 
+    private void emitMessageDiff(WritableMap diff) {
+        if (diff != null) {
             reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                    .emit(ON_MESSAGE_CHANGE, messages);
+                    .emit(ON_MESSAGE_DIFF, diff);
         }
     }
 
@@ -1002,6 +1226,8 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
                     //     }
                     // });
 
+                    // Sender names may have changed.
+                    mMessageDiffer.invalidate();
                     onChatChange();
                     break;
                 default:
@@ -1015,7 +1241,7 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
             switch (MsgServerInfo.parseWhat(info.what)) {
                 case READ:
                 case RECV:
-                    onChatChange();
+                    onDeliveryChange();
                     break;
                 case KP:
                     setTypingStatus(true);
@@ -1092,12 +1318,8 @@ public class RNTinodeClientModule extends ReactContextBaseJavaModule {
             Log.w(TAG, "onCreateLoader mTopicName : " + mTopicName);
             Log.w(TAG, "onCreateLoader id : " + id);
             if (id == MESSAGES_QUERY_ID && mTopicName != null) {
-                int mPagesToLoad = 1;
-                Log.w(TAG, "Herr as : " + id);
                 try {
-                    MessageDb.Loader loader = new MessageDb.Loader(reactContext, mTopicName, mPagesToLoad, MESSAGES_TO_LOAD);
-                    Log.w(TAG, "What happned" + loader.init());
-                    return loader;
+                    return new MessageDb.Loader(reactContext, mTopicName, mMessageWindow);
                 } catch (Exception e) {
                     Log.w(TAG, e.getMessage());
                     throw new IllegalArgumentException("Unknown loader id " + id);
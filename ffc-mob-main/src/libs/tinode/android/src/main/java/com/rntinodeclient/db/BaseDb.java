@@ -11,6 +11,8 @@ import android.util.SparseArray;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 
+import java.util.List;
+
 import com.rntinodeclient.RNTinodeClientModule;
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.model.Acs;
@@ -25,7 +27,7 @@ public class BaseDb extends SQLiteOpenHelper {
     /**
      * Schema version. Increment on schema changes.
      */
-    private static final int DATABASE_VERSION = 19;
+    private static final int DATABASE_VERSION = 25;
 
     /**
      * Filename for SQLite file.
@@ -34,9 +36,18 @@ public class BaseDb extends SQLiteOpenHelper {
     private static BaseDb sInstance = null;
     private StoredAccount mAcc = null;
     private SqlStore mStore = null;
+    private final StatementRegistry mStatements = new StatementRegistry();
+    private final RenderCache mRenderCache = new RenderCache();
 
     static final int UNSENT_ID_START = 2_000_000_000;
 
+    // Number of messages re-encoded in one transaction by the background conversion.
+    private static final int CONVERT_BATCH_SIZE = 100;
+    // Number of messages added to the search and entity indexes in one transaction by the background backfill.
+    private static final int INDEX_BACKFILL_BATCH_SIZE = 500;
+    // Set by onUpgrade when messages written by older versions should be converted.
+    private boolean mConvertLegacy = false;
+
     /**
      * Private constructor
      */
@@ -54,6 +65,15 @@ public class BaseDb extends SQLiteOpenHelper {
             sInstance = new BaseDb(RNTinodeClientModule.getAppContext());
             sInstance.mAcc = AccountDb.getActiveAccount(sInstance.getReadableDatabase());
             sInstance.mStore = new SqlStore(sInstance);
+            if (sInstance.mConvertLegacy) {
+                sInstance.convertLegacyMessages();
+            }
+            SQLiteDatabase db = sInstance.getReadableDatabase();
+            boolean search = !MessageSearchDb.isBackfilled(db);
+            boolean entities = !MessageEntityDb.isBackfilled(db);
+            if (search || entities) {
+                sInstance.backfillIndexes(search, entities);
+            }
         }
         return sInstance;
     }
@@ -72,10 +92,47 @@ public class BaseDb extends SQLiteOpenHelper {
         db.execSQL(MessageDb.CREATE_TABLE);
         db.execSQL(MessageDb.CREATE_INDEX);
         db.execSQL(MessageDb.CREATE_INDEX_2);
+        for (String sql : MessageDb.CREATE_TRIGGERS) {
+            db.execSQL(sql);
+        }
+        MessageSearchDb.createTable(db, true);
+        MessageEntityDb.createTable(db, true);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion >= 19 && oldVersion < newVersion && newVersion == DATABASE_VERSION) {
+            // Keep the cache and migrate in place.
+            if (oldVersion < 20) {
+                // Add and backfill the latest message projection.
+                db.execSQL(TopicDb.ADD_COLUMN_LAST_MSG_ID);
+                for (String sql : MessageDb.CREATE_TRIGGERS) {
+                    db.execSQL(sql);
+                }
+                db.execSQL(MessageDb.BACKFILL_LAST_MESSAGE);
+            }
+            if (oldVersion < 22) {
+                for (String sql : MessageDb.ADD_PREVIEW_COLUMNS) {
+                    db.execSQL(sql);
+                }
+            }
+            if (oldVersion < 23) {
+                // Existing messages are indexed in the background.
+                MessageSearchDb.createTable(db, false);
+            }
+            if (oldVersion < 24) {
+                MessageEntityDb.createTable(db, false);
+            }
+            if (oldVersion < 25) {
+                // Preview text was stored 80 characters long instead of 60.
+                db.execSQL(MessageDb.CLEAR_PREVIEW_TEXT);
+            }
+            // Message head and content are now stored in binary format with precomputed previews.
+            // Existing rows remain readable and are converted in the background once the database is open.
+            mConvertLegacy = true;
+            return;
+        }
+
         // Keep existing account to be sure the user is not logged out on DB upgrade.
         StoredAccount acc = null;
         String deviceToken = null;
@@ -87,6 +144,12 @@ public class BaseDb extends SQLiteOpenHelper {
         }
 
         // This is just a cache. Drop then re-fetch everything from the server.
+        db.execSQL(MessageSearchDb.DROP_TRIGGER);
+        db.execSQL(MessageSearchDb.DROP_TABLE);
+        db.execSQL(MessageEntityDb.DROP_INDEX_3);
+        db.execSQL(MessageEntityDb.DROP_INDEX_2);
+        db.execSQL(MessageEntityDb.DROP_INDEX);
+        db.execSQL(MessageEntityDb.DROP_TABLE);
         db.execSQL(MessageDb.DROP_INDEX);
         db.execSQL(MessageDb.DROP_INDEX_2);
         db.execSQL(MessageDb.DROP_TABLE);
@@ -111,6 +174,60 @@ public class BaseDb extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Re-encode messages stored as JSON text into the binary format on a background thread,
+     * in small batches so concurrent reads and writes are not blocked for long.
+     */
+    private void convertLegacyMessages() {
+        mConvertLegacy = false;
+        Thread thread = new Thread(() -> {
+            long lastId = 0;
+            int batches = 0;
+            while (lastId >= 0) {
+                lastId = MessageDb.convertLegacyContent(getWritableDatabase(), lastId, CONVERT_BATCH_SIZE);
+                batches++;
+            }
+            Log.d(TAG, "Converted legacy messages in " + batches + " batches");
+        }, "db-convert");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Add messages saved before the search or entity index existed to the indexes on a background thread.
+     * Interrupted backfill is resumed when the database is opened next time.
+     */
+    private void backfillIndexes(boolean search, boolean entities) {
+        Thread thread = new Thread(() -> {
+            if (search) {
+                long lastId = 0;
+                int batches = 0;
+                while (lastId >= 0) {
+                    lastId = MessageSearchDb.backfill(getWritableDatabase(), lastId, INDEX_BACKFILL_BATCH_SIZE);
+                    batches++;
+                }
+                if (lastId == -1) {
+                    MessageSearchDb.setBackfilled(getWritableDatabase());
+                    Log.d(TAG, "Indexed messages in " + batches + " batches");
+                }
+            }
+            if (entities) {
+                long lastId = 0;
+                int batches = 0;
+                while (lastId >= 0) {
+                    lastId = MessageEntityDb.backfill(getWritableDatabase(), lastId, INDEX_BACKFILL_BATCH_SIZE);
+                    batches++;
+                }
+                if (lastId == -1) {
+                    MessageEntityDb.setBackfilled(getWritableDatabase());
+                    Log.d(TAG, "Indexed entities in " + batches + " batches");
+                }
+            }
+        }, "db-index");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         onUpgrade(db, oldVersion, newVersion);
@@ -273,6 +390,7 @@ public class BaseDb extends SQLiteOpenHelper {
     }
 
     void clearDb() {
+        mRenderCache.clear();
         SQLiteDatabase db = sInstance.getWritableDatabase();
         MessageDb.truncateTable(db);
         SubscriberDb.truncateTable(db);
@@ -333,6 +451,31 @@ public class BaseDb extends SQLiteOpenHelper {
         return mAcc != null ? mAcc.id : -1;
     }
 
+    /**
+     * Get registry of compiled statements and parameterized queries.
+     */
+    StatementRegistry getStatements() {
+        return mStatements;
+    }
+
+    /**
+     * Get cache of formatted message content.
+     */
+    public RenderCache getRenderCache() {
+        return mRenderCache;
+    }
+
+    /**
+     * Get timing counters of the hot DB statements, sorted by total time spent, descending.
+     */
+    public List<StatementRegistry.StatementStats> getStatementStats() {
+        return mStatements.getStats();
+    }
+
+    public void resetStatementStats() {
+        mStatements.resetStats();
+    }
+
     public enum Status {
         // Status undefined/not set.
         UNDEFINED(0),
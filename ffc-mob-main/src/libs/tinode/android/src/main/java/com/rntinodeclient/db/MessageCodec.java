@@ -0,0 +1,401 @@
+package com.rntinodeclient.db;
+
+import android.database.Cursor;
+import android.util.Base64;
+import android.util.Log;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.tinode.tinodesdk.Tinode;
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Compact binary encoding of message content (Drafty) and message headers stored as BLOBs.
+ * <p>
+ * Layout: version byte, kind byte, then the payload. Strings are length-prefixed UTF-8, integers are
+ * zigzag varints. Values in entity data and headers are tagged. Rows written by older versions are TEXT
+ * in "canonical.class.Name;json" format and are still decoded with {@link BaseDb#deserialize(String)}.
+ * <p>
+ * Decoded values match what the JSON round trip produces: whole numbers are Integer or Long,
+ * maps are LinkedHashMap, arrays are ArrayList, byte arrays are base64-encoded strings.
+ */
+class MessageCodec {
+    private static final String TAG = "MessageCodec";
+
+    private static final byte VERSION = 1;
+
+    private static final byte KIND_DRAFTY = 'D';
+    private static final byte KIND_HEAD = 'H';
+
+    private static final byte T_NULL = 0;
+    private static final byte T_FALSE = 1;
+    private static final byte T_TRUE = 2;
+    private static final byte T_INT = 3;
+    private static final byte T_DOUBLE = 4;
+    private static final byte T_STRING = 5;
+    private static final byte T_BYTES = 6;
+    private static final byte T_LIST = 7;
+    private static final byte T_MAP = 8;
+    // Anything else, serialized as JSON.
+    private static final byte T_JSON = 9;
+
+    /**
+     * Encode message content.
+     *
+     * @return encoded content or null if content is null.
+     */
+    static byte[] encodeContent(Drafty content) {
+        if (content == null) {
+            return null;
+        }
+        Writer w = new Writer(KIND_DRAFTY);
+        w.string(content.txt);
+        Drafty.Style[] fmt = content.fmt;
+        int count = 0;
+        if (fmt != null) {
+            for (Drafty.Style st : fmt) {
+                if (st != null) {
+                    count++;
+                }
+            }
+        }
+        // Null styles are skipped: nothing refers to them.
+        w.varint(count);
+        if (count > 0) {
+            for (Drafty.Style st : fmt) {
+                if (st == null) {
+                    continue;
+                }
+                w.string(st.tp);
+                w.signed(st.at);
+                w.signed(st.len);
+                // 0 means no key.
+                w.varint(st.key != null ? st.key + 1L : 0);
+            }
+        }
+        Drafty.Entity[] ent = content.ent;
+        w.varint(ent != null ? ent.length : 0);
+        if (ent != null) {
+            for (Drafty.Entity e : ent) {
+                // Null entities are written as empty ones to keep the indexes styles refer to.
+                w.string(e != null ? e.tp : null);
+                w.value(e != null ? e.data : null);
+            }
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * Encode message headers.
+     *
+     * @return encoded headers or null if head is null.
+     */
+    static byte[] encodeHead(Map<String, Object> head) {
+        if (head == null) {
+            return null;
+        }
+        Writer w = new Writer(KIND_HEAD);
+        w.value(head);
+        return w.toByteArray();
+    }
+
+    /**
+     * Read undecoded column value: byte[] in binary format, String in legacy JSON format or null.
+     */
+    static Object readRaw(Cursor c, int column) {
+        switch (c.getType(column)) {
+            case Cursor.FIELD_TYPE_BLOB:
+                return c.getBlob(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return c.getString(column);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decode content returned by {@link #readRaw(Cursor, int)}.
+     */
+    static Drafty decodeContent(Object raw) {
+        if (raw instanceof byte[]) {
+            return decodeBinaryContent((byte[]) raw);
+        }
+        return raw != null ? BaseDb.deserialize((String) raw) : null;
+    }
+
+    /**
+     * Decode headers returned by {@link #readRaw(Cursor, int)}.
+     */
+    static Map<String, Object> decodeHead(Object raw) {
+        if (raw instanceof byte[]) {
+            return decodeBinaryHead((byte[]) raw);
+        }
+        return raw != null ? BaseDb.deserialize((String) raw) : null;
+    }
+
+    /**
+     * Decode content written by {@link #encodeContent(Drafty)}.
+     */
+    private static Drafty decodeBinaryContent(byte[] data) {
+        Reader r = Reader.open(data, KIND_DRAFTY);
+        if (r == null) {
+            return null;
+        }
+        try {
+            Drafty d = new Drafty();
+            d.txt = r.string();
+            int count = r.length();
+            if (count > 0) {
+                d.fmt = new Drafty.Style[count];
+                for (int i = 0; i < count; i++) {
+                    Drafty.Style st = new Drafty.Style();
+                    st.tp = r.string();
+                    st.at = (int) r.signed();
+                    st.len = (int) r.signed();
+                    long key = r.varint();
+                    st.key = key > 0 ? (int) (key - 1) : null;
+                    d.fmt[i] = st;
+                }
+            }
+            count = r.length();
+            if (count > 0) {
+                d.ent = new Drafty.Entity[count];
+                for (int i = 0; i < count; i++) {
+                    Drafty.Entity e = new Drafty.Entity();
+                    e.tp = r.string();
+                    //noinspection unchecked
+                    e.data = (Map<String, Object>) r.value();
+                    d.ent[i] = e;
+                }
+            }
+            return d;
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "Failed to decode content", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decode headers written by {@link #encodeHead(Map)}.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> decodeBinaryHead(byte[] data) {
+        Reader r = Reader.open(data, KIND_HEAD);
+        if (r == null) {
+            return null;
+        }
+        try {
+            Map<String, Object> head = (Map<String, Object>) r.value();
+            // Top-level headers were deserialized as HashMap.
+            return head != null ? new HashMap<>(head) : null;
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "Failed to decode head", ex);
+            return null;
+        }
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+        Writer(byte kind) {
+            super(64);
+            write(VERSION);
+            write(kind);
+        }
+
+        void varint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        void signed(long v) {
+            varint((v << 1) ^ (v >> 63));
+        }
+
+        // Length 0 is reserved for null.
+        void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length + 1L);
+            write(bytes, 0, bytes.length);
+        }
+
+        void value(Object v) {
+            if (v == null) {
+                write(T_NULL);
+            } else if (v instanceof Boolean) {
+                write((Boolean) v ? T_TRUE : T_FALSE);
+            } else if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+                write(T_INT);
+                signed(((Number) v).longValue());
+            } else if (v instanceof Double || v instanceof Float) {
+                write(T_DOUBLE);
+                long bits = Double.doubleToLongBits(((Number) v).doubleValue());
+                for (int i = 0; i < 8; i++) {
+                    write((int) (bits >>> (i * 8)));
+                }
+            } else if (v instanceof String || v instanceof Character) {
+                write(T_STRING);
+                string(v.toString());
+            } else if (v instanceof byte[]) {
+                byte[] bytes = (byte[]) v;
+                write(T_BYTES);
+                varint(bytes.length);
+                write(bytes, 0, bytes.length);
+            } else if (v instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) v;
+                write(T_MAP);
+                varint(map.size());
+                for (Map.Entry<?, ?> e : map.entrySet()) {
+                    string(String.valueOf(e.getKey()));
+                    value(e.getValue());
+                }
+            } else if (v instanceof Collection) {
+                Collection<?> list = (Collection<?>) v;
+                write(T_LIST);
+                varint(list.size());
+                for (Object item : list) {
+                    value(item);
+                }
+            } else if (v instanceof Object[]) {
+                Object[] list = (Object[]) v;
+                write(T_LIST);
+                varint(list.length);
+                for (Object item : list) {
+                    value(item);
+                }
+            } else {
+                write(T_JSON);
+                try {
+                    string(Tinode.jsonSerialize(v));
+                } catch (JsonProcessingException ex) {
+                    Log.w(TAG, "Failed to serialize " + v.getClass().getName(), ex);
+                    string(null);
+                }
+            }
+        }
+    }
+
+    private static class Reader {
+        private final byte[] mData;
+        private int mPos;
+
+        private Reader(byte[] data, int pos) {
+            mData = data;
+            mPos = pos;
+        }
+
+        static Reader open(byte[] data, byte kind) {
+            if (data == null || data.length < 2) {
+                return null;
+            }
+            if (data[0] != VERSION || data[1] != kind) {
+                Log.w(TAG, "Unknown encoding " + data[0] + "/" + data[1]);
+                return null;
+            }
+            return new Reader(data, 2);
+        }
+
+        long varint() {
+            long result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mData[mPos++];
+                result |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+
+        long signed() {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        int length() {
+            return (int) varint();
+        }
+
+        String string() {
+            int len = length();
+            if (len == 0) {
+                return null;
+            }
+            len--;
+            String s = new String(mData, mPos, len, StandardCharsets.UTF_8);
+            mPos += len;
+            return s;
+        }
+
+        Object value() {
+            byte tag = mData[mPos++];
+            switch (tag) {
+                case T_NULL:
+                    return null;
+                case T_FALSE:
+                    return Boolean.FALSE;
+                case T_TRUE:
+                    return Boolean.TRUE;
+                case T_INT: {
+                    long v = signed();
+                    if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+                        return (int) v;
+                    }
+                    return v;
+                }
+                case T_DOUBLE: {
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits |= (long) (mData[mPos++] & 0xFF) << (i * 8);
+                    }
+                    return Double.longBitsToDouble(bits);
+                }
+                case T_STRING:
+                    return string();
+                case T_BYTES: {
+                    int len = length();
+                    String s = Base64.encodeToString(mData, mPos, len, Base64.NO_WRAP);
+                    mPos += len;
+                    return s;
+                }
+                case T_LIST: {
+                    int count = length();
+                    List<Object> list = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        list.add(value());
+                    }
+                    return list;
+                }
+                case T_MAP: {
+                    int count = length();
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        String key = string();
+                        map.put(key, value());
+                    }
+                    return map;
+                }
+                case T_JSON: {
+                    String json = string();
+                    return json != null ? Tinode.jsonDeserialize(json, "java.lang.Object") : null;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown value tag " + tag);
+            }
+        }
+    }
+}
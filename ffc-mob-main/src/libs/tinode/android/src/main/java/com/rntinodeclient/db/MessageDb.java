@@ -3,19 +3,24 @@ package com.rntinodeclient.db;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.content.CursorLoader;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Map;
 
 
 import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.model.Drafty;
 import co.tinode.tinodesdk.model.MsgRange;
 
 /**
@@ -28,8 +33,8 @@ import co.tinode.tinodesdk.model.MsgRange;
  * public String from; -> as user_id
  * public Date ts;
  * public int seq;
- * public Map head -> serialized into JSON;
- * public T content -> serialized into JSON;
+ * public Map head -> serialized by MessageCodec into a BLOB (legacy rows: JSON text);
+ * public T content -> serialized by MessageCodec into a BLOB (legacy rows: JSON text);
  */
 public class MessageDb implements BaseColumns {
     private static final String TAG = "MessageDb";
@@ -46,11 +51,11 @@ public class MessageDb implements BaseColumns {
     /**
      * Id of the originator of the message, references users._ID
      */
-    private static final String COLUMN_NAME_USER_ID = "user_id";
+    static final String COLUMN_NAME_USER_ID = "user_id";
     /**
      * Status of the message: unsent, delivered, deleted
      */
-    private static final String COLUMN_NAME_STATUS = "status";
+    static final String COLUMN_NAME_STATUS = "status";
     /**
      * Uid as string. Deserialized here to avoid a join.
      */
@@ -58,13 +63,13 @@ public class MessageDb implements BaseColumns {
     /**
      * Message timestamp
      */
-    private static final String COLUMN_NAME_TS = "ts";
+    static final String COLUMN_NAME_TS = "ts";
     /**
      * Server-issued sequence ID, integer, indexed. If the message represents
      * a deleted range, then <tt>seq</tt> is the lowest bound of the range;
      * the bound is closed (inclusive).
      */
-    private static final String COLUMN_NAME_SEQ = "seq";
+    static final String COLUMN_NAME_SEQ = "seq";
     /**
      * If message represents a deleted range, this is the upper bound of the range, NULL otherwise.
      * The bound is open (exclusive).
@@ -77,16 +82,16 @@ public class MessageDb implements BaseColumns {
     /**
      * If the message replaces another message, the ID of the message being replaced (from head).
      */
-    private static final String COLUMN_NAME_REPLACES_SEQ ="repl_seq";
+    static final String COLUMN_NAME_REPLACES_SEQ ="repl_seq";
     /**
      * Timestamp of the original message this message has replaced
      * (could be the same as tc, if it does not replace anything).
      */
-    private static final String COLUMN_NAME_EFFECTIVE_TS ="eff_ts";
+    static final String COLUMN_NAME_EFFECTIVE_TS ="eff_ts";
     /**
      * If not NULL, then this message is the latest in edit history and this is the seq ID of the message it replaced.
      */
-    private static final String COLUMN_NAME_EFFECTIVE_SEQ ="eff_seq";
+    static final String COLUMN_NAME_EFFECTIVE_SEQ ="eff_seq";
     /**
      * Serialized header.
      */
@@ -94,7 +99,19 @@ public class MessageDb implements BaseColumns {
     /**
      * Serialized message content
      */
-    private static final String COLUMN_NAME_CONTENT = "content";
+    static final String COLUMN_NAME_CONTENT = "content";
+    /**
+     * Serialized preview of the content, MESSAGE_PREVIEW_LENGTH characters long.
+     */
+    private static final String COLUMN_NAME_PREVIEW = "preview";
+    /**
+     * Plain text preview of the content, StoredMessage.PREVIEW_TEXT_LENGTH characters long.
+     */
+    private static final String COLUMN_NAME_PREVIEW_TEXT = "preview_text";
+    /**
+     * Kinds of entities in the content, StoredMessage.FLAG_* bits.
+     */
+    static final String COLUMN_NAME_FLAGS = "flags";
     /**
      * SQL statement to create Messages table
      */
@@ -114,8 +131,25 @@ public class MessageDb implements BaseColumns {
                     COLUMN_NAME_REPLACES_SEQ + " INT," +
                     COLUMN_NAME_EFFECTIVE_TS + " INT," +
                     COLUMN_NAME_EFFECTIVE_SEQ + " INT," +
-                    COLUMN_NAME_HEAD + " TEXT," +
-                    COLUMN_NAME_CONTENT + " TEXT)";
+                    COLUMN_NAME_HEAD + " BLOB," +
+                    COLUMN_NAME_CONTENT + " BLOB," +
+                    COLUMN_NAME_PREVIEW + " BLOB," +
+                    COLUMN_NAME_PREVIEW_TEXT + " TEXT," +
+                    COLUMN_NAME_FLAGS + " INT)";
+
+    /**
+     * Add preview columns to an existing table.
+     */
+    static final String[] ADD_PREVIEW_COLUMNS = {
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_NAME_PREVIEW + " BLOB",
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_NAME_PREVIEW_TEXT + " TEXT",
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_NAME_FLAGS + " INT"
+    };
+    /**
+     * Drop stored preview text, so it's recomputed from the preview when read.
+     */
+    static final String CLEAR_PREVIEW_TEXT =
+            "UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_PREVIEW_TEXT + "=NULL";
 
     static final int COLUMN_IDX_ID = 0;
     static final int COLUMN_IDX_TOPIC_ID = 1;
@@ -131,8 +165,11 @@ public class MessageDb implements BaseColumns {
     static final int COLUMN_IDX_EFFECTIVE_SEQ = 11;
     static final int COLUMN_IDX_HEAD = 12;
     static final int COLUMN_IDX_CONTENT = 13;
+    static final int COLUMN_IDX_PREVIEW = 14;
+    static final int COLUMN_IDX_PREVIEW_TEXT = 15;
+    static final int COLUMN_IDX_FLAGS = 16;
     // Used in JOIN.
-    static final int COLUMN_IDX_TOPIC_NAME = 14;
+    static final int COLUMN_IDX_TOPIC_NAME = 17;
 
     /**
      * SQL statement to drop Messages table.
@@ -162,6 +199,110 @@ public class MessageDb implements BaseColumns {
                     " ON " + TABLE_NAME + " (" +
                     COLUMN_NAME_TOPIC_ID + "," +
                     COLUMN_NAME_EFFECTIVE_SEQ + " DESC) WHERE " + COLUMN_NAME_EFFECTIVE_SEQ + " IS NOT NULL";
+
+    /**
+     * ID of the latest active message in topic 'topic_id', resolved with the topic-eff_seq index.
+     */
+    private static String latestMessageId(String topicId) {
+        return "(SELECT " + _ID + " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId +
+                " AND " + COLUMN_NAME_EFFECTIVE_SEQ + " IS NOT NULL" +
+                " AND " + COLUMN_NAME_DEL_ID + " IS NULL" +
+                " ORDER BY " + COLUMN_NAME_EFFECTIVE_SEQ + " DESC LIMIT 1)";
+    }
+
+    private static String updateLastMessage(String topicId) {
+        return "UPDATE " + TopicDb.TABLE_NAME +
+                " SET " + TopicDb.COLUMN_NAME_LAST_MSG_ID + "=" + latestMessageId(topicId) +
+                " WHERE " + TopicDb._ID + "=" + topicId + ";";
+    }
+
+    /**
+     * Triggers which keep topics.last_msg_id pointing to the latest message in the topic.
+     */
+    static final String[] CREATE_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS messages_last_insert AFTER INSERT ON " + TABLE_NAME +
+                    " BEGIN " + updateLastMessage("NEW." + COLUMN_NAME_TOPIC_ID) + " END",
+            "CREATE TRIGGER IF NOT EXISTS messages_last_update AFTER UPDATE OF " +
+                    COLUMN_NAME_EFFECTIVE_SEQ + "," + COLUMN_NAME_DEL_ID + " ON " + TABLE_NAME +
+                    " BEGIN " + updateLastMessage("NEW." + COLUMN_NAME_TOPIC_ID) + " END",
+            "CREATE TRIGGER IF NOT EXISTS messages_last_delete AFTER DELETE ON " + TABLE_NAME +
+                    " BEGIN " + updateLastMessage("OLD." + COLUMN_NAME_TOPIC_ID) + " END"
+    };
+
+    /**
+     * Populate topics.last_msg_id for all topics.
+     */
+    static final String BACKFILL_LAST_MESSAGE =
+            "UPDATE " + TopicDb.TABLE_NAME +
+                    " SET " + TopicDb.COLUMN_NAME_LAST_MSG_ID + "=" +
+                    // Unary '+' drops INTEGER affinity of topics._id, otherwise the index on topic_id is not used.
+                    latestMessageId("+" + TopicDb.TABLE_NAME + "." + TopicDb._ID);
+
+    /**
+     * Convert one batch of messages written by older versions: re-encode head and content stored
+     * as JSON text into the binary format and compute missing previews.
+     * Rows are processed in _id order in a single transaction.
+     *
+     * @param afterId process only messages with _id greater than this value.
+     * @param limit   maximum number of messages in the batch.
+     * @return _id of the last processed message or -1 if no legacy messages are left.
+     */
+    static long convertLegacyContent(SQLiteDatabase db, long afterId, int limit) {
+        long lastId = -1;
+        db.beginTransaction();
+        try (Cursor c = db.rawQuery("SELECT " + _ID + "," + COLUMN_NAME_HEAD + "," + COLUMN_NAME_CONTENT +
+                " FROM " + TABLE_NAME +
+                " WHERE " + _ID + ">" + afterId +
+                " AND (typeof(" + COLUMN_NAME_HEAD + ")='text' OR typeof(" + COLUMN_NAME_CONTENT + ")='text'" +
+                " OR (" + COLUMN_NAME_CONTENT + " IS NOT NULL AND " + COLUMN_NAME_FLAGS + " IS NULL))" +
+                " ORDER BY " + _ID + " LIMIT " + limit, null)) {
+            while (c.moveToNext()) {
+                lastId = c.getLong(0);
+                // Guard on typeof(): the row may have been rewritten in the binary format concurrently.
+                if (c.getType(1) == Cursor.FIELD_TYPE_STRING) {
+                    Map<String, Object> head = BaseDb.deserialize(c.getString(1));
+                    if (head != null) {
+                        db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_HEAD + "=?" +
+                                " WHERE " + _ID + "=" + lastId + " AND typeof(" + COLUMN_NAME_HEAD + ")='text'",
+                                new Object[]{MessageCodec.encodeHead(head)});
+                    }
+                }
+                Drafty content = MessageCodec.decodeContent(MessageCodec.readRaw(c, 2));
+                if (content != null) {
+                    ContentValues values = new ContentValues();
+                    if (c.getType(2) == Cursor.FIELD_TYPE_STRING) {
+                        values.put(COLUMN_NAME_CONTENT, MessageCodec.encodeContent(content));
+                    }
+                    putPreview(values, content, StoredMessage.contentFlags(content));
+                    // Skip if the content was replaced concurrently: the new content has the preview already.
+                    db.update(TABLE_NAME, values, _ID + "=" + lastId + " AND " + COLUMN_NAME_FLAGS + " IS NULL", null);
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception ex) {
+            Log.w(TAG, "Failed to convert messages", ex);
+            lastId = -1;
+        } finally {
+            db.endTransaction();
+        }
+        return lastId;
+    }
+
+    /**
+     * Add preview columns computed from the content.
+     *
+     * @return preview text.
+     */
+    private static String putPreview(ContentValues values, Drafty content, int flags) {
+        Drafty preview = StoredMessage.makePreview(content);
+        String text = StoredMessage.makePreviewText(content);
+        values.put(COLUMN_NAME_PREVIEW, MessageCodec.encodeContent(preview));
+        values.put(COLUMN_NAME_PREVIEW_TEXT, text);
+        values.put(COLUMN_NAME_FLAGS, flags);
+        return text;
+    }
+
     /**
      * Save message to DB.
      *
@@ -184,47 +325,7 @@ public class MessageDb implements BaseColumns {
 
         db.beginTransaction();
         try {
-            int effSeq = msg.getReplacementSeqId();
-            long effTs = -1;
-            if (effSeq > 0) {
-                // This is a replacement message. Two cases:
-                // 1. The original message is already received and stored in DB. It should be replaced with this one.
-                // 2. The original message is not in the DB and thus this message should not be shown to the user.
-                Cursor c = getMessageBySeq(db, msg.topicId, effSeq);
-                StoredMessage latestMsg = null;
-                if (c.moveToFirst()) {
-                    latestMsg = StoredMessage.readMessage(c, 0);
-                    effTs = latestMsg.ts.getTime();
-                }
-                c.close();
-
-                // Replacement message.
-                if (latestMsg != null && (msg.seq == 0 || msg.seq > latestMsg.seq)) {
-                    // Case 1: newer version while the original is found.
-                    // Clear the effective_seq (invalidate) of all older effective message records.
-                    deactivateMessageVersion(db, msg.topicId, effSeq);
-                } else {
-                    // Case 2: original not found. Do not set effective seq.
-                    effSeq = -1;
-                }
-            } else {
-                // This is not a replacement message. Three cases:
-                // 1. This is a never edited message.
-                // 2. Edited message but edits are not in the database.
-                // 3. Edited and edits are in the database already.
-                effTs = msg.ts != null ? msg.ts.getTime() : -1;
-                effSeq = msg.seq;
-                if (msg.seq > 0) {
-                    // Check if there are newer versions of this message and activate the latest one.
-                    if (activateMessageVersion(db, msg.topicId, msg.seq, effTs)) {
-                        // If activated, then this message has been replaced by a newer one.
-                        effSeq = -1;
-                    }
-                }
-            }
-
-            msg.id = insertRaw(db, topic, msg, effSeq, effTs);
-            if (msg.id > 0) {
+            if (insertInTransaction(db, topic, msg) > 0) {
                 db.setTransactionSuccessful();
             }
         } catch (SQLiteConstraintException ex) {
@@ -239,6 +340,57 @@ public class MessageDb implements BaseColumns {
         return msg.id;
     }
 
+    /**
+     * Save message to DB and update message versions. Must be called within a transaction.
+     *
+     * @return ID of the newly added message
+     * @throws SQLiteConstraintException if the message is a duplicate.
+     */
+    static long insertInTransaction(SQLiteDatabase db, Topic topic, StoredMessage msg) {
+        int effSeq = msg.getReplacementSeqId();
+        long effTs = -1;
+        if (effSeq > 0) {
+            // This is a replacement message. Two cases:
+            // 1. The original message is already received and stored in DB. It should be replaced with this one.
+            // 2. The original message is not in the DB and thus this message should not be shown to the user.
+            Cursor c = getMessageBySeq(db, msg.topicId, effSeq);
+            StoredMessage latestMsg = null;
+            if (c.moveToFirst()) {
+                latestMsg = StoredMessage.readMessage(c, 0);
+                effTs = latestMsg.ts.getTime();
+            }
+            c.close();
+
+            // Replacement message.
+            if (latestMsg != null && (msg.seq == 0 || msg.seq > latestMsg.seq)) {
+                // Case 1: newer version while the original is found.
+                // Clear the effective_seq (invalidate) of all older effective message records.
+                deactivateMessageVersion(db, msg.topicId, effSeq);
+            } else {
+                // Case 2: original not found. Do not set effective seq.
+                effSeq = -1;
+            }
+        } else {
+            // This is not a replacement message. Three cases:
+            // 1. This is a never edited message.
+            // 2. Edited message but edits are not in the database.
+            // 3. Edited and edits are in the database already.
+            effTs = msg.ts != null ? msg.ts.getTime() : -1;
+            effSeq = msg.seq;
+            if (msg.seq > 0) {
+                // Check if there are newer versions of this message and activate the latest one.
+                if (activateMessageVersion(db, msg.topicId, msg.seq, effTs)) {
+                    // If activated, then this message has been replaced by a newer one.
+                    effSeq = -1;
+                    MessageEntityDb.activated(db, msg.topicId, msg.seq, effTs);
+                }
+            }
+        }
+
+        msg.id = insertRaw(db, topic, msg, effSeq, effTs);
+        return msg.id;
+    }
+
     /**
      * Save message to DB
      *
@@ -283,25 +435,47 @@ public class MessageDb implements BaseColumns {
         if (withEffSeq > 0) {
             values.put(COLUMN_NAME_EFFECTIVE_SEQ, withEffSeq);
         }
-        values.put(COLUMN_NAME_HEAD, BaseDb.serialize(msg.head));
-        values.put(COLUMN_NAME_CONTENT, BaseDb.serialize(msg.content));
-
-        return db.insertOrThrow(TABLE_NAME, null, values);
+        values.put(COLUMN_NAME_HEAD, MessageCodec.encodeHead(msg.getHead()));
+        Drafty content = msg.getContent();
+        values.put(COLUMN_NAME_CONTENT, MessageCodec.encodeContent(content));
+        int flags = StoredMessage.contentFlags(content);
+        msg.setPreview(putPreview(values, content, flags), flags);
+
+        long id = db.insertOrThrow(TABLE_NAME, null, values);
+        MessageSearchDb.insert(db, id, content);
+        MessageEntityDb.insert(db, id, content);
+        return id;
     }
 
-    static boolean updateStatusAndContent(SQLiteDatabase db, long msgId, BaseDb.Status status, Object content) {
+    static boolean updateStatusAndContent(SQLiteDatabase db, long msgId, BaseDb.Status status, Drafty content) {
         ContentValues values = new ContentValues();
         if (status != BaseDb.Status.UNDEFINED) {
             values.put(COLUMN_NAME_STATUS, status.value);
         }
         if (content != null) {
-            values.put(COLUMN_NAME_CONTENT, BaseDb.serialize(content));
+            values.put(COLUMN_NAME_CONTENT, MessageCodec.encodeContent(content));
+            putPreview(values, content, StoredMessage.contentFlags(content));
         }
 
-        if (values.size() > 0) {
+        if (values.size() == 0) {
+            return false;
+        }
+        if (content == null) {
             return db.update(TABLE_NAME, values, _ID + "=" + msgId, null) > 0;
         }
-        return false;
+        boolean updated = false;
+        db.beginTransaction();
+        try {
+            if (db.update(TABLE_NAME, values, _ID + "=" + msgId, null) > 0) {
+                MessageSearchDb.update(db, msgId, content);
+                MessageEntityDb.update(db, msgId, content);
+                updated = true;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return updated;
     }
 
     static void delivered(SQLiteDatabase db, long msgId, Date timestamp, int seq) {
@@ -317,6 +491,7 @@ public class MessageDb implements BaseColumns {
                         + COLUMN_NAME_REPLACES_SEQ + " ELSE " + seq + " END " +
                 "WHERE " + _ID + "=" + msgId;
         db.execSQL(sql);
+        MessageEntityDb.delivered(db, msgId, seq);
     }
 
     // Clear COLUMN_NAME_EFFECTIVE_SEQ to remove message from display.
@@ -377,18 +552,57 @@ public class MessageDb implements BaseColumns {
     public static Cursor query(SQLiteDatabase db, long topicId, int pageCount, int pageSize) {
         final String sql = "SELECT * FROM " + TABLE_NAME +
                 " WHERE "
-                + COLUMN_NAME_TOPIC_ID + "=" + topicId +
+                + COLUMN_NAME_TOPIC_ID + "=?" +
                 " AND "
                 + COLUMN_NAME_EFFECTIVE_SEQ + " IS NOT NULL" +
                 " ORDER BY "
                 + COLUMN_NAME_EFFECTIVE_SEQ + " DESC" +
-                " LIMIT " + (pageCount * pageSize);
-        Log.w(TAG, sql);
-        return db.rawQuery(sql, null);
+                " LIMIT ?";
+        return BaseDb.getInstance().getStatements().query(db, "messages.query", sql,
+                topicId, pageCount * pageSize);
+    }
+
+    /**
+     * Query a page of messages older than the given effective seq ID, newest first.
+     * Uses the topic_id-eff_seq index: the cost depends on the page size only, not on the position in history.
+     * Cursor must be closed after use.
+     *
+     * @param db      database to select from;
+     * @param topicId Tinode topic ID (topics._id) to select from;
+     * @param effSeq  exclusive upper bound of the effective seq ID, {@link Long#MAX_VALUE} for the latest messages;
+     * @param limit   maximum number of messages to return.
+     * @return cursor with the messages.
+     */
+    static Cursor queryBefore(SQLiteDatabase db, long topicId, long effSeq, int limit) {
+        final String sql = "SELECT * FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_TOPIC_ID + "=?" +
+                " AND " + COLUMN_NAME_EFFECTIVE_SEQ + "<?" +
+                " ORDER BY " + COLUMN_NAME_EFFECTIVE_SEQ + " DESC" +
+                " LIMIT ?";
+        return BaseDb.getInstance().getStatements().query(db, "messages.before", sql, topicId, effSeq, limit);
     }
 
     /**
-     * Load a single message by database ID.
+     * Query a page of messages newer than the given effective seq ID, oldest first.
+     * Cursor must be closed after use.
+     *
+     * @param db      database to select from;
+     * @param topicId Tinode topic ID (topics._id) to select from;
+     * @param effSeq  exclusive lower bound of the effective seq ID;
+     * @param limit   maximum number of messages to return.
+     * @return cursor with the messages.
+     */
+    static Cursor queryAfter(SQLiteDatabase db, long topicId, long effSeq, int limit) {
+        final String sql = "SELECT * FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_TOPIC_ID + "=?" +
+                " AND " + COLUMN_NAME_EFFECTIVE_SEQ + ">?" +
+                " ORDER BY " + COLUMN_NAME_EFFECTIVE_SEQ + " ASC" +
+                " LIMIT ?";
+        return BaseDb.getInstance().getStatements().query(db, "messages.after", sql, topicId, effSeq, limit);
+    }
+
+    /**
+     * Load a single message by database ID, together with the name of its topic.
      * Cursor must be closed after use.
      *
      * @param db    database to select from;
@@ -396,7 +610,12 @@ public class MessageDb implements BaseColumns {
      * @return cursor with the message (close after use!).
      */
     static Cursor getMessageById(SQLiteDatabase db, long msgId) {
-        return db.rawQuery("SELECT * FROM " + TABLE_NAME + " WHERE _id=" + msgId, null);
+        return BaseDb.getInstance().getStatements().query(db, "messages.byId",
+                "SELECT m.*, t." + TopicDb.COLUMN_NAME_TOPIC + " AS topic" +
+                        " FROM " + TABLE_NAME + " AS m" +
+                        " LEFT JOIN " + TopicDb.TABLE_NAME + " AS t" +
+                            " ON t." + TopicDb._ID + "=m." + COLUMN_NAME_TOPIC_ID +
+                        " WHERE m." + _ID + "=?", msgId);
     }
 
     /**
@@ -409,28 +628,34 @@ public class MessageDb implements BaseColumns {
      * @return cursor with the message (close after use!).
      */
     static Cursor getMessageBySeq(SQLiteDatabase db, long topicId, int effSeq) {
-        return db.rawQuery("SELECT * FROM " + TABLE_NAME +
-                    " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId + " AND " +
-                    COLUMN_NAME_EFFECTIVE_SEQ + "=" + effSeq, null);
+        return BaseDb.getInstance().getStatements().query(db, "messages.bySeq",
+                "SELECT * FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_TOPIC_ID + "=? AND " +
+                    COLUMN_NAME_EFFECTIVE_SEQ + "=?", topicId, effSeq);
     }
     /**
      * Get a list of the latest message for every topic, sent or received.
-     * See explanation here: https://stackoverflow.com/a/2111420
+     * Uses topics.last_msg_id, so the cost depends on the number of topics, not messages.
      */
     static Cursor getLatestMessages(SQLiteDatabase db) {
-        final String sql = "SELECT m1.*, t." + TopicDb.COLUMN_NAME_TOPIC + " AS topic" +
-                " FROM " + TABLE_NAME + " AS m1" +
-                " LEFT JOIN " + TABLE_NAME + " AS m2" +
-                    " ON (m1." + COLUMN_NAME_TOPIC_ID + "=m2." + COLUMN_NAME_TOPIC_ID +
-                        " AND m1." + COLUMN_NAME_EFFECTIVE_SEQ + "<m2." + COLUMN_NAME_EFFECTIVE_SEQ + ")" +
-                " LEFT JOIN " + TopicDb.TABLE_NAME + " AS t" +
-                    " ON m1." + COLUMN_NAME_TOPIC_ID + "=t." + TopicDb._ID +
-                " WHERE m1." + COLUMN_NAME_DEL_ID + " IS NULL" +
-                    " AND m2." + COLUMN_NAME_DEL_ID + " IS NULL" +
-                    " AND m2." + _ID + " IS NULL" +
-                    " AND m1." + COLUMN_NAME_EFFECTIVE_SEQ + " IS NOT NULL";
+        final String sql = "SELECT m.*, t." + TopicDb.COLUMN_NAME_TOPIC + " AS topic" +
+                " FROM " + TopicDb.TABLE_NAME + " AS t" +
+                " JOIN " + TABLE_NAME + " AS m" +
+                    " ON m." + _ID + "=t." + TopicDb.COLUMN_NAME_LAST_MSG_ID;
 
-        return db.rawQuery(sql, null);
+        return BaseDb.getInstance().getStatements().query(db, "messages.latestAll", sql);
+    }
+
+    /**
+     * Get the latest message in the given topic.
+     */
+    static Cursor getLatestMessage(SQLiteDatabase db, long topicId) {
+        final String sql = "SELECT m.* FROM " + TopicDb.TABLE_NAME + " AS t" +
+                " JOIN " + TABLE_NAME + " AS m" +
+                    " ON m." + _ID + "=t." + TopicDb.COLUMN_NAME_LAST_MSG_ID +
+                " WHERE t." + TopicDb._ID + "=?";
+
+        return BaseDb.getInstance().getStatements().query(db, "messages.latest", sql, topicId);
     }
 
     /**
@@ -443,11 +668,11 @@ public class MessageDb implements BaseColumns {
     static Cursor queryUnsent(SQLiteDatabase db, long topicId) {
         final String sql = "SELECT * FROM " + TABLE_NAME +
                 " WHERE " +
-                COLUMN_NAME_TOPIC_ID + "=" + topicId +
+                COLUMN_NAME_TOPIC_ID + "=?" +
                 " AND " + COLUMN_NAME_STATUS + "=" + BaseDb.Status.QUEUED.value +
                 " ORDER BY " + COLUMN_NAME_TS;
 
-        return db.rawQuery(sql, null);
+        return BaseDb.getInstance().getStatements().query(db, "messages.unsent", sql, topicId);
     }
 
     /**
@@ -466,11 +691,11 @@ public class MessageDb implements BaseColumns {
                 COLUMN_NAME_SEQ + "," +
                 COLUMN_NAME_HIGH +
                 " FROM " + TABLE_NAME +
-                " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId +
-                " AND " + COLUMN_NAME_STATUS + "=" + status.value +
+                " WHERE " + COLUMN_NAME_TOPIC_ID + "=?" +
+                " AND " + COLUMN_NAME_STATUS + "=?" +
                 " ORDER BY " + COLUMN_NAME_SEQ;
 
-        return db.rawQuery(sql, null);
+        return BaseDb.getInstance().getStatements().query(db, "messages.deleted", sql, topicId, status.value);
     }
 
     /**
@@ -831,38 +1056,175 @@ public class MessageDb implements BaseColumns {
         return cursor.getLong(0);
     }
 
+    /**
+     * Bulk insert of messages received from the server, e.g. during history sync.
+     * Statements are compiled once and reused for every message in the batch.
+     * Must be used within a transaction and closed after use.
+     */
+    static class BatchInserter implements Closeable {
+        private final SQLiteDatabase mDb;
+        private final SQLiteStatement mExists;
+        private final SQLiteStatement mActivate;
+        private final SQLiteStatement mInsert;
+        private final SQLiteStatement mIndex;
+        private final SQLiteStatement mEntities;
+
+        BatchInserter(SQLiteDatabase db) {
+            mDb = db;
+            mExists = db.compileStatement("SELECT COUNT(*) FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_TOPIC_ID + "=? AND " + COLUMN_NAME_SEQ + "=?");
+            mActivate = db.compileStatement("UPDATE " + TABLE_NAME + " SET " +
+                    COLUMN_NAME_EFFECTIVE_SEQ + "=?," + COLUMN_NAME_EFFECTIVE_TS + "=?" +
+                    " WHERE " + _ID + "=" +
+                    "(SELECT " + _ID + " FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_REPLACES_SEQ + "=? AND " + COLUMN_NAME_TOPIC_ID + "=?" +
+                    " ORDER BY " + COLUMN_NAME_SEQ + " DESC LIMIT 1)");
+            mInsert = db.compileStatement("INSERT INTO " + TABLE_NAME + " (" +
+                    COLUMN_NAME_TOPIC_ID + "," +
+                    COLUMN_NAME_USER_ID + "," +
+                    COLUMN_NAME_STATUS + "," +
+                    COLUMN_NAME_SENDER + "," +
+                    COLUMN_NAME_TS + "," +
+                    COLUMN_NAME_EFFECTIVE_TS + "," +
+                    COLUMN_NAME_SEQ + "," +
+                    COLUMN_NAME_REPLACES_SEQ + "," +
+                    COLUMN_NAME_EFFECTIVE_SEQ + "," +
+                    COLUMN_NAME_HEAD + "," +
+                    COLUMN_NAME_CONTENT + "," +
+                    COLUMN_NAME_PREVIEW + "," +
+                    COLUMN_NAME_PREVIEW_TEXT + "," +
+                    COLUMN_NAME_FLAGS + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+            mIndex = MessageSearchDb.compileInsert(db);
+            mEntities = MessageEntityDb.compileInsert(db);
+        }
+
+        /**
+         * Check if a message with the given seq ID is already stored.
+         */
+        boolean exists(long topicId, int seq) {
+            mExists.bindLong(1, topicId);
+            mExists.bindLong(2, seq);
+            return mExists.simpleQueryForLong() > 0;
+        }
+
+        /**
+         * Save message received from the server.
+         *
+         * @return ID of the newly added message
+         * @throws SQLiteConstraintException if the message is a duplicate.
+         */
+        long insert(Topic topic, StoredMessage msg) {
+            if (msg.seq <= 0 || msg.getReplacementSeqId() > 0 || msg.userId <= 0 || msg.topicId <= 0) {
+                // Rare cases: not yet sent or a replacement message. Use the generic path.
+                return insertInTransaction(mDb, topic, msg);
+            }
+
+            long effTs = msg.ts != null ? msg.ts.getTime() : -1;
+            int effSeq = msg.seq;
+            // Check if there are newer versions of this message and activate the latest one.
+            mActivate.bindLong(1, msg.seq);
+            mActivate.bindLong(2, effTs);
+            mActivate.bindLong(3, msg.seq);
+            mActivate.bindLong(4, msg.topicId);
+            if (mActivate.executeUpdateDelete() > 0) {
+                // If activated, then this message has been replaced by a newer one.
+                effSeq = -1;
+                MessageEntityDb.activated(mDb, msg.topicId, msg.seq, effTs);
+            }
+
+            mInsert.clearBindings();
+            mInsert.bindLong(1, msg.topicId);
+            mInsert.bindLong(2, msg.userId);
+            mInsert.bindLong(3, BaseDb.Status.SYNCED.value);
+            if (msg.from != null) {
+                mInsert.bindString(4, msg.from);
+            }
+            if (msg.ts != null) {
+                mInsert.bindLong(5, msg.ts.getTime());
+            }
+            if (effTs > 0) {
+                mInsert.bindLong(6, effTs);
+            }
+            mInsert.bindLong(7, msg.seq);
+            if (effSeq > 0) {
+                mInsert.bindLong(9, effSeq);
+            }
+            byte[] head = MessageCodec.encodeHead(msg.getHead());
+            if (head != null) {
+                mInsert.bindBlob(10, head);
+            }
+            Drafty content = msg.getContent();
+            byte[] bytes = MessageCodec.encodeContent(content);
+            if (bytes != null) {
+                mInsert.bindBlob(11, bytes);
+            }
+            Drafty preview = StoredMessage.makePreview(content);
+            if (preview != null) {
+                mInsert.bindBlob(12, MessageCodec.encodeContent(preview));
+            }
+            String previewText = StoredMessage.makePreviewText(content);
+            if (previewText != null) {
+                mInsert.bindString(13, previewText);
+            }
+            int flags = StoredMessage.contentFlags(content);
+            mInsert.bindLong(14, flags);
+            msg.setPreview(previewText, flags);
+
+            msg.id = mInsert.executeInsert();
+            MessageSearchDb.insert(mIndex, msg.id, content);
+            if ((flags & MessageEntityDb.ENTITY_FLAGS) != 0) {
+                MessageEntityDb.insert(mEntities, msg.id, content);
+            }
+            return msg.id;
+        }
+
+        @Override
+        public void close() {
+            mExists.close();
+            mActivate.close();
+            mInsert.close();
+            mIndex.close();
+            mEntities.close();
+        }
+    }
+
     /**
      * Message Loader for loading messages in background.
      */
     public static class Loader extends CursorLoader {
         private final long topicId;
-        private final int pageCount;
-        private final int pageSize;
+        private final MessageWindow window;
         final SQLiteDatabase mDb;
 
-        public Loader(Context context, String topic, int pageCount, int pageSize) {
+        public Loader(Context context, String topic, MessageWindow window) {
             super(context);
 
-            Log.w("RNTinodeClient", "Loader: " + topic + " " + pageCount + " " + pageSize);
-
             mDb = BaseDb.getInstance().getReadableDatabase();
             this.topicId = TopicDb.getId(mDb, topic);
-            this.pageCount = pageCount;
-            this.pageSize = pageSize;
-            
+            this.window = window;
+
             if (topicId < 0) {
                 Log.w(TAG, "Topic not found '" + topic + "'");
             }
         }
 
-        public String init () {
-            return topicId + " Ok ";
-        }
-
         @Override
         public Cursor loadInBackground() {
-            Log.w(TAG, "Called " + topicId);;
-            return query(mDb, topicId, pageCount, pageSize);
+            long generation = BaseDb.getInstance().getRenderCache().generation();
+            Cursor c = window.load(mDb, topicId);
+            return c != null ? new WindowCursor(c, generation) : null;
+        }
+    }
+
+    /**
+     * Messages loaded by {@link Loader} with the {@link RenderCache#generation()} taken before the query.
+     */
+    public static class WindowCursor extends CursorWrapper {
+        public final long renderGeneration;
+
+        WindowCursor(Cursor cursor, long renderGeneration) {
+            super(cursor);
+            this.renderGeneration = renderGeneration;
         }
     }
 }
@@ -0,0 +1,454 @@
+package com.rntinodeclient.db;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Index of the entities found in message content: attachments, links, mentions and hashtags.
+ * One row per entity with the key fields of its data, so galleries of shared media, lists of links
+ * and mentions are read with an index range scan instead of decoding every message.
+ * <p>
+ * Rows are added when messages are inserted, replaced when the content is updated, and deleted
+ * by the foreign key when the message is deleted. Messages saved before the index existed are
+ * added by a background backfill.
+ */
+public class MessageEntityDb implements BaseColumns {
+    private static final String TAG = "MessageEntityDb";
+
+    /**
+     * The name of the table.
+     */
+    static final String TABLE_NAME = "message_entities";
+    /**
+     * Message which contains the entity, references messages._ID.
+     */
+    private static final String COLUMN_NAME_MSG_ID = "msg_id";
+    /**
+     * Topic of the message, references topics._ID.
+     */
+    private static final String COLUMN_NAME_TOPIC_ID = "topic_id";
+    /**
+     * Seq ID of the message, updated when the message is delivered.
+     */
+    private static final String COLUMN_NAME_SEQ = "seq";
+    /**
+     * Effective timestamp of the message: of the original message for edited ones.
+     */
+    private static final String COLUMN_NAME_TS = "ts";
+    /**
+     * Entity type: IM, VD, AU, EX, LN, MN, HT.
+     */
+    private static final String COLUMN_NAME_TP = "tp";
+    /**
+     * URL of the out-of-band attachment or of the link.
+     */
+    private static final String COLUMN_NAME_REF = "ref";
+    /**
+     * Mime type of the attachment.
+     */
+    private static final String COLUMN_NAME_MIME = "mime";
+    /**
+     * Size of the attachment in bytes.
+     */
+    private static final String COLUMN_NAME_SIZE = "size";
+    /**
+     * File name of the attachment or text of the hashtag.
+     */
+    private static final String COLUMN_NAME_NAME = "name";
+    /**
+     * UID of the mentioned user.
+     */
+    private static final String COLUMN_NAME_UID = "uid";
+
+    static final String CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + " (" +
+                    _ID + " INTEGER PRIMARY KEY," +
+                    COLUMN_NAME_MSG_ID + " INTEGER" +
+                    " REFERENCES " + MessageDb.TABLE_NAME + "(" + MessageDb._ID + ") ON DELETE CASCADE," +
+                    COLUMN_NAME_TOPIC_ID + " INT," +
+                    COLUMN_NAME_SEQ + " INT," +
+                    COLUMN_NAME_TS + " INT," +
+                    COLUMN_NAME_TP + " TEXT," +
+                    COLUMN_NAME_REF + " TEXT," +
+                    COLUMN_NAME_MIME + " TEXT," +
+                    COLUMN_NAME_SIZE + " INT," +
+                    COLUMN_NAME_NAME + " TEXT," +
+                    COLUMN_NAME_UID + " TEXT)";
+
+    private static final String INDEX_NAME = "message_entities_msg_id";
+    private static final String INDEX_NAME_2 = "message_entities_topic_tp_ts";
+    private static final String INDEX_NAME_3 = "message_entities_uid_ts";
+    /**
+     * Entities of a message: used by updates and the foreign key.
+     */
+    static final String CREATE_INDEX =
+            "CREATE INDEX " + INDEX_NAME + " ON " + TABLE_NAME + " (" + COLUMN_NAME_MSG_ID + ")";
+    /**
+     * Entities of the given types in a topic, newest first.
+     */
+    static final String CREATE_INDEX_2 =
+            "CREATE INDEX " + INDEX_NAME_2 + " ON " + TABLE_NAME + " (" +
+                    COLUMN_NAME_TOPIC_ID + "," + COLUMN_NAME_TP + "," + COLUMN_NAME_TS + " DESC)";
+    /**
+     * Mentions of a user, newest first.
+     */
+    static final String CREATE_INDEX_3 =
+            "CREATE INDEX " + INDEX_NAME_3 + " ON " + TABLE_NAME + " (" +
+                    COLUMN_NAME_UID + "," + COLUMN_NAME_TS + " DESC) WHERE " + COLUMN_NAME_UID + " IS NOT NULL";
+
+    static final String DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
+    static final String DROP_INDEX = "DROP INDEX IF EXISTS " + INDEX_NAME;
+    static final String DROP_INDEX_2 = "DROP INDEX IF EXISTS " + INDEX_NAME_2;
+    static final String DROP_INDEX_3 = "DROP INDEX IF EXISTS " + INDEX_NAME_3;
+
+    // Topic, seq and effective timestamp are copied from the message row.
+    private static final String INSERT =
+            "INSERT INTO " + TABLE_NAME + " (" +
+                    COLUMN_NAME_MSG_ID + "," +
+                    COLUMN_NAME_TOPIC_ID + "," +
+                    COLUMN_NAME_SEQ + "," +
+                    COLUMN_NAME_TS + "," +
+                    COLUMN_NAME_TP + "," +
+                    COLUMN_NAME_REF + "," +
+                    COLUMN_NAME_MIME + "," +
+                    COLUMN_NAME_SIZE + "," +
+                    COLUMN_NAME_NAME + "," +
+                    COLUMN_NAME_UID + ")" +
+                    " SELECT " + MessageDb._ID + "," +
+                    MessageDb.COLUMN_NAME_TOPIC_ID + "," +
+                    MessageDb.COLUMN_NAME_SEQ + "," +
+                    "COALESCE(" + MessageDb.COLUMN_NAME_EFFECTIVE_TS + "," + MessageDb.COLUMN_NAME_TS + ")," +
+                    "?,?,?,?,?,?" +
+                    " FROM " + MessageDb.TABLE_NAME + " WHERE " + MessageDb._ID + "=?";
+
+    // Kinds of indexed entities as StoredMessage.FLAG_* bits.
+    static final int ENTITY_FLAGS = StoredMessage.FLAG_IMAGE | StoredMessage.FLAG_VIDEO |
+            StoredMessage.FLAG_AUDIO | StoredMessage.FLAG_FILE | StoredMessage.FLAG_LINK |
+            StoredMessage.FLAG_MENTION | StoredMessage.FLAG_HASHTAG;
+
+    static final int COLUMN_IDX_ID = 0;
+    static final int COLUMN_IDX_MSG_ID = 1;
+    static final int COLUMN_IDX_EFFECTIVE_SEQ = 2;
+    static final int COLUMN_IDX_TS = 3;
+    static final int COLUMN_IDX_TP = 4;
+    static final int COLUMN_IDX_REF = 5;
+    static final int COLUMN_IDX_MIME = 6;
+    static final int COLUMN_IDX_SIZE = 7;
+    static final int COLUMN_IDX_NAME = 8;
+    static final int COLUMN_IDX_UID = 9;
+
+    private static final String SELECT =
+            "SELECT e." + _ID + ",e." + COLUMN_NAME_MSG_ID + ",m." + MessageDb.COLUMN_NAME_EFFECTIVE_SEQ +
+                    ",e." + COLUMN_NAME_TS + ",e." + COLUMN_NAME_TP + ",e." + COLUMN_NAME_REF +
+                    ",e." + COLUMN_NAME_MIME + ",e." + COLUMN_NAME_SIZE + ",e." + COLUMN_NAME_NAME +
+                    ",e." + COLUMN_NAME_UID +
+                    " FROM " + TABLE_NAME + " AS e" +
+                    " JOIN " + MessageDb.TABLE_NAME + " AS m ON m." + MessageDb._ID + "=e." + COLUMN_NAME_MSG_ID;
+
+    // Keyset pagination: rows older than the last row of the previous page.
+    private static final String BEFORE =
+            " AND (e." + COLUMN_NAME_TS + "<? OR (e." + COLUMN_NAME_TS + "=? AND e." + _ID + "<?))" +
+                    // Only the latest versions of edited messages.
+                    " AND m." + MessageDb.COLUMN_NAME_EFFECTIVE_SEQ + " IS NOT NULL" +
+                    // Skip deleted messages.
+                    " AND m." + MessageDb.COLUMN_NAME_STATUS + "<" + BaseDb.Status.DELETED_HARD.value +
+                    " ORDER BY e." + COLUMN_NAME_TS + " DESC, e." + _ID + " DESC LIMIT ?";
+
+    /**
+     * Indexed entity and the message which contains it.
+     */
+    public static class StoredEntity {
+        // ID of the index row, used for paging together with the timestamp.
+        public final long id;
+        public final long msgId;
+        // Effective seq ID of the message, as shown in the chat.
+        public final int seq;
+        public final long ts;
+        public final String tp;
+        public final String ref;
+        public final String mime;
+        // Size in bytes or -1 if unknown.
+        public final long size;
+        public final String name;
+        public final String uid;
+
+        StoredEntity(Cursor c) {
+            id = c.getLong(COLUMN_IDX_ID);
+            msgId = c.getLong(COLUMN_IDX_MSG_ID);
+            seq = c.getInt(COLUMN_IDX_EFFECTIVE_SEQ);
+            ts = c.getLong(COLUMN_IDX_TS);
+            tp = c.getString(COLUMN_IDX_TP);
+            ref = c.getString(COLUMN_IDX_REF);
+            mime = c.getString(COLUMN_IDX_MIME);
+            size = c.isNull(COLUMN_IDX_SIZE) ? -1 : c.getLong(COLUMN_IDX_SIZE);
+            name = c.getString(COLUMN_IDX_NAME);
+            uid = c.getString(COLUMN_IDX_UID);
+        }
+    }
+
+    /**
+     * Create the table.
+     *
+     * @param empty the messages table is empty, no backfill is needed.
+     */
+    static void createTable(SQLiteDatabase db, boolean empty) {
+        db.execSQL(CREATE_TABLE);
+        db.execSQL(CREATE_INDEX);
+        db.execSQL(CREATE_INDEX_2);
+        db.execSQL(CREATE_INDEX_3);
+        if (empty) {
+            setBackfilled(db);
+        }
+    }
+
+    /**
+     * Check if all messages saved before the index was created have been indexed.
+     * Completion is marked by a row without a message.
+     */
+    static boolean isBackfilled(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_MSG_ID + " IS NULL", null) > 0;
+    }
+
+    static void setBackfilled(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO " + TABLE_NAME + " (" + COLUMN_NAME_MSG_ID + ") VALUES (NULL)");
+    }
+
+    /**
+     * Compiled insert statement for batch inserts.
+     */
+    static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement(INSERT);
+    }
+
+    /**
+     * Add entities of a message which is already saved.
+     *
+     * @param db      database to use.
+     * @param msgId   _id of the message.
+     * @param content message content.
+     */
+    static void insert(SQLiteDatabase db, long msgId, Drafty content) {
+        if (!hasIndexed(content)) {
+            return;
+        }
+        try (SQLiteStatement stmt = compileInsert(db)) {
+            insert(stmt, msgId, content);
+        }
+    }
+
+    static void insert(SQLiteStatement stmt, long msgId, Drafty content) {
+        Drafty.Entity[] entities = content != null ? content.getEntities() : null;
+        if (entities == null) {
+            return;
+        }
+        for (Drafty.Entity ent : entities) {
+            if (ent == null || ent.tp == null) {
+                continue;
+            }
+            Map<String, Object> data = ent.data;
+            String ref = null, mime = null, name = null, uid = null;
+            long size = -1;
+            switch (ent.tp) {
+                case "IM":
+                case "VD":
+                case "AU":
+                case "EX":
+                    ref = string(data, "ref");
+                    mime = string(data, "mime");
+                    name = string(data, "name");
+                    Object val = data != null ? data.get("size") : null;
+                    if (val instanceof Number) {
+                        size = ((Number) val).longValue();
+                    }
+                    break;
+                case "LN":
+                    ref = string(data, "url");
+                    break;
+                case "MN":
+                    uid = string(data, "val");
+                    break;
+                case "HT":
+                    name = string(data, "val");
+                    break;
+                default:
+                    continue;
+            }
+            stmt.clearBindings();
+            stmt.bindString(1, ent.tp);
+            bindNullable(stmt, 2, ref);
+            bindNullable(stmt, 3, mime);
+            if (size >= 0) {
+                stmt.bindLong(4, size);
+            }
+            bindNullable(stmt, 5, name);
+            bindNullable(stmt, 6, uid);
+            stmt.bindLong(7, msgId);
+            stmt.executeInsert();
+        }
+    }
+
+    /**
+     * Replace entities of the message, e.g. when a draft is updated.
+     */
+    static void update(SQLiteDatabase db, long msgId, Drafty content) {
+        db.delete(TABLE_NAME, COLUMN_NAME_MSG_ID + "=" + msgId, null);
+        insert(db, msgId, content);
+    }
+
+    /**
+     * Copy the new seq ID and effective timestamp of a delivered message.
+     */
+    static void delivered(SQLiteDatabase db, long msgId, int seq) {
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                COLUMN_NAME_SEQ + "=" + seq + "," +
+                COLUMN_NAME_TS + "=(SELECT COALESCE(" + MessageDb.COLUMN_NAME_EFFECTIVE_TS + "," +
+                    MessageDb.COLUMN_NAME_TS + ") FROM " + MessageDb.TABLE_NAME +
+                    " WHERE " + MessageDb._ID + "=" + msgId + ")" +
+                " WHERE " + COLUMN_NAME_MSG_ID + "=" + msgId);
+    }
+
+    /**
+     * Copy the timestamp of the original message to edits of it, when the original
+     * is received after the edits.
+     */
+    static void activated(SQLiteDatabase db, long topicId, int seq, long effTs) {
+        if (effTs <= 0) {
+            return;
+        }
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_TS + "=" + effTs +
+                " WHERE " + COLUMN_NAME_MSG_ID + " IN (SELECT " + MessageDb._ID +
+                    " FROM " + MessageDb.TABLE_NAME +
+                    " WHERE " + MessageDb.COLUMN_NAME_TOPIC_ID + "=" + topicId +
+                    " AND " + MessageDb.COLUMN_NAME_REPLACES_SEQ + "=" + seq + ")");
+    }
+
+    /**
+     * Index one batch of messages which may have entities but are not in the index yet.
+     * Rows are processed in _id order in a single transaction.
+     *
+     * @param afterId process only messages with _id greater than this value.
+     * @param limit   maximum number of messages in the batch.
+     * @return _id of the last processed message, -1 if all messages are indexed or -2 on failure.
+     */
+    static long backfill(SQLiteDatabase db, long afterId, int limit) {
+        long lastId = -1;
+        db.beginTransaction();
+        // Flags are NULL in rows written by older versions and not converted yet.
+        try (Cursor c = db.rawQuery("SELECT " + MessageDb._ID + "," + MessageDb.COLUMN_NAME_CONTENT +
+                " FROM " + MessageDb.TABLE_NAME + " AS m" +
+                " WHERE " + MessageDb._ID + ">" + afterId +
+                " AND " + MessageDb.COLUMN_NAME_CONTENT + " IS NOT NULL" +
+                " AND (" + MessageDb.COLUMN_NAME_FLAGS + " IS NULL OR " +
+                    MessageDb.COLUMN_NAME_FLAGS + "&" + ENTITY_FLAGS + "!=0)" +
+                " AND NOT EXISTS (SELECT 1 FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_MSG_ID + "=m." + MessageDb._ID + ")" +
+                " ORDER BY " + MessageDb._ID + " LIMIT " + limit, null);
+             SQLiteStatement insert = compileInsert(db)) {
+            while (c.moveToNext()) {
+                lastId = c.getLong(0);
+                insert(insert, lastId, MessageCodec.decodeContent(MessageCodec.readRaw(c, 1)));
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception ex) {
+            Log.w(TAG, "Failed to index entities", ex);
+            lastId = -2;
+        } finally {
+            db.endTransaction();
+        }
+        return lastId;
+    }
+
+    /**
+     * Get a page of entities of the given types in the topic, newest first.
+     *
+     * @param db       database to use.
+     * @param topicId  topics._id of the topic.
+     * @param types    entity types to find, e.g. IM and VD for a media gallery.
+     * @param beforeTs timestamp of the last entity of the previous page or {@link Long#MAX_VALUE}.
+     * @param beforeId ID of the last entity of the previous page or {@link Long#MAX_VALUE}.
+     * @param limit    maximum number of entities to return.
+     */
+    static List<StoredEntity> query(SQLiteDatabase db, long topicId, String[] types,
+                                    long beforeTs, long beforeId, int limit) {
+        if (types == null || types.length == 0) {
+            return new ArrayList<>();
+        }
+        StringBuilder sql = new StringBuilder(SELECT);
+        sql.append(" WHERE e." + COLUMN_NAME_TOPIC_ID + "=? AND e." + COLUMN_NAME_TP + " IN (");
+        Object[] args = new Object[types.length + 5];
+        int i = 0;
+        args[i++] = topicId;
+        for (String tp : types) {
+            sql.append(i > 1 ? ",?" : "?");
+            args[i++] = tp;
+        }
+        sql.append(")").append(BEFORE);
+        args[i++] = beforeTs;
+        args[i++] = beforeTs;
+        args[i++] = beforeId;
+        args[i] = limit;
+        return read(BaseDb.getInstance().getStatements().query(db, "entities.query", sql.toString(), args));
+    }
+
+    /**
+     * Get a page of mentions of the user, newest first.
+     *
+     * @param db       database to use.
+     * @param uid      UID of the mentioned user.
+     * @param topicId  topics._id of the topic or -1 for all topics.
+     * @param beforeTs timestamp of the last mention of the previous page or {@link Long#MAX_VALUE}.
+     * @param beforeId ID of the last mention of the previous page or {@link Long#MAX_VALUE}.
+     * @param limit    maximum number of mentions to return.
+     */
+    static List<StoredEntity> queryMentions(SQLiteDatabase db, String uid, long topicId,
+                                            long beforeTs, long beforeId, int limit) {
+        if (topicId > 0) {
+            return read(BaseDb.getInstance().getStatements().query(db, "entities.mentionsTopic",
+                    SELECT + " WHERE e." + COLUMN_NAME_TOPIC_ID + "=? AND e." + COLUMN_NAME_TP + "='MN'" +
+                            " AND e." + COLUMN_NAME_UID + "=?" + BEFORE,
+                    topicId, uid, beforeTs, beforeTs, beforeId, limit));
+        }
+        return read(BaseDb.getInstance().getStatements().query(db, "entities.mentions",
+                SELECT + " WHERE e." + COLUMN_NAME_UID + "=?" + BEFORE,
+                uid, beforeTs, beforeTs, beforeId, limit));
+    }
+
+    private static List<StoredEntity> read(Cursor c) {
+        List<StoredEntity> result = new ArrayList<>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                result.add(new StoredEntity(c));
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    // Check if the content has entities of the indexed types.
+    private static boolean hasIndexed(Drafty content) {
+        return (StoredMessage.contentFlags(content) & ENTITY_FLAGS) != 0;
+    }
+
+    private static String string(Map<String, Object> data, String key) {
+        Object val = data != null ? data.get(key) : null;
+        return val instanceof String ? (String) val : null;
+    }
+
+    private static void bindNullable(SQLiteStatement stmt, int index, String value) {
+        if (value != null) {
+            stmt.bindString(index, value);
+        }
+    }
+}
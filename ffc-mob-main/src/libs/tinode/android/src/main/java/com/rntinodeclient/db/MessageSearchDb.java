@@ -0,0 +1,269 @@
+package com.rntinodeclient.db;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Full-text index of message content: FTS4 table with one row per message, docid = messages._id.
+ * <p>
+ * Rows are added when messages are inserted, replaced when the content is updated, and deleted
+ * by a trigger together with the message. Messages saved before the index existed are added by
+ * a background backfill.
+ */
+public class MessageSearchDb {
+    private static final String TAG = "MessageSearchDb";
+
+    /**
+     * The name of the FTS table.
+     */
+    static final String TABLE_NAME = "message_search";
+    /**
+     * Plain text of the message content.
+     */
+    private static final String COLUMN_NAME_TEXT = "text";
+
+    /**
+     * Create the FTS table. unicode61 folds case and diacritics of all scripts;
+     * the 'simple' tokenizer is used if the platform SQLite is built without it.
+     */
+    private static final String CREATE_TABLE =
+            "CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4(" + COLUMN_NAME_TEXT + ", tokenize=unicode61)";
+    private static final String CREATE_TABLE_SIMPLE =
+            "CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4(" + COLUMN_NAME_TEXT + ")";
+
+    static final String DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
+
+    /**
+     * Index rows are deleted with the message, whichever way the message is deleted.
+     */
+    private static final String CREATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS messages_search_delete AFTER DELETE ON " + MessageDb.TABLE_NAME +
+                    " BEGIN DELETE FROM " + TABLE_NAME + " WHERE docid=OLD." + MessageDb._ID + "; END";
+    static final String DROP_TRIGGER = "DROP TRIGGER IF EXISTS messages_search_delete";
+
+    private static final String INSERT =
+            "INSERT INTO " + TABLE_NAME + " (docid," + COLUMN_NAME_TEXT + ") VALUES (?,?)";
+
+    // Sentinel row which marks the index as complete. Message IDs start at 1.
+    private static final long BACKFILLED_DOCID = 0;
+
+    // Only this many newest matches are ranked: offsets() is too expensive to compute for every match
+    // of a common word.
+    private static final int RANK_WINDOW = 500;
+
+    // Approximate number of matched terms: offsets() returns four integers per match.
+    private static final String HITS =
+            "(length(offsets(" + TABLE_NAME + "))-length(replace(offsets(" + TABLE_NAME + "),' ',''))+1)/4";
+
+    /**
+     * Create the index.
+     *
+     * @param empty the messages table is empty, no backfill is needed.
+     */
+    static void createTable(SQLiteDatabase db, boolean empty) {
+        try {
+            db.execSQL(CREATE_TABLE);
+        } catch (SQLException ex) {
+            Log.i(TAG, "unicode61 tokenizer is not available", ex);
+            db.execSQL(CREATE_TABLE_SIMPLE);
+        }
+        db.execSQL(CREATE_TRIGGER);
+        if (empty) {
+            setBackfilled(db);
+        }
+    }
+
+    /**
+     * Check if all messages saved before the index was created have been indexed.
+     */
+    static boolean isBackfilled(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_NAME +
+                " WHERE docid=" + BACKFILLED_DOCID, null) > 0;
+    }
+
+    static void setBackfilled(SQLiteDatabase db) {
+        db.execSQL(INSERT, new Object[]{BACKFILLED_DOCID, ""});
+    }
+
+    /**
+     * Extract searchable text from the message content.
+     */
+    static String searchText(Drafty content) {
+        return content != null ? content.toString() : null;
+    }
+
+    /**
+     * Add message to the index.
+     *
+     * @param db      database to use.
+     * @param msgId   _id of the message.
+     * @param content message content.
+     */
+    static void insert(SQLiteDatabase db, long msgId, Drafty content) {
+        String text = searchText(content);
+        if (text == null) {
+            return;
+        }
+        db.execSQL(INSERT, new Object[]{msgId, text});
+    }
+
+    /**
+     * Replace indexed text of the message, e.g. when a draft is updated.
+     */
+    static void update(SQLiteDatabase db, long msgId, Drafty content) {
+        db.delete(TABLE_NAME, "docid=" + msgId, null);
+        insert(db, msgId, content);
+    }
+
+    /**
+     * Compiled insert statement for batch inserts.
+     */
+    static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement(INSERT);
+    }
+
+    static void insert(SQLiteStatement stmt, long msgId, Drafty content) {
+        String text = searchText(content);
+        if (text == null) {
+            return;
+        }
+        stmt.bindLong(1, msgId);
+        stmt.bindString(2, text);
+        stmt.executeInsert();
+    }
+
+    /**
+     * Index one batch of messages which are not in the index yet. Rows are processed in _id
+     * order in a single transaction.
+     *
+     * @param afterId process only messages with _id greater than this value.
+     * @param limit   maximum number of messages in the batch.
+     * @return _id of the last processed message, -1 if all messages are indexed or -2 on failure.
+     */
+    static long backfill(SQLiteDatabase db, long afterId, int limit) {
+        long lastId = -1;
+        db.beginTransaction();
+        try (Cursor c = db.rawQuery("SELECT " + MessageDb._ID + "," + MessageDb.COLUMN_NAME_CONTENT +
+                " FROM " + MessageDb.TABLE_NAME + " AS m" +
+                " WHERE " + MessageDb._ID + ">" + afterId +
+                " AND " + MessageDb.COLUMN_NAME_CONTENT + " IS NOT NULL" +
+                " AND NOT EXISTS (SELECT 1 FROM " + TABLE_NAME + " WHERE docid=m." + MessageDb._ID + ")" +
+                " ORDER BY " + MessageDb._ID + " LIMIT " + limit, null);
+             SQLiteStatement insert = compileInsert(db)) {
+            while (c.moveToNext()) {
+                lastId = c.getLong(0);
+                insert(insert, lastId, MessageCodec.decodeContent(MessageCodec.readRaw(c, 1)));
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception ex) {
+            Log.w(TAG, "Failed to index messages", ex);
+            lastId = -2;
+        } finally {
+            db.endTransaction();
+        }
+        return lastId;
+    }
+
+    /**
+     * Convert user input into an FTS query: every word must match, the last one as a prefix.
+     *
+     * @return query or null if the input has no words.
+     */
+    static String matchQuery(String input) {
+        if (input == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        // Quoted words are not parsed as operators.
+        for (String word : input.replace('"', ' ').trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(word).append('"');
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+        sb.insert(sb.length() - 1, '*');
+        return sb.toString();
+    }
+
+    /**
+     * Find current versions of messages matching the query. The newest matches are ranked by the number
+     * of matched terms, then by time, newest first.
+     *
+     * @param db      database to search.
+     * @param query   words to find, the last word is matched as a prefix.
+     * @param topicId topics._id to search in or -1 for all topics.
+     * @param userId  users._id of the sender or -1 for any sender.
+     * @param since   minimum timestamp, inclusive, or -1.
+     * @param before  maximum timestamp, exclusive, or -1.
+     * @param limit   maximum number of results.
+     * @return _id of the found messages.
+     */
+    static long[] search(SQLiteDatabase db, String query, long topicId, long userId,
+                         long since, long before, int limit) {
+        String match = matchQuery(query);
+        if (match == null || limit <= 0) {
+            return new long[0];
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT " + MessageDb._ID + " FROM (" +
+                "SELECT m." + MessageDb._ID + ",m." + MessageDb.COLUMN_NAME_TS + "," + HITS + " AS hits" +
+                " FROM " + TABLE_NAME +
+                " JOIN " + MessageDb.TABLE_NAME + " AS m ON m." + MessageDb._ID + "=" + TABLE_NAME + ".docid" +
+                " WHERE " + TABLE_NAME + " MATCH ?" +
+                // Only the latest versions of edited messages.
+                " AND m." + MessageDb.COLUMN_NAME_EFFECTIVE_SEQ + " IS NOT NULL" +
+                // Skip deleted messages.
+                " AND m." + MessageDb.COLUMN_NAME_STATUS + "<" + BaseDb.Status.DELETED_HARD.value);
+        List<Object> args = new ArrayList<>();
+        args.add(match);
+        if (topicId > 0) {
+            sql.append(" AND m." + MessageDb.COLUMN_NAME_TOPIC_ID + "=?");
+            args.add(topicId);
+        }
+        if (userId > 0) {
+            sql.append(" AND m." + MessageDb.COLUMN_NAME_USER_ID + "=?");
+            args.add(userId);
+        }
+        if (since > 0) {
+            sql.append(" AND m." + MessageDb.COLUMN_NAME_TS + ">=?");
+            args.add(since);
+        }
+        if (before > 0) {
+            sql.append(" AND m." + MessageDb.COLUMN_NAME_TS + "<?");
+            args.add(before);
+        }
+        // Docids grow with arrival time: the newest matches come first without sorting.
+        sql.append(" ORDER BY " + TABLE_NAME + ".docid DESC LIMIT ?" +
+                ") ORDER BY hits DESC," + MessageDb.COLUMN_NAME_TS + " DESC LIMIT ?");
+        args.add(Math.max(limit, RANK_WINDOW));
+        args.add(limit);
+
+        try (Cursor c = BaseDb.getInstance().getStatements().query(db, "messages.search", sql.toString(),
+                args.toArray())) {
+            long[] ids = new long[c.getCount()];
+            int i = 0;
+            while (c.moveToNext()) {
+                ids[i++] = c.getLong(0);
+            }
+            return ids;
+        } catch (SQLException ex) {
+            Log.w(TAG, "Search failed", ex);
+            return new long[0];
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.rntinodeclient.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Sliding window over the messages of one topic, newest first.
+ * <p>
+ * The window is defined by an exclusive upper bound of the effective seq ID and a row count,
+ * and is loaded with a single keyset query {@link MessageDb#queryBefore}. Paging in either
+ * direction moves the bounds by one margin and trims the opposite end, so the window never holds
+ * more than the visible range plus a prefetch margin on each side.
+ * The cost of a load depends on the window size only, not on the position in history.
+ */
+public class MessageWindow {
+    // Upper bound when the window is anchored at the latest message.
+    private static final long LATEST = Long.MAX_VALUE;
+
+    private final int mVisible;
+    private final int mMargin;
+
+    // Exclusive upper bound of eff_seq.
+    private long mUpper = LATEST;
+    // Number of rows requested from the DB.
+    private int mCount;
+    // Effective seq IDs of the rows returned by the last load, newest first.
+    private int[] mLoaded = new int[0];
+    // Topic of the last load.
+    private long mTopicId = -1;
+
+    /**
+     * Create window.
+     *
+     * @param visible number of messages visible on screen at once.
+     * @param margin  number of messages to prefetch on each side of the visible range; also the paging step.
+     */
+    public MessageWindow(int visible, int margin) {
+        mVisible = visible;
+        mMargin = margin;
+        mCount = visible + margin;
+    }
+
+    /**
+     * Load messages in the window. Cursor must be closed after use.
+     */
+    synchronized Cursor load(SQLiteDatabase db, long topicId) {
+        Cursor c = MessageDb.queryBefore(db, topicId, mUpper, mCount);
+        int[] loaded = new int[c.getCount()];
+        if (c.moveToFirst()) {
+            do {
+                loaded[c.getPosition()] = c.getInt(MessageDb.COLUMN_IDX_EFFECTIVE_SEQ);
+            } while (c.moveToNext());
+        }
+        mLoaded = loaded;
+        mTopicId = topicId;
+        return c;
+    }
+
+    /**
+     * Extend window towards older messages, dropping the newest ones if the window grows too large.
+     *
+     * @return true if the window has changed and must be reloaded.
+     */
+    public synchronized boolean pageOlder() {
+        if (mLoaded.length < mCount) {
+            // The oldest message is already in the window.
+            return false;
+        }
+
+        mCount += mMargin;
+        int extra = mCount - capacity();
+        if (extra > 0) {
+            // Move the upper bound below the newest 'extra' rows.
+            mUpper = mLoaded[Math.min(extra, mLoaded.length) - 1];
+            mCount -= extra;
+        }
+        return true;
+    }
+
+    /**
+     * Move window towards newer messages, dropping the oldest ones if the window grows too large.
+     *
+     * @return true if the window has changed and must be reloaded.
+     */
+    public synchronized boolean pageNewer(SQLiteDatabase db) {
+        if (mUpper == LATEST || mTopicId < 0) {
+            return false;
+        }
+
+        Cursor c = MessageDb.queryAfter(db, mTopicId, mUpper - 1, mMargin);
+        int count = c.getCount();
+        long upper = LATEST;
+        if (count == mMargin && c.moveToLast()) {
+            upper = c.getLong(MessageDb.COLUMN_IDX_EFFECTIVE_SEQ) + 1;
+        }
+        c.close();
+
+        mUpper = upper;
+        mCount = Math.min(mCount + count, capacity());
+        return true;
+    }
+
+    /**
+     * Reset window to the latest messages.
+     */
+    public synchronized void reset() {
+        mUpper = LATEST;
+        mCount = mVisible + mMargin;
+        mLoaded = new int[0];
+        mTopicId = -1;
+    }
+
+    /**
+     * Check if the window includes the latest message.
+     */
+    public synchronized boolean isAtLatest() {
+        return mUpper == LATEST;
+    }
+
+    private int capacity() {
+        return mVisible + 2 * mMargin;
+    }
+}
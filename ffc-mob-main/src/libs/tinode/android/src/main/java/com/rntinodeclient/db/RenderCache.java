@@ -0,0 +1,199 @@
+package com.rntinodeclient.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Memory-bounded cache of formatted message content: plain text, preview text and markdown.
+ * <p>
+ * Entries are keyed by database ID of the message, then by kind of output and its argument,
+ * e.g. the preview length. Least recently used messages are evicted once the estimated size
+ * of the cached strings exceeds the budget.
+ * <p>
+ * {@link SqlStore} drops entries when the content of a message changes, when a message is
+ * replaced by a newer version or deleted, so an unchanged chat is rendered without touching
+ * Drafty.
+ * <p>
+ * Every invalidation advances the {@link #generation()}. A message read before an invalidation
+ * may hold the old content, so its output is only cached if the generation taken before the
+ * read is still current.
+ */
+public class RenderCache {
+    // Drafty.toString().
+    public static final int TEXT = 0;
+    // Drafty.previewText(arg).
+    public static final int PREVIEW = 1;
+    // Drafty.toMarkdown(arg != 0).
+    public static final int MARKDOWN = 2;
+    private static final int KIND_COUNT = 3;
+
+    private static final long DEFAULT_BUDGET = 1024 * 1024;
+    // Approximate fixed cost of an entry and of a cached string, bytes.
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int STRING_OVERHEAD = 40;
+
+    private static class Entry {
+        final long topicId;
+        final int seq;
+        // Output and its argument, indexed by kind.
+        final String[] values = new String[KIND_COUNT];
+        final int[] args = new int[KIND_COUNT];
+        int size = ENTRY_OVERHEAD;
+
+        Entry(long topicId, int seq) {
+            this.topicId = topicId;
+            this.seq = seq;
+        }
+    }
+
+    private final long mBudget;
+    // Access-ordered: the eldest entry is the least recently used.
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+    private long mSize = 0;
+    private long mGeneration = 0;
+
+    RenderCache() {
+        this(DEFAULT_BUDGET);
+    }
+
+    RenderCache(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Current generation: take it before reading messages which will be rendered.
+     */
+    public synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Get formatted content of the message, from the cache if possible.
+     *
+     * @param msg        message to format.
+     * @param kind       one of {@link #TEXT}, {@link #PREVIEW} or {@link #MARKDOWN}.
+     * @param arg        preview length for {@link #PREVIEW}, non-zero for plain links in {@link #MARKDOWN}.
+     * @param generation {@link #generation()} taken before the message was read, -1 if unknown.
+     * @return formatted content or null if the message has no content.
+     */
+    public String render(StoredMessage msg, int kind, int arg, long generation) {
+        // Messages read as previews or not yet saved are not cached.
+        boolean cacheable = msg.id > 0 && msg.hasFullContent();
+        if (cacheable) {
+            String out = get(msg.id, kind, arg);
+            if (out != null) {
+                return out;
+            }
+        }
+
+        Drafty content = msg.getContent();
+        if (content == null) {
+            return null;
+        }
+        String out = format(content, kind, arg);
+        if (cacheable && out != null) {
+            put(msg, kind, arg, out, generation);
+        }
+        return out;
+    }
+
+    private static String format(Drafty content, int kind, int arg) {
+        switch (kind) {
+            case TEXT:
+                return content.toString();
+            case PREVIEW:
+                return content.previewText(arg);
+            case MARKDOWN:
+                return content.toMarkdown(arg != 0);
+            default:
+                throw new IllegalArgumentException("Unknown kind " + kind);
+        }
+    }
+
+    private synchronized String get(long msgId, int kind, int arg) {
+        Entry entry = mEntries.get(msgId);
+        if (entry == null || entry.values[kind] == null || entry.args[kind] != arg) {
+            return null;
+        }
+        return entry.values[kind];
+    }
+
+    private synchronized void put(StoredMessage msg, int kind, int arg, String value, long generation) {
+        if (generation != mGeneration) {
+            // The message may have changed after it was read.
+            return;
+        }
+        Entry entry = mEntries.get(msg.id);
+        if (entry == null) {
+            entry = new Entry(msg.topicId, msg.seq);
+            mEntries.put(msg.id, entry);
+            mSize += entry.size;
+        } else if (entry.values[kind] != null) {
+            entry.size -= sizeOf(entry.values[kind]);
+            mSize -= sizeOf(entry.values[kind]);
+        }
+        entry.values[kind] = value;
+        entry.args[kind] = arg;
+        entry.size += sizeOf(value);
+        mSize += sizeOf(value);
+        trim();
+    }
+
+    // Evict least recently used entries until the cache fits into the budget.
+    private void trim() {
+        Iterator<Entry> iter = mEntries.values().iterator();
+        while (mSize > mBudget && iter.hasNext()) {
+            mSize -= iter.next().size;
+            iter.remove();
+        }
+    }
+
+    private static int sizeOf(String value) {
+        return STRING_OVERHEAD + value.length() * 2;
+    }
+
+    /**
+     * Drop cached output of one message.
+     */
+    synchronized void invalidate(long msgId) {
+        mGeneration++;
+        Entry entry = mEntries.remove(msgId);
+        if (entry != null) {
+            mSize -= entry.size;
+        }
+    }
+
+    /**
+     * Drop cached output of messages in the topic with seq IDs in the range [fromId, toId).
+     * A non-positive toId means no upper bound.
+     */
+    synchronized void invalidate(long topicId, int fromId, int toId) {
+        mGeneration++;
+        Iterator<Entry> iter = mEntries.values().iterator();
+        while (iter.hasNext()) {
+            Entry entry = iter.next();
+            if (entry.topicId == topicId && entry.seq >= fromId && (toId <= 0 || entry.seq < toId)) {
+                mSize -= entry.size;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop cached output of all messages in the topic.
+     */
+    synchronized void invalidateTopic(long topicId) {
+        invalidate(topicId, Integer.MIN_VALUE, 0);
+    }
+
+    /**
+     * Drop everything.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+        mSize = 0;
+    }
+}
@@ -2,18 +2,22 @@ package com.rntinodeclient.db;
 
 import android.database.Cursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import co.tinode.tinodesdk.Storage;
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.TopicHeader;
 import co.tinode.tinodesdk.User;
 import co.tinode.tinodesdk.model.Drafty;
 import co.tinode.tinodesdk.model.MsgRange;
@@ -104,6 +108,23 @@ public class SqlStore implements Storage {
         return null;
     }
 
+    @Override
+    public TopicHeader[] topicGetHeaders() {
+        Cursor c = TopicDb.queryHeaders(mDbh.getReadableDatabase());
+        if (c == null) {
+            return null;
+        }
+        TopicHeader[] list = new TopicHeader[c.getCount()];
+        if (c.moveToFirst()) {
+            int i = 0;
+            do {
+                list[i++] = TopicDb.readHeader(c);
+            } while (c.moveToNext());
+        }
+        c.close();
+        return list;
+    }
+
     @Override
     public Topic topicGet(final Tinode tinode, final String name) {
         return TopicDb.readOne(mDbh.getReadableDatabase(), tinode, name);
@@ -132,6 +153,7 @@ public class SqlStore implements Storage {
 
                 if (hard) {
                     MessageDb.deleteAll(db, st.id);
+                    mDbh.getRenderCache().invalidateTopic(st.id);
                     SubscriberDb.deleteForTopic(db, st.id);
                     TopicDb.delete(db, st.id);
                 } else {
@@ -248,6 +270,104 @@ public class SqlStore implements Storage {
     @Override
     public Storage.Message msgReceived(Topic topic, Subscription sub, MsgServerData m) {
         final SQLiteDatabase db = mDbh.getWritableDatabase();
+        final StoredMessage msg = prepareReceived(db, topic, sub, m);
+        if (msg == null) {
+            return null;
+        }
+
+        try {
+            db.beginTransaction();
+
+            msg.id = MessageDb.insert(db, topic, msg);
+
+            if (msg.id > 0 && TopicDb.msgReceived(db, topic, msg.ts, msg.seq)) {
+                db.setTransactionSuccessful();
+                invalidateReplaced(msg);
+            }
+
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to save message", ex);
+        } finally {
+            db.endTransaction();
+        }
+
+        return msg;
+    }
+
+    @Override
+    public List<Storage.Message> msgReceivedBatch(Topic topic, List<MsgServerData> msgs) {
+        final SQLiteDatabase db = mDbh.getWritableDatabase();
+        final List<Storage.Message> result = new ArrayList<>(msgs.size());
+        MessageDb.BatchInserter inserter = null;
+        try {
+            db.beginTransaction();
+
+            inserter = new MessageDb.BatchInserter(db);
+            int minSeq = Integer.MAX_VALUE, maxSeq = 0;
+            Date maxTs = null;
+            for (MsgServerData m : msgs) {
+                StoredMessage msg = prepareReceived(db, topic, topic.getSubscription(m.from), m);
+                if (msg == null) {
+                    continue;
+                }
+                if (m.seq > 0 && inserter.exists(msg.topicId, m.seq)) {
+                    Log.i(TAG, "Duplicate message topic='" + topic.getName() + "' id=" + m.seq);
+                    continue;
+                }
+                try {
+                    msg.id = inserter.insert(topic, msg);
+                } catch (SQLiteConstraintException ex) {
+                    Log.i(TAG, "Duplicate message topic='" + topic.getName() + "' id=" + m.seq);
+                    continue;
+                }
+                if (msg.id > 0) {
+                    minSeq = Math.min(minSeq, msg.seq);
+                    maxSeq = Math.max(maxSeq, msg.seq);
+                    if (msg.ts != null && (maxTs == null || msg.ts.after(maxTs))) {
+                        maxTs = msg.ts;
+                    }
+                    result.add(msg);
+                }
+            }
+
+            // Topic seq/recv/touched are updated once for the whole batch.
+            if (result.isEmpty() ||
+                    TopicDb.msgReceived(db, topic, maxTs != null ? maxTs : new Date(0), minSeq, maxSeq)) {
+                db.setTransactionSuccessful();
+                for (Storage.Message msg : result) {
+                    invalidateReplaced((StoredMessage) msg);
+                }
+            } else {
+                result.clear();
+            }
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to save messages", ex);
+            result.clear();
+        } finally {
+            if (inserter != null) {
+                inserter.close();
+            }
+            db.endTransaction();
+        }
+
+        return result;
+    }
+
+    // Drop cached output of the older versions of a replacement message.
+    private void invalidateReplaced(StoredMessage msg) {
+        int replSeq = msg.getReplacementSeqId();
+        if (replSeq > 0) {
+            mDbh.getRenderCache().invalidate(msg.topicId, replSeq, replSeq + 1);
+        }
+    }
+
+    /**
+     * Create a message received from the server, resolve IDs of its topic and sender.
+     * A placeholder user is created if the sender is not known yet.
+     *
+     * @return message ready to be inserted or {@code null} if IDs cannot be resolved.
+     */
+    private StoredMessage prepareReceived(SQLiteDatabase db, Topic topic, Subscription sub, MsgServerData m) {
         long topicId, userId;
         StoredSubscription ss = sub != null ? (StoredSubscription) sub.getLocal() : null;
         if (ss == null) {
@@ -278,21 +398,6 @@ public class SqlStore implements Storage {
         msg.topicId = topicId;
         msg.userId = userId;
         msg.status = BaseDb.Status.SYNCED;
-        try {
-            db.beginTransaction();
-
-            msg.id = MessageDb.insert(db, topic, msg);
-
-            if (msg.id > 0 && TopicDb.msgReceived(db, topic, msg.ts, msg.seq)) {
-                db.setTransactionSuccessful();
-            }
-
-        } catch (SQLException ex) {
-            Log.w(TAG, "Failed to save message", ex);
-        } finally {
-            db.endTransaction();
-        }
-
         return msg;
     }
 
@@ -339,12 +444,21 @@ public class SqlStore implements Storage {
 
     @Override
     public boolean msgDraftUpdate(Topic topic, long messageDbId, Drafty data) {
-        return MessageDb.updateStatusAndContent(mDbh.getWritableDatabase(), messageDbId, BaseDb.Status.UNDEFINED, data);
+        boolean updated = MessageDb.updateStatusAndContent(mDbh.getWritableDatabase(), messageDbId,
+                BaseDb.Status.UNDEFINED, data);
+        // After the write: a concurrent render would otherwise cache the old content again.
+        mDbh.getRenderCache().invalidate(messageDbId);
+        return updated;
     }
 
     @Override
     public boolean msgReady(Topic topic, long messageDbId, Drafty data) {
-        return MessageDb.updateStatusAndContent(mDbh.getWritableDatabase(), messageDbId, BaseDb.Status.QUEUED, data);
+        boolean updated = MessageDb.updateStatusAndContent(mDbh.getWritableDatabase(), messageDbId,
+                BaseDb.Status.QUEUED, data);
+        if (data != null) {
+            mDbh.getRenderCache().invalidate(messageDbId);
+        }
+        return updated;
     }
 
     @Override
@@ -355,7 +469,9 @@ public class SqlStore implements Storage {
 
     @Override
     public boolean msgDiscard(Topic topic, long messageDbId) {
-        return MessageDb.delete(mDbh.getWritableDatabase(), messageDbId);
+        boolean deleted = MessageDb.delete(mDbh.getWritableDatabase(), messageDbId);
+        mDbh.getRenderCache().invalidate(messageDbId);
+        return deleted;
     }
 
     @Override
@@ -364,6 +480,7 @@ public class SqlStore implements Storage {
         if (st == null) {
             return false;
         }
+        mDbh.getRenderCache().invalidate(st.id, seq, seq + 1);
         return MessageDb.delete(mDbh.getWritableDatabase(), st.id, seq);
     }
 
@@ -379,7 +496,12 @@ public class SqlStore implements Storage {
         if (st == null) {
             return false;
         }
-        return MessageDb.deleteFailed(mDbh.getWritableDatabase(), st.id);
+        if (!MessageDb.deleteFailed(mDbh.getWritableDatabase(), st.id)) {
+            return false;
+        }
+        // Failed messages are rare: not worth tracking their status in the cache.
+        mDbh.getRenderCache().invalidateTopic(st.id);
+        return true;
     }
 
     @Override
@@ -389,6 +511,8 @@ public class SqlStore implements Storage {
         try {
             db.beginTransaction();
             MessageDb.delivered(mDbh.getWritableDatabase(), messageDbId, timestamp, seq);
+            // Cached entry is indexed by the temporary seq.
+            mDbh.getRenderCache().invalidate(messageDbId);
             TopicDb.msgReceived(db, topic, timestamp, seq);
             db.setTransactionSuccessful();
             result = true;
@@ -406,7 +530,10 @@ public class SqlStore implements Storage {
         if (st == null) {
             return false;
         }
-        return MessageDb.markDeleted(mDbh.getWritableDatabase(), st.id, fromId, toId, markAsHard);
+        boolean result = MessageDb.markDeleted(mDbh.getWritableDatabase(), st.id, fromId, toId, markAsHard);
+        // Unsynced messages are deleted outright and their IDs may be reused.
+        mDbh.getRenderCache().invalidate(st.id, fromId, toId);
+        return result;
     }
 
     @Override
@@ -415,7 +542,12 @@ public class SqlStore implements Storage {
         if (st == null) {
             return false;
         }
-        return MessageDb.markDeleted(mDbh.getWritableDatabase(), st.id, ranges, markAsHard);
+        boolean result = MessageDb.markDeleted(mDbh.getWritableDatabase(), st.id, ranges, markAsHard);
+        // Unsynced messages are deleted outright and their IDs may be reused.
+        for (MsgRange r : ranges) {
+            mDbh.getRenderCache().invalidate(st.id, r.getLower(), r.getUpper());
+        }
+        return result;
     }
 
     @Override
@@ -442,6 +574,9 @@ public class SqlStore implements Storage {
         } finally {
             db.endTransaction();
         }
+        if (result) {
+            mDbh.getRenderCache().invalidate(st.id, fromId, toId);
+        }
 
         return result;
     }
@@ -469,6 +604,11 @@ public class SqlStore implements Storage {
         } finally {
             db.endTransaction();
         }
+        if (result) {
+            for (MsgRange r : ranges) {
+                mDbh.getRenderCache().invalidate(st.id, r.getLower(), r.getUpper());
+            }
+        }
         return result;
     }
 
@@ -528,6 +668,67 @@ public class SqlStore implements Storage {
         return msg;
     }
 
+    @Override
+    public long[] msgSearch(String query, Topic topic, String from, Date since, Date before, int limit) {
+        SQLiteDatabase db = mDbh.getReadableDatabase();
+        long topicId = -1;
+        if (topic != null) {
+            topicId = StoredTopic.getId(topic);
+            if (topicId <= 0) {
+                return new long[0];
+            }
+        }
+        long userId = -1;
+        if (from != null) {
+            userId = UserDb.getId(db, from);
+            if (userId <= 0) {
+                return new long[0];
+            }
+        }
+        return MessageSearchDb.search(db, query, topicId, userId,
+                since != null ? since.getTime() : -1, before != null ? before.getTime() : -1, limit);
+    }
+
+    /**
+     * Get a page of entities of the given types shared in the topic, newest first, e.g. IM and VD for
+     * a media gallery or LN for a list of links.
+     *
+     * @param topic    topic to query.
+     * @param types    entity types to find.
+     * @param beforeTs timestamp of the last entity of the previous page.
+     * @param beforeId ID of the last entity of the previous page or 0 to get the first page.
+     * @param limit    maximum number of entities to return.
+     */
+    public List<MessageEntityDb.StoredEntity> getEntities(Topic topic, String[] types, long beforeTs, long beforeId, int limit) {
+        long topicId = StoredTopic.getId(topic);
+        if (topicId <= 0) {
+            return new ArrayList<>();
+        }
+        return MessageEntityDb.query(mDbh.getReadableDatabase(), topicId, types,
+                beforeId > 0 ? beforeTs : Long.MAX_VALUE, beforeId > 0 ? beforeId : Long.MAX_VALUE, limit);
+    }
+
+    /**
+     * Get a page of mentions of the user, newest first.
+     *
+     * @param topic    topic to query or null for all topics.
+     * @param uid      UID of the mentioned user.
+     * @param beforeTs timestamp of the last mention of the previous page.
+     * @param beforeId ID of the last mention of the previous page or 0 to get the first page.
+     * @param limit    maximum number of mentions to return.
+     */
+    public List<MessageEntityDb.StoredEntity> getMentions(Topic topic, String uid, long beforeTs, long beforeId, int limit) {
+        long topicId = -1;
+        if (topic != null) {
+            topicId = StoredTopic.getId(topic);
+            if (topicId <= 0) {
+                return new ArrayList<>();
+            }
+        }
+        return MessageEntityDb.queryMentions(mDbh.getReadableDatabase(), uid, topicId,
+                beforeId > 0 ? beforeTs : Long.MAX_VALUE, beforeId > 0 ? beforeId : Long.MAX_VALUE, limit);
+    }
+
     @Override
     public <T extends Storage.Message> T getMessagePreviewById(long dbMessageId) {
         return messageById(dbMessageId, MessageDb.MESSAGE_PREVIEW_LENGTH);
@@ -567,6 +768,24 @@ public class SqlStore implements Storage {
         return (R) list;
     }
 
+    @Override
+    public Message getLatestMessagePreview(Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || st.id <= 0) {
+            return null;
+        }
+        StoredMessage msg = null;
+        Cursor c = MessageDb.getLatestMessage(mDbh.getReadableDatabase(), st.id);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                msg = StoredMessage.readMessage(c, MessageDb.MESSAGE_PREVIEW_LENGTH);
+                msg.topic = topic.getName();
+            }
+            c.close();
+        }
+        return msg;
+    }
+
     @Override
     public MsgRange[] getQueuedMessageDeletes(Topic topic, boolean hard) {
         StoredTopic st = (StoredTopic) topic.getLocal();
@@ -0,0 +1,165 @@
+package com.rntinodeclient.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of parameterized statements and queries used on hot paths.
+ * <p>
+ * Statements and queries are issued with bound arguments instead of interpolated values so
+ * SQLite can reuse the prepared statement from its per-connection cache. Statements are
+ * compiled per call and never shared between threads: holding a lock while one runs would
+ * deadlock against a thread which holds the connection in a transaction and waits for the lock.
+ * <p>
+ * Every call is timed per statement name, see {@link #getStats()}.
+ */
+public class StatementRegistry {
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Execute statement which returns a single number.
+     *
+     * @throws android.database.sqlite.SQLiteDoneException if the query returned no rows.
+     */
+    long simpleQueryForLong(SQLiteDatabase db, String name, String sql, Object... args) {
+        long start = System.nanoTime();
+        try {
+            try (SQLiteStatement stmt = statement(db, sql, args)) {
+                return stmt.simpleQueryForLong();
+            }
+        } finally {
+            record(name, start);
+        }
+    }
+
+    /**
+     * Execute UPDATE or DELETE statement.
+     *
+     * @return number of affected rows.
+     */
+    int executeUpdateDelete(SQLiteDatabase db, String name, String sql, Object... args) {
+        long start = System.nanoTime();
+        try {
+            try (SQLiteStatement stmt = statement(db, sql, args)) {
+                return stmt.executeUpdateDelete();
+            }
+        } finally {
+            record(name, start);
+        }
+    }
+
+    /**
+     * Run query with bound arguments. Numbers are bound as integers: columns without declared affinity,
+     * like messages.topic_id, would not match them as strings. The returned cursor is already populated.
+     * Cursor must be closed after use.
+     */
+    Cursor query(SQLiteDatabase db, String name, String sql, Object... args) {
+        long start = System.nanoTime();
+        try {
+            Cursor c = db.rawQueryWithFactory((database, driver, editTable, query) -> {
+                bind(query, args);
+                return new SQLiteCursor(driver, editTable, query);
+            }, sql, null, null);
+            // Cursors are lazy: force execution so the time is attributed to the query.
+            c.getCount();
+            return c;
+        } finally {
+            record(name, start);
+        }
+    }
+
+    /**
+     * Get per-statement timing counters sorted by total time spent, descending.
+     */
+    List<StatementStats> getStats() {
+        List<StatementStats> result = new ArrayList<>(mCounters.size());
+        for (Map.Entry<String, Counter> e : mCounters.entrySet()) {
+            Counter c = e.getValue();
+            result.add(new StatementStats(e.getKey(), c.calls.get(), c.totalNanos.get(), c.maxNanos.get()));
+        }
+        Collections.sort(result, (a, b) -> Long.compare(b.totalNanos, a.totalNanos));
+        return result;
+    }
+
+    void resetStats() {
+        mCounters.clear();
+    }
+
+    private static SQLiteStatement statement(SQLiteDatabase db, String sql, Object[] args) {
+        SQLiteStatement stmt = db.compileStatement(sql);
+        bind(stmt, args);
+        return stmt;
+    }
+
+    private static void bind(SQLiteProgram stmt, Object[] args) {
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                stmt.bindNull(i + 1);
+            } else if (arg instanceof Long || arg instanceof Integer) {
+                stmt.bindLong(i + 1, ((Number) arg).longValue());
+            } else if (arg instanceof byte[]) {
+                stmt.bindBlob(i + 1, (byte[]) arg);
+            } else {
+                stmt.bindString(i + 1, arg.toString());
+            }
+        }
+    }
+
+    private void record(String name, long start) {
+        long elapsed = System.nanoTime() - start;
+        Counter c = mCounters.get(name);
+        if (c == null) {
+            c = new Counter();
+            Counter prev = mCounters.putIfAbsent(name, c);
+            if (prev != null) {
+                c = prev;
+            }
+        }
+        c.calls.incrementAndGet();
+        c.totalNanos.addAndGet(elapsed);
+        long max;
+        do {
+            max = c.maxNanos.get();
+        } while (elapsed > max && !c.maxNanos.compareAndSet(max, elapsed));
+    }
+
+    private static class Counter {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+    }
+
+    /**
+     * Snapshot of timing counters of a single statement.
+     */
+    public static class StatementStats {
+        public final String name;
+        public final long calls;
+        public final long totalNanos;
+        public final long maxNanos;
+
+        StatementStats(String name, long calls, long totalNanos, long maxNanos) {
+            this.name = name;
+            this.calls = calls;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": calls=" + calls + ", total=" + (totalNanos / 1000) + "us, max=" +
+                    (maxNanos / 1000) + "us";
+        }
+    }
+}
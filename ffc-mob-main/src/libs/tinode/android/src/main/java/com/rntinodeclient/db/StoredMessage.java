@@ -14,6 +14,22 @@ import co.tinode.tinodesdk.model.MsgServerData;
  * StoredMessage fetched from the database
  */
 public class StoredMessage extends MsgServerData implements Storage.Message {
+    // Kinds of entities found in the content, see {@link #getContentFlags()}.
+    public static final int FLAG_IMAGE = 0x1;
+    public static final int FLAG_VIDEO = 0x2;
+    public static final int FLAG_AUDIO = 0x4;
+    public static final int FLAG_FILE = 0x8;
+    public static final int FLAG_LINK = 0x10;
+    public static final int FLAG_MENTION = 0x20;
+    public static final int FLAG_HASHTAG = 0x40;
+    public static final int FLAG_QUOTE = 0x80;
+    public static final int FLAG_BUTTON = 0x100;
+    // At least one entity refers to out-of-band data.
+    public static final int FLAG_REFERENCE = 0x200;
+
+    // Length of the plain-text preview shown in the conversation list.
+    public static final int PREVIEW_TEXT_LENGTH = 60;
+
     public long id;
     public long topicId;
     public long userId;
@@ -21,6 +37,17 @@ public class StoredMessage extends MsgServerData implements Storage.Message {
     public int delId;
     public int high;
 
+    // Head and content as read from the database, decoded on first access.
+    private Object mRawHead;
+    private Object mRawContent;
+    // Length of the preview to make from the decoded content, -1 to keep full content.
+    private int mPreviewLength = -1;
+    // Content is a preview: read from the preview column or shortened on decoding.
+    private boolean mIsPreview = false;
+    // Plain text of the content preview and content flags, precomputed at write time.
+    private String mPreviewText;
+    private int mContentFlags = -1;
+
     StoredMessage() {
     }
 
@@ -46,12 +73,21 @@ public class StoredMessage extends MsgServerData implements Storage.Message {
                 c.getInt(MessageDb.COLUMN_IDX_SEQ) : c.getInt(MessageDb.COLUMN_IDX_EFFECTIVE_SEQ);
         msg.high = c.isNull(MessageDb.COLUMN_IDX_HIGH) ? 0 : c.getInt(MessageDb.COLUMN_IDX_HIGH);
         msg.delId = c.isNull(MessageDb.COLUMN_IDX_DEL_ID) ? 0 : c.getInt(MessageDb.COLUMN_IDX_DEL_ID);
-        msg.head = BaseDb.deserialize(c.getString(MessageDb.COLUMN_IDX_HEAD));
-        if (previewLength != 0) {
-            msg.content = BaseDb.deserialize(c.getString(MessageDb.COLUMN_IDX_CONTENT));
-            if (previewLength > 0 && msg.content != null) {
-                msg.content = msg.content.preview(previewLength);
-            }
+        msg.mRawHead = MessageCodec.readRaw(c, MessageDb.COLUMN_IDX_HEAD);
+        if (!c.isNull(MessageDb.COLUMN_IDX_FLAGS)) {
+            msg.mContentFlags = c.getInt(MessageDb.COLUMN_IDX_FLAGS);
+        }
+        if (previewLength > 0 && previewLength <= MessageDb.MESSAGE_PREVIEW_LENGTH &&
+                !c.isNull(MessageDb.COLUMN_IDX_PREVIEW)) {
+            // Use precomputed preview instead of the full content.
+            msg.mRawContent = MessageCodec.readRaw(c, MessageDb.COLUMN_IDX_PREVIEW);
+            msg.mPreviewLength = previewLength < MessageDb.MESSAGE_PREVIEW_LENGTH ? previewLength : -1;
+            msg.mPreviewText = c.getString(MessageDb.COLUMN_IDX_PREVIEW_TEXT);
+            msg.mIsPreview = true;
+        } else if (previewLength != 0) {
+            msg.mRawContent = MessageCodec.readRaw(c, MessageDb.COLUMN_IDX_CONTENT);
+            msg.mPreviewLength = previewLength;
+            msg.mIsPreview = previewLength > 0;
         }
         if (c.getColumnCount() > MessageDb.COLUMN_IDX_TOPIC_NAME) {
             msg.topic = c.getString(MessageDb.COLUMN_IDX_TOPIC_NAME);
@@ -60,6 +96,20 @@ public class StoredMessage extends MsgServerData implements Storage.Message {
         return msg;
     }
 
+    /**
+     * Read database ID of the message at the current cursor position without parsing the message.
+     */
+    public static long readDbId(Cursor c) {
+        return c.getLong(MessageDb.COLUMN_IDX_ID);
+    }
+
+    /**
+     * Read status of the message at the current cursor position without parsing the message.
+     */
+    public static int readStatus(Cursor c) {
+        return c.getInt(MessageDb.COLUMN_IDX_STATUS);
+    }
+
     static MsgRange readDelRange(Cursor c) {
         // 0: delId, 1: seq, 2: high
         return new MsgRange(c.getInt(1), c.getInt(2));
@@ -76,20 +126,129 @@ public class StoredMessage extends MsgServerData implements Storage.Message {
     }
 
     @Override
-    public Drafty getContent() {
+    public synchronized Drafty getContent() {
+        if (mRawContent != null) {
+            content = MessageCodec.decodeContent(mRawContent);
+            if (mPreviewLength > 0 && content != null) {
+                content = content.preview(mPreviewLength);
+            }
+            mRawContent = null;
+        }
         return content;
     }
 
+    /**
+     * Check if the content is complete rather than a preview made when the message was read.
+     */
+    synchronized boolean hasFullContent() {
+        return !mIsPreview;
+    }
+
     @Override
-    public void setContent(Drafty content) {
+    public synchronized void setContent(Drafty content) {
         this.content = content;
+        mRawContent = null;
+        mPreviewText = null;
+        mContentFlags = -1;
+    }
+
+    /**
+     * Plain text of the content preview, {@link #PREVIEW_TEXT_LENGTH} characters or shorter.
+     *
+     * @return preview text or null if the message has no content.
+     */
+    public synchronized String getPreviewText() {
+        if (mPreviewText == null) {
+            mPreviewText = makePreviewText(getContent());
+        }
+        return mPreviewText;
+    }
+
+    /**
+     * Kinds of entities found in the message content, a combination of FLAG_* bits.
+     */
+    public synchronized int getContentFlags() {
+        if (mContentFlags < 0) {
+            mContentFlags = contentFlags(getContent());
+        }
+        return mContentFlags;
+    }
+
+    synchronized void setPreview(String previewText, int contentFlags) {
+        mPreviewText = previewText;
+        mContentFlags = contentFlags;
+    }
+
+    static Drafty makePreview(Drafty content) {
+        return content != null ? content.preview(MessageDb.MESSAGE_PREVIEW_LENGTH) : null;
+    }
+
+    static String makePreviewText(Drafty content) {
+        return content != null ? content.previewText(PREVIEW_TEXT_LENGTH) : null;
+    }
+
+    static int contentFlags(Drafty content) {
+        Drafty.Entity[] entities = content != null ? content.getEntities() : null;
+        if (entities == null) {
+            return 0;
+        }
+        int flags = 0;
+        for (Drafty.Entity ent : entities) {
+            if (ent == null || ent.tp == null) {
+                continue;
+            }
+            switch (ent.tp) {
+                case "IM":
+                    flags |= FLAG_IMAGE;
+                    break;
+                case "VD":
+                    flags |= FLAG_VIDEO;
+                    break;
+                case "AU":
+                    flags |= FLAG_AUDIO;
+                    break;
+                case "EX":
+                    flags |= FLAG_FILE;
+                    break;
+                case "LN":
+                    flags |= FLAG_LINK;
+                    break;
+                case "MN":
+                    flags |= FLAG_MENTION;
+                    break;
+                case "HT":
+                    flags |= FLAG_HASHTAG;
+                    break;
+                case "QQ":
+                    flags |= FLAG_QUOTE;
+                    break;
+                case "BN":
+                    flags |= FLAG_BUTTON;
+                    break;
+            }
+            if (ent.data != null && (ent.data.get("ref") instanceof String ||
+                    ent.data.get("preref") instanceof String)) {
+                flags |= FLAG_REFERENCE;
+            }
+        }
+        return flags;
     }
 
     @Override
-    public Map<String, Object> getHead() {
+    public synchronized Map<String, Object> getHead() {
+        if (mRawHead != null) {
+            head = MessageCodec.decodeHead(mRawHead);
+            mRawHead = null;
+        }
         return head;
     }
 
+    @Override
+    public Object getHeader(String key) {
+        Map<String, Object> head = getHead();
+        return head == null ? null : head.get(key);
+    }
+
     @Override
     public Integer getIntHeader(String key) {
         Object val = getHeader(key);
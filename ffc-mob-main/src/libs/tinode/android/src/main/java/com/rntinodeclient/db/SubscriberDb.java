@@ -282,12 +282,13 @@ public class SubscriberDb implements BaseColumns {
      * @return _id of the user
      */
     private static int getNextSenderIndex(SQLiteDatabase db, long topicId) {
-        return (int) db.compileStatement("SELECT count(*) FROM " + TABLE_NAME +
-                " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId).simpleQueryForLong() + 1;
+        return (int) BaseDb.getInstance().getStatements().simpleQueryForLong(db, "subscriptions.count",
+                "SELECT count(*) FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_TOPIC_ID + "=?", topicId) + 1;
     }
 
     protected static Cursor query(SQLiteDatabase db, long topicId) {
-        return db.rawQuery("SELECT " +
+        return BaseDb.getInstance().getStatements().query(db, "subscriptions.query", "SELECT " +
                 TABLE_NAME + "." + _ID + "," +
                 TABLE_NAME + "." + COLUMN_NAME_TOPIC_ID + "," +
                 TABLE_NAME + "." + COLUMN_NAME_USER_ID + "," +
@@ -311,7 +312,7 @@ public class SubscriberDb implements BaseColumns {
                 " ON " + COLUMN_NAME_USER_ID + "=" + UserDb.TABLE_NAME + "." + UserDb._ID +
                 " LEFT JOIN " + TopicDb.TABLE_NAME +
                 " ON " + COLUMN_NAME_TOPIC_ID + "=" + TopicDb.TABLE_NAME + "." + TopicDb._ID +
-                " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId, null);
+                " WHERE " + COLUMN_NAME_TOPIC_ID + "=?", topicId);
 
     }
 
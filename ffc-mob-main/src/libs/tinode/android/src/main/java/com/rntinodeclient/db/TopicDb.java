@@ -13,6 +13,7 @@ import co.tinode.tinodesdk.ComTopic;
 import co.tinode.tinodesdk.MeTopic;
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.TopicHeader;
 
 /**
  * Store for topics
@@ -123,6 +124,10 @@ public class TopicDb implements BaseColumns {
      * Private topic description, serialized as TEXT
      */
     public static final String COLUMN_NAME_PRIVATE = "priv";
+    /**
+     * ID of the latest message in the topic, messages._ID. Maintained by triggers on the messages table.
+     */
+    public static final String COLUMN_NAME_LAST_MSG_ID = "last_msg_id";
 
     static final int COLUMN_IDX_ID = 0;
     // static final int COLUMN_IDX_ACCOUNT_ID = 1;
@@ -149,6 +154,7 @@ public class TopicDb implements BaseColumns {
     static final int COLUMN_IDX_PUBLIC = 22;
     static final int COLUMN_IDX_TRUSTED = 23;
     static final int COLUMN_IDX_PRIVATE = 24;
+    // static final int COLUMN_IDX_LAST_MSG_ID = 25;
     /**
      * SQL statement to create Messages table
      */
@@ -179,7 +185,13 @@ public class TopicDb implements BaseColumns {
                     COLUMN_NAME_CREDS + " TEXT," +
                     COLUMN_NAME_PUBLIC + " TEXT," +
                     COLUMN_NAME_TRUSTED + " TEXT," +
-                    COLUMN_NAME_PRIVATE + " TEXT)";
+                    COLUMN_NAME_PRIVATE + " TEXT," +
+                    COLUMN_NAME_LAST_MSG_ID + " INT)";
+    /**
+     * Add last_msg_id column to version 19 of the table.
+     */
+    static final String ADD_COLUMN_LAST_MSG_ID =
+            "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_NAME_LAST_MSG_ID + " INT";
     /**
      * Add index on account_id-topic name, in descending order
      */
@@ -331,6 +343,18 @@ public class TopicDb implements BaseColumns {
      */
     @SuppressWarnings("WeakerAccess")
     public static boolean msgReceived(SQLiteDatabase db, Topic topic, Date timestamp, int seq) {
+        return msgReceived(db, topic, timestamp, seq, seq);
+    }
+
+    /**
+     * A batch of messages was received and stored. Update topic record once for the whole batch.
+     *
+     * @param timestamp timestamp of the newest message in the batch.
+     * @param minSeq    the lowest seq ID in the batch.
+     * @param maxSeq    the highest seq ID in the batch.
+     * @return true on success, false otherwise
+     */
+    public static boolean msgReceived(SQLiteDatabase db, Topic topic, Date timestamp, int minSeq, int maxSeq) {
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st == null) {
             return false;
@@ -339,17 +363,17 @@ public class TopicDb implements BaseColumns {
         // Convert topic description to a map of values
         ContentValues values = new ContentValues();
 
-        if (seq > st.maxLocalSeq) {
-            values.put(COLUMN_NAME_MAX_LOCAL_SEQ, seq);
-            values.put(COLUMN_NAME_RECV, seq);
+        if (maxSeq > st.maxLocalSeq) {
+            values.put(COLUMN_NAME_MAX_LOCAL_SEQ, maxSeq);
+            values.put(COLUMN_NAME_RECV, maxSeq);
         }
 
-        if (seq > 0 && (st.minLocalSeq == 0 || seq < st.minLocalSeq)) {
-            values.put(COLUMN_NAME_MIN_LOCAL_SEQ, seq);
+        if (minSeq > 0 && (st.minLocalSeq == 0 || minSeq < st.minLocalSeq)) {
+            values.put(COLUMN_NAME_MIN_LOCAL_SEQ, minSeq);
         }
 
-        if (seq > topic.getSeq()) {
-            values.put(COLUMN_NAME_SEQ, seq);
+        if (maxSeq > topic.getSeq()) {
+            values.put(COLUMN_NAME_SEQ, maxSeq);
         }
 
         if (timestamp.after(st.lastUsed)) {
@@ -363,9 +387,9 @@ public class TopicDb implements BaseColumns {
             }
 
             st.lastUsed = timestamp.after(st.lastUsed) ? timestamp : st.lastUsed;
-            st.minLocalSeq = seq > 0 && (st.minLocalSeq == 0 || seq < st.minLocalSeq) ?
-                    seq : st.minLocalSeq;
-            st.maxLocalSeq = Math.max(seq, st.maxLocalSeq);
+            st.minLocalSeq = minSeq > 0 && (st.minLocalSeq == 0 || minSeq < st.minLocalSeq) ?
+                    minSeq : st.minLocalSeq;
+            st.maxLocalSeq = Math.max(maxSeq, st.maxLocalSeq);
         }
         return true;
     }
@@ -446,10 +470,42 @@ public class TopicDb implements BaseColumns {
     public static Cursor query(SQLiteDatabase db) {
         String sql = "SELECT * FROM " + TABLE_NAME +
                 " WHERE " +
-                COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
+                COLUMN_NAME_ACCOUNT_ID + "=?" +
+                " ORDER BY " + COLUMN_NAME_LASTUSED + " DESC";
+
+        BaseDb base = BaseDb.getInstance();
+        return base.getStatements().query(db, "topics.query", sql, base.getAccountId());
+    }
+
+    /**
+     * Query lightweight topic headers, most recently used first.
+     *
+     * @param db database to select from;
+     * @return cursor with name, updated, last_used, seq, read, recv columns.
+     */
+    public static Cursor queryHeaders(SQLiteDatabase db) {
+        String sql = "SELECT " +
+                COLUMN_NAME_TOPIC + "," +
+                COLUMN_NAME_UPDATED + "," +
+                COLUMN_NAME_LASTUSED + "," +
+                COLUMN_NAME_SEQ + "," +
+                COLUMN_NAME_READ + "," +
+                COLUMN_NAME_RECV +
+                " FROM " + TABLE_NAME +
+                " WHERE " +
+                COLUMN_NAME_ACCOUNT_ID + "=?" +
                 " ORDER BY " + COLUMN_NAME_LASTUSED + " DESC";
 
-        return db.rawQuery(sql, null);
+        BaseDb base = BaseDb.getInstance();
+        return base.getStatements().query(db, "topics.headers", sql, base.getAccountId());
+    }
+
+    /**
+     * Read topic header at the current cursor position of {@link #queryHeaders(SQLiteDatabase)}.
+     */
+    static TopicHeader readHeader(Cursor c) {
+        return new TopicHeader(c.getString(0), new Date(c.getLong(1)), new Date(c.getLong(2)),
+                c.getInt(3), c.getInt(4), c.getInt(5));
     }
 
     /**
@@ -477,9 +533,10 @@ public class TopicDb implements BaseColumns {
         Topic topic = null;
         String sql = "SELECT * FROM " + TABLE_NAME +
                 " WHERE " +
-                COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() + " AND " +
-                COLUMN_NAME_TOPIC + "='" + name + "'";
-        Cursor c = db.rawQuery(sql, null);
+                COLUMN_NAME_ACCOUNT_ID + "=? AND " +
+                COLUMN_NAME_TOPIC + "=?";
+        BaseDb base = BaseDb.getInstance();
+        Cursor c = base.getStatements().query(db, "topics.byName", sql, base.getAccountId(), name);
         if (c != null) {
             if (c.moveToFirst()) {
                 topic = readOne(tinode, c);
@@ -557,10 +614,12 @@ public class TopicDb implements BaseColumns {
      */
     public static long getId(SQLiteDatabase db, String topic) {
         try {
-            return db.compileStatement("SELECT " + _ID + " FROM " + TABLE_NAME +
+            BaseDb base = BaseDb.getInstance();
+            return base.getStatements().simpleQueryForLong(db, "topics.getId",
+                    "SELECT " + _ID + " FROM " + TABLE_NAME +
                     " WHERE " +
-                    COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() + " AND " +
-                    COLUMN_NAME_TOPIC + "='" + topic + "'").simpleQueryForLong();
+                    COLUMN_NAME_ACCOUNT_ID + "=? AND " +
+                    COLUMN_NAME_TOPIC + "=?", base.getAccountId(), topic);
         } catch (SQLException ignored) {
             // topic not found
             return -1;
@@ -4,6 +4,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.provider.BaseColumns;
 import android.util.Log;
 
@@ -198,16 +199,15 @@ public class UserDb implements BaseColumns {
                 "SELECT " + _ID +
                         " FROM " + TABLE_NAME +
                         " WHERE " +
-                        COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
+                        COLUMN_NAME_ACCOUNT_ID + "=?" +
                         " AND " +
-                        COLUMN_NAME_UID + "='" + (uid != null ? uid : UID_NULL) + "'";
-        // Log.d(TAG, sql);
-        Cursor c = db.rawQuery(sql, null);
-        if (c != null && c.getCount() > 0) {
-            if (c.moveToFirst()) {
-                id = c.getLong(0);
-            }
-            c.close();
+                        COLUMN_NAME_UID + "=?";
+        BaseDb base = BaseDb.getInstance();
+        try {
+            id = base.getStatements().simpleQueryForLong(db, "users.getId", sql,
+                    base.getAccountId(), uid != null ? uid : UID_NULL);
+        } catch (SQLiteDoneException ignored) {
+            // User not found.
         }
         return id;
     }
@@ -219,11 +219,13 @@ public class UserDb implements BaseColumns {
         String sql =
                 "SELECT * FROM " + TABLE_NAME +
                         " WHERE " +
-                        COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
+                        COLUMN_NAME_ACCOUNT_ID + "=?" +
                         " AND " +
-                        COLUMN_NAME_UID + "='" + (uid != null ? uid : UID_NULL) + "'";
+                        COLUMN_NAME_UID + "=?";
 
-        Cursor c = db.rawQuery(sql, null);
+        BaseDb base = BaseDb.getInstance();
+        Cursor c = base.getStatements().query(db, "users.byUid", sql,
+                base.getAccountId(), uid != null ? uid : UID_NULL);
         if (c != null && c.getCount() > 0) {
             user = new User<>(uid);
             if (c.moveToFirst()) {
@@ -0,0 +1,47 @@
+package co.tinode.tinodesdk.model;
+
+import org.junit.Test;
+
+// Microbenchmark of Drafty.parse against the regex parser it replaced. Reports timings only,
+// it does not fail on slow machines.
+public class DraftyParseBenchmark {
+    private static final String[] MESSAGES = {
+            "ok",
+            "see you at 5, bring the *documents* please",
+            "this is *bold*, `code` and _italic_, ~strike~\ncombined *bold and _italic_*\n" +
+                    "an url: https://www.example.com/abc#fragment and another _www.tinode.co_\n" +
+                    "this is a @mention and a #hashtag in a string\nsecond #hashtag",
+            "Привет! Как дела? Посмотри https://example.org/путь и напиши @ivan.petrov #срочно",
+            "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt " +
+                    "ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation " +
+                    "ullamco laboris nisi ut aliquip ex ea commodo consequat."
+    };
+
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int ITERATIONS = 5000;
+
+    // Keeps the JIT from dropping the parse calls.
+    private static int sSink;
+
+    @Test
+    public void parse() {
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            for (String msg : MESSAGES) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sSink += RegexDraftyParser.parse(msg).txt.length();
+                }
+                long t1 = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sSink += Drafty.parse(msg).txt.length();
+                }
+                long t2 = System.nanoTime();
+                if (round == WARMUP_ROUNDS) {
+                    System.out.printf("len=%4d regex %7.0f ns  scanner %7.0f ns  x%.1f%n", msg.length(),
+                            (t1 - t0) / (double) ITERATIONS, (t2 - t1) / (double) ITERATIONS,
+                            (t1 - t0) / (double) (t2 - t1));
+                }
+            }
+        }
+    }
+}
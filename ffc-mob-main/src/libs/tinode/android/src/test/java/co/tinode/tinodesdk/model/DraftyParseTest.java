@@ -0,0 +1,127 @@
+package co.tinode.tinodesdk.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Checks that the single-pass Drafty.parse produces exactly what the regex parser did.
+public class DraftyParseTest {
+    private static final String[] CORPUS = {
+            "",
+            "ok",
+            " ",
+            "\n",
+            "\r\n\r\n",
+            "line one\nline two\r\nline three\r\r\n",
+            "trailing\n\n\n",
+            // Plain styles.
+            "this is *bold*, `code` and _italic_, ~strike~",
+            "*bold*",
+            "x*bold*x",
+            "_x_ *y* ~z~ `w`",
+            "snake_case_name and *a*b*",
+            // Nested and overlapping styles.
+            "combined *bold and _italic_*",
+            "*bold _italic ~strike `code`~_*",
+            "*bold _overlap* italic_",
+            "_it *over_ bold*",
+            "~a *b~ c* _d_",
+            "*a* *b _c* d_ e*",
+            "`code *not bold*`",
+            "*`code` in bold*",
+            // Malformed markup.
+            "*",
+            "**",
+            "***",
+            "* not bold *",
+            "*not bold *",
+            "* not bold*",
+            "*unclosed bold",
+            "closed only*",
+            "_",
+            "__init__",
+            "~~",
+            "``",
+            "`a",
+            "*_~`",
+            "*_*_*_*",
+            "a*b*c",
+            "*\n*",
+            "*bold\nacross*",
+            // Entities.
+            "an url: https://www.example.com/abc#fragment and another _www.tinode.co_",
+            "this is a @mention and a #hashtag in a string\nsecond #hashtag",
+            "HTTP://EXAMPLE.COM/Path?q=1&x=%20",
+            "www.example.community",
+            "x.y.z.w.v.u.t.com",
+            "a.b ab.cd ab.c",
+            "example.com.",
+            "@a @ab @a.b @a.b. #a_b. #1 #12",
+            "mail me@example.com or @user_name_",
+            "#tag#tag @u@u",
+            "repeat #tag and #tag and https://tinode.co and tinode.co",
+            "*https://example.com*",
+            "_@mention_ ~#hashtag~ `www.example.com`",
+            "*bold http://example.com/a_b_ link*",
+            // Unicode.
+            "Привет! Посмотри https://example.org/путь и напиши @ivan.petrov #срочно",
+            "😀 *😀* _é_ @😀 #ж3",
+            "cafe\u0301 *cafe\u0301* #cafe\u0301",
+            "\u212a *\u017f* K\u0301",
+            "a\u00a0*b*\u00a0c",
+            "\u2028*x*\u0085",
+            "٣ ² Ⅻ #٣٣ @ⅫⅫ",
+            "\ud83d\ude00\ud83d",
+            "*\ud83d*",
+            "\u200d*a\u200db*\u200d",
+    };
+
+    private static final String[] ATOMS = {
+            "*", "_", "~", "`", "@", "#", ".", "/", ":", "-", "?", "=", "&", "%", "+", " ", "  ", "\t",
+            "\r", "\n", "\r\n", "a", "b", "x", "Z", "K", "H", "1", "9", "é", "ж", "😀", "𝐀", "ſ",
+            "\u212a", "\u00a0", "\u2028", "\u0301", "٣", "²", "Ⅻ", "\u200d", "\u0085",
+            "http://", "https://", "HTTP://", "www.", "WWW.", ".com", ".co", ".community",
+            "example", "tinode", "a-b", "--", "*bold*", "_it_", "~st~", "`co`",
+            "@user", "#tag", "@a.b", "#a_b.", "http://www.example.com/abc#frag", "ab.cd", "a.b"
+    };
+
+    @Test
+    public void corpusMatchesRegexParser() {
+        for (String content : CORPUS) {
+            assertSameParse(content);
+        }
+    }
+
+    @Test
+    public void nullMatchesRegexParser() {
+        assertEquals(RegexDraftyParser.parse(null), Drafty.parse(null));
+    }
+
+    @Test
+    public void generatedInputMatchesRegexParser() {
+        Random rnd = new Random(20240521L);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int count = rnd.nextInt(i % 10 == 0 ? 80 : 25);
+            for (int k = 0; k < count; k++) {
+                sb.append(ATOMS[rnd.nextInt(ATOMS.length)]);
+            }
+            assertSameParse(sb.toString());
+        }
+    }
+
+    private static void assertSameParse(String content) {
+        Drafty expected = RegexDraftyParser.parse(content);
+        Drafty actual = Drafty.parse(content);
+        String input = "'" + content.replace("\r", "\\r").replace("\n", "\\n") + "'";
+        assertEquals(input, describe(expected), describe(actual));
+        assertEquals(input, expected, actual);
+    }
+
+    private static String describe(Drafty d) {
+        return d.txt + " fmt=" + Arrays.toString(d.fmt) + " ent=" + Arrays.toString(d.ent);
+    }
+}
@@ -0,0 +1,269 @@
+package co.tinode.tinodesdk.model;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Regex implementation of {@link Drafty#parse(String)} as it was before the single-pass scanner.
+ * Kept only as the reference the scanner is checked against.
+ */
+final class RegexDraftyParser {
+    private static final String[] INLINE_STYLE_NAME = {
+            "ST", "EM", "DL", "CO"
+    };
+    private static final Pattern[] INLINE_STYLE_RE = {
+            Pattern.compile("(?<=^|[\\W_])\\*([^*]+[^\\s*])\\*(?=$|[\\W_])"), // bold *bo*
+            Pattern.compile("(?<=^|\\W)_([^_]+[^\\s_])_(?=$|\\W)"),    // italic _it_
+            Pattern.compile("(?<=^|[\\W_])~([^~]+[^\\s~])~(?=$|[\\W_])"), // strikethough ~st~
+            Pattern.compile("(?<=^|\\W)`([^`]+)`(?=$|\\W)")     // code/monospace `mono`
+    };
+
+    private static final String[] ENTITY_NAME = {"LN", "MN", "HT"};
+    private static final Pattern[] ENTITY_RE = {
+            Pattern.compile("(?<=^|[\\W_])(https?://)?(?:www\\.)?(?:[a-z0-9][-a-z0-9]*[a-z0-9]\\.){1,5}" +
+                    "[a-z]{2,6}(?:[/?#:][-a-z0-9@:%_+.~#?&/=]*)?", Pattern.CASE_INSENSITIVE),
+            Pattern.compile("(?<=^|[\\W_])@([\\p{L}\\p{N}][._\\p{L}\\p{N}]*[\\p{L}\\p{N}])"),
+            Pattern.compile("(?<=^|[\\W_])#([\\p{L}\\p{N}][._\\p{L}\\p{N}]*[\\p{L}\\p{N}])")
+    };
+
+    private RegexDraftyParser() {
+    }
+
+    static Drafty parse(String content) {
+        if (content == null) {
+            return Drafty.fromPlainText("");
+        }
+        content = Normalizer.normalize(content, Normalizer.Form.NFC);
+
+        String[] lines = content.split("\\r?\\n");
+        List<Block> blks = new ArrayList<>();
+        List<Drafty.Entity> refs = new ArrayList<>();
+
+        List<Span> spans = new ArrayList<>();
+        Map<String, Integer> entityMap = new HashMap<>();
+        for (String line : lines) {
+            spans.clear();
+            for (int i = 0; i < INLINE_STYLE_NAME.length; i++) {
+                spans.addAll(spannify(line, INLINE_STYLE_RE[i], INLINE_STYLE_NAME[i]));
+            }
+
+            Block b;
+            if (!spans.isEmpty()) {
+                Collections.sort(spans);
+                spans = toSpanTree(spans);
+                spans = chunkify(line, 0, line.length(), spans);
+                b = draftify(spans, 0);
+            } else {
+                b = new Block(line);
+            }
+
+            for (int i = 0; i < ENTITY_NAME.length; i++) {
+                Matcher matcher = ENTITY_RE[i].matcher(b.txt);
+                while (matcher.find()) {
+                    String value = matcher.group(0);
+                    Integer index = entityMap.get(value);
+                    if (index == null) {
+                        index = refs.size();
+                        entityMap.put(value, index);
+                        Map<String, Object> data = new HashMap<>();
+                        if (i == 0) {
+                            data.put("url", matcher.group(1) == null ? "http://" + value : value);
+                        } else {
+                            data.put("val", value);
+                        }
+                        refs.add(new Drafty.Entity(ENTITY_NAME[i], data));
+                    }
+                    b.addStyle(new Drafty.Style(matcher.start(0), value.length(), index));
+                }
+            }
+
+            blks.add(b);
+        }
+
+        StringBuilder text = new StringBuilder();
+        List<Drafty.Style> fmt = new ArrayList<>();
+        if (blks.size() > 0) {
+            Block b = blks.get(0);
+            if (b.txt != null) {
+                text.append(b.txt);
+            }
+            if (b.fmt != null) {
+                for (Drafty.Style s : b.fmt) {
+                    fmt.add(s.convertToCodePoints(text));
+                }
+            }
+
+            for (int i = 1; i < blks.size(); i++) {
+                int offset = text.codePointCount(0, text.length()) + 1;
+                fmt.add(new Drafty.Style("BR", offset - 1, 1));
+
+                b = blks.get(i);
+                text.append(" ");
+                if (b.txt != null) {
+                    text.append(b.txt);
+                }
+                if (b.fmt != null) {
+                    for (Drafty.Style s : b.fmt) {
+                        s.at += offset;
+                        fmt.add(s);
+                    }
+                }
+            }
+        }
+
+        return new Drafty(text.toString(),
+                fmt.size() > 0 ? fmt.toArray(new Drafty.Style[0]) : null,
+                refs.size() > 0 ? refs.toArray(new Drafty.Entity[0]) : null);
+    }
+
+    private static List<Span> spannify(String original, Pattern re, String type) {
+        List<Span> spans = new ArrayList<>();
+        Matcher matcher = re.matcher(original);
+        while (matcher.find()) {
+            Span s = new Span();
+            s.start = matcher.start(0);
+            s.end = matcher.end(1);
+            s.text = matcher.group(1);
+            s.type = type;
+            spans.add(s);
+        }
+        return spans;
+    }
+
+    private static List<Span> chunkify(String line, int start, int end, List<Span> spans) {
+        if (spans == null || spans.size() == 0) {
+            return null;
+        }
+
+        List<Span> chunks = new ArrayList<>();
+        for (Span span : spans) {
+            if (span.start > start) {
+                chunks.add(new Span(line.substring(start, span.start)));
+            }
+
+            Span chunk = new Span();
+            chunk.type = span.type;
+
+            List<Span> chld = chunkify(line, span.start + 1, span.end, span.children);
+            if (chld != null) {
+                chunk.children = chld;
+            } else {
+                chunk.text = span.text;
+            }
+
+            chunks.add(chunk);
+            start = span.end + 1;
+        }
+
+        if (start < end) {
+            chunks.add(new Span(line.substring(start, end)));
+        }
+
+        return chunks;
+    }
+
+    private static List<Span> toSpanTree(List<Span> spans) {
+        if (spans == null || spans.isEmpty()) {
+            return null;
+        }
+
+        List<Span> tree = new ArrayList<>();
+
+        Span last = spans.get(0);
+        tree.add(last);
+        for (int i = 1; i < spans.size(); i++) {
+            Span curr = spans.get(i);
+            if (curr.start > last.end) {
+                tree.add(curr);
+                last = curr;
+            } else if (curr.end < last.end) {
+                if (last.children == null) {
+                    last.children = new ArrayList<>();
+                }
+                last.children.add(curr);
+            }
+        }
+
+        for (Span s : tree) {
+            s.children = toSpanTree(s.children);
+        }
+
+        return tree;
+    }
+
+    private static Block draftify(List<Span> chunks, int startAt) {
+        if (chunks == null) {
+            return null;
+        }
+
+        Block block = new Block("");
+        List<Drafty.Style> ranges = new ArrayList<>();
+        for (Span chunk : chunks) {
+            if (chunk.text == null) {
+                Block drafty = draftify(chunk.children, block.txt.length() + startAt);
+                if (drafty != null) {
+                    chunk.text = drafty.txt;
+                    if (drafty.fmt != null) {
+                        ranges.addAll(drafty.fmt);
+                    }
+                }
+            }
+
+            if (chunk.type != null) {
+                ranges.add(new Drafty.Style(chunk.type, block.txt.length() + startAt, chunk.text.length()));
+            }
+
+            if (chunk.text != null) {
+                block.txt += chunk.text;
+            }
+        }
+
+        if (ranges.size() > 0) {
+            block.fmt = ranges;
+        }
+
+        return block;
+    }
+
+    private static class Block {
+        String txt;
+        List<Drafty.Style> fmt;
+
+        Block(String txt) {
+            this.txt = txt;
+        }
+
+        void addStyle(Drafty.Style s) {
+            if (fmt == null) {
+                fmt = new ArrayList<>();
+            }
+            fmt.add(s);
+        }
+    }
+
+    private static class Span implements Comparable<Span> {
+        int start;
+        int end;
+        String text;
+        String type;
+        List<Span> children;
+
+        Span() {
+        }
+
+        Span(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int compareTo(Span s) {
+            return start - s.start;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.rntinodeclient.db;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageCodecTest {
+
+    @Test
+    public void headRoundTrip() {
+        Map<String, Object> head = new HashMap<>();
+        head.put("mime", "text/x-drafty");
+        head.put("replace", ":12");
+        head.put("count", 3);
+        head.put("big", 1L << 40);
+        head.put("ratio", 0.25);
+        head.put("webrtc", true);
+        head.put("empty", null);
+
+        Map<String, Object> decoded = MessageCodec.decodeHead(MessageCodec.encodeHead(head));
+        assertEquals(head, decoded);
+        assertEquals(HashMap.class, decoded.getClass());
+    }
+
+    @Test
+    public void nestedDataRoundTrip() {
+        Map<String, Object> inner = new HashMap<>();
+        inner.put("w", 640);
+        inner.put("h", 480);
+        List<Object> list = new ArrayList<>();
+        list.add("a");
+        list.add(null);
+        list.add(inner);
+        Map<String, Object> data = new HashMap<>();
+        data.put("mime", "image/jpeg");
+        data.put("size", 123456789012L);
+        data.put("dims", inner);
+        data.put("list", list);
+        data.put("tags", new Object[]{"x", 1});
+
+        Drafty content = new Drafty();
+        content.txt = "photo";
+        content.fmt = new Drafty.Style[]{new Drafty.Style("ST", 0, 5), new Drafty.Style(0, 5, 0)};
+        content.ent = new Drafty.Entity[]{new Drafty.Entity("IM", data)};
+
+        Drafty decoded = MessageCodec.decodeContent(MessageCodec.encodeContent(content));
+        // Arrays are decoded as lists, like in the JSON round trip.
+        data.put("tags", Arrays.asList("x", 1));
+        assertEquals(content, decoded);
+    }
+
+    @Test
+    public void bytesDecodeAsBase64() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("val", new byte[]{1, 2, 3});
+        Drafty content = new Drafty();
+        content.txt = " ";
+        content.ent = new Drafty.Entity[]{new Drafty.Entity("IM", data)};
+
+        Drafty decoded = MessageCodec.decodeContent(MessageCodec.encodeContent(content));
+        assertEquals("AQID", decoded.ent[0].data.get("val"));
+    }
+
+    @Test
+    public void nullsRoundTrip() {
+        assertNull(MessageCodec.encodeContent(null));
+        assertNull(MessageCodec.encodeHead(null));
+        assertNull(MessageCodec.decodeContent(null));
+        assertNull(MessageCodec.decodeHead(null));
+
+        Drafty empty = new Drafty();
+        assertEquals(empty, MessageCodec.decodeContent(MessageCodec.encodeContent(empty)));
+
+        Drafty.Style style = new Drafty.Style("EM", 1, 2);
+        Drafty content = new Drafty();
+        content.txt = "hello";
+        content.fmt = new Drafty.Style[]{null, style, new Drafty.Style(0, 1, 1)};
+        content.ent = new Drafty.Entity[]{null, new Drafty.Entity("LN", null)};
+
+        Drafty decoded = MessageCodec.decodeContent(MessageCodec.encodeContent(content));
+        // Null styles are dropped, null entities become empty ones so style keys still match.
+        assertEquals(2, decoded.fmt.length);
+        assertEquals(style, decoded.fmt[0]);
+        assertEquals(Integer.valueOf(1), decoded.fmt[1].key);
+        assertEquals(new Drafty.Entity(), decoded.ent[0]);
+        assertEquals(new Drafty.Entity("LN", null), decoded.ent[1]);
+    }
+
+    @Test
+    public void legacyJsonFallback() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("url", "https://tinode.co");
+        Drafty content = new Drafty();
+        content.txt = "tinode.co";
+        content.fmt = new Drafty.Style[]{new Drafty.Style(0, 9, 0)};
+        content.ent = new Drafty.Entity[]{new Drafty.Entity("LN", data)};
+
+        assertEquals(content, MessageCodec.decodeContent(BaseDb.serialize(content)));
+
+        Map<String, Object> head = new HashMap<>();
+        head.put("mime", "text/x-drafty");
+        assertEquals(head, MessageCodec.decodeHead(BaseDb.serialize(head)));
+    }
+
+    @Test
+    public void unknownEncodingIsIgnored() {
+        byte[] bytes = MessageCodec.encodeContent(Drafty.fromPlainText("text"));
+        bytes[0] = 99;
+        assertNull(MessageCodec.decodeContent(bytes));
+        assertNull(MessageCodec.decodeHead(new byte[]{1}));
+    }
+}
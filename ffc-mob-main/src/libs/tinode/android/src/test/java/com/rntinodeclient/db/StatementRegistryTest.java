@@ -0,0 +1,117 @@
+package com.rntinodeclient.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(RobolectricTestRunner.class)
+public class StatementRegistryTest {
+    private SQLiteDatabase mDb;
+    private StatementRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(AccountDb.CREATE_TABLE);
+        mDb.execSQL(TopicDb.CREATE_TABLE);
+        mDb.execSQL(UserDb.CREATE_TABLE);
+        mDb.execSQL(MessageDb.CREATE_TABLE);
+        mRegistry = new StatementRegistry();
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    // messages.topic_id has no type affinity: the lookup matches only if the ID is bound as a number.
+    @Test
+    public void queryByTopicIdReturnsRows() {
+        for (int seq = 1; seq <= 3; seq++) {
+            mDb.execSQL("INSERT INTO " + MessageDb.TABLE_NAME + " (" +
+                    MessageDb.COLUMN_NAME_TOPIC_ID + "," + MessageDb.COLUMN_NAME_SEQ + ") VALUES (?,?)",
+                    new Object[]{5L, seq});
+        }
+        mDb.execSQL("INSERT INTO " + MessageDb.TABLE_NAME + " (" +
+                MessageDb.COLUMN_NAME_TOPIC_ID + "," + MessageDb.COLUMN_NAME_SEQ + ") VALUES (?,?)",
+                new Object[]{6L, 1});
+
+        try (Cursor c = mRegistry.query(mDb, "test.byTopic",
+                "SELECT " + MessageDb.COLUMN_NAME_SEQ + " FROM " + MessageDb.TABLE_NAME +
+                        " WHERE " + MessageDb.COLUMN_NAME_TOPIC_ID + "=? ORDER BY " + MessageDb.COLUMN_NAME_SEQ +
+                        " LIMIT ?", 5L, 10)) {
+            assertEquals(3, c.getCount());
+            c.moveToFirst();
+            assertEquals(1, c.getInt(0));
+        }
+    }
+
+    @Test
+    public void queryBindsNulls() {
+        mDb.execSQL("INSERT INTO " + MessageDb.TABLE_NAME + " (" +
+                MessageDb.COLUMN_NAME_TOPIC_ID + ") VALUES (?)", new Object[]{5L});
+
+        try (Cursor c = mRegistry.query(mDb, "test.noTs",
+                "SELECT " + MessageDb._ID + " FROM " + MessageDb.TABLE_NAME +
+                        " WHERE " + MessageDb.COLUMN_NAME_TOPIC_ID + "=? AND " +
+                        MessageDb.COLUMN_NAME_TS + " IS ?", 5L, null)) {
+            assertEquals(1, c.getCount());
+        }
+    }
+
+    // One thread holds the connection in a transaction and then uses the registry, while another
+    // thread uses the registry and waits for the connection. Neither may wait for the other forever.
+    @Test
+    public void statementsDoNotBlockTransactions() throws InterruptedException {
+        final String sql = "SELECT COUNT(*) FROM " + MessageDb.TABLE_NAME +
+                " WHERE " + MessageDb.COLUMN_NAME_TOPIC_ID + "=?";
+        final CountDownLatch inTransaction = new CountDownLatch(1);
+        final AtomicLong writerCount = new AtomicLong(-1);
+        final AtomicLong readerCount = new AtomicLong(-1);
+
+        Thread writer = new Thread(() -> {
+            mDb.beginTransaction();
+            try {
+                mDb.execSQL("INSERT INTO " + MessageDb.TABLE_NAME + " (" +
+                        MessageDb.COLUMN_NAME_TOPIC_ID + ") VALUES (?)", new Object[]{5L});
+                inTransaction.countDown();
+                // Let the reader start its statement and block on the connection.
+                Thread.sleep(200);
+                writerCount.set(mRegistry.simpleQueryForLong(mDb, "test.count", sql, 5L));
+                mDb.setTransactionSuccessful();
+            } catch (InterruptedException ignored) {
+            } finally {
+                mDb.endTransaction();
+            }
+        });
+        Thread reader = new Thread(() -> {
+            try {
+                inTransaction.await();
+            } catch (InterruptedException ignored) {
+                return;
+            }
+            readerCount.set(mRegistry.simpleQueryForLong(mDb, "test.count", sql, 5L));
+        });
+
+        writer.start();
+        reader.start();
+        writer.join(5000);
+        reader.join(5000);
+
+        assertFalse("writer deadlocked", writer.isAlive());
+        assertFalse("reader deadlocked", reader.isAlive());
+        assertEquals(1, writerCount.get());
+        assertEquals(1, readerCount.get());
+    }
+}
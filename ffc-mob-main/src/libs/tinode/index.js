@@ -5,10 +5,28 @@ const tinodeEventEmitter = new NativeEventEmitter();
 const coversationListeners = new Map();
 let currentEmail = null;
 let hostname = 'sandbox.tinode.co';
-tinodeEventEmitter.addListener('conversationChange', (contacts) => {
-	dispatchConversationChange(contacts);
+// Last known conversation list, kept up to date with deltas from the native side.
+let conversations = [];
+tinodeEventEmitter.addListener('conversationChange', (delta) => {
+	conversations = applyConversationDelta(conversations, delta);
+	dispatchConversationChange(conversations);
 });
 
+const applyConversationDelta = (list, delta) => {
+	const byTopic = new Map();
+	if (!delta.reset) {
+		list.forEach((c) => byTopic.set(c.topic, c));
+	}
+	delta.removed.forEach((topic) => byTopic.delete(topic));
+	delta.updated.forEach((c) => byTopic.set(c.topic, c));
+	if (delta.order) {
+		return delta.order.map((topic) => byTopic.get(topic)).filter(Boolean);
+	}
+	return list
+		.filter((c) => byTopic.has(c.topic))
+		.map((c) => byTopic.get(c.topic));
+};
+
 const addConversationListener = (key, listener) => {
 	if (!key || coversationListeners.has(key)) {
 		return;
@@ -77,20 +95,143 @@ const getTinode = () => {
 	return RNTinodeClient;
 };
 
+// Headers of all conversations, most recent first: [{topic, touched, unreadCount}].
+// Cheap: conversations are not loaded from the local store.
+const getTopicHeaders = () => {
+	return RNTinodeClient.getTopicHeaders();
+};
+
+// Load conversations shown on screen. Rows with 'loaded: false' carry only the header fields;
+// their full versions follow as 'conversationChange' events.
+const hydrateTopics = (topics) => {
+	if (topics.length > 0) {
+		RNTinodeClient.hydrateTopics(topics);
+	}
+};
+
 const getConnversations = async () => {
 	const isLogged = await isAuth();
 	if (isLogged) {
 		return new Promise((resolve) => {
-			RNTinodeClient.getConversationList(resolve);
+			RNTinodeClient.getConversationList((list) => {
+				conversations = list;
+				resolve(list);
+			});
 		});
 	}
 	return [];
 };
 
+// Limit the rate of conversation list updates, per second.
+const setConversationEmitRate = (maxPerSecond) => {
+	RNTinodeClient.setConversationEmitRate(maxPerSecond);
+};
+
+// Timing counters of the hot local DB statements, sorted by total time.
+const getDbStats = (reset = false) => {
+	return RNTinodeClient.getDbStats(reset);
+};
+
+// Search local message history. Options: topic, from (sender UID), since and before (ms), limit.
+// Resolves to [{msgId, topic, seqId, from, ts, text}], best matches first.
+const searchMessages = (query, options = {}) => {
+	return RNTinodeClient.searchMessages(query, options);
+};
+
+// Entities shared in the topic, newest first, e.g. ['IM', 'VD'] for a media gallery.
+// Options: beforeTs and beforeId of the last item of the previous page, limit.
+// Resolves to [{id, msgId, seqId, ts, tp, ref, mime, size, name, uid}].
+const getTopicEntities = (topic, types, options = {}) => {
+	return RNTinodeClient.getTopicEntities(topic, types, options);
+};
+
+// Mentions of a user, the current one by default, newest first.
+// Options: topic (all topics if missing), uid, beforeTs, beforeId, limit.
+const getMentions = (options = {}) => {
+	return RNTinodeClient.getMentions(options);
+};
+
+// Local file URI of a cached attachment, or null if it has not been downloaded.
+const getCachedFile = (ref) => {
+	return RNTinodeClient.getCachedFile(ref);
+};
+
+// Download attachment into the local cache (if needed), resolves to the local file URI.
+const downloadAttachment = (ref) => {
+	return RNTinodeClient.downloadAttachment(ref);
+};
+
+// Size, entry count and hit/miss counters of the attachment cache.
+const getBlobCacheStats = () => {
+	return RNTinodeClient.getBlobCacheStats();
+};
+
+// Queue depth, running transfers and bandwidth of file uploads and downloads.
+const getTransferStats = () => {
+	return RNTinodeClient.getTransferStats();
+};
+
+// Size, throughput and retry count of the recent attachment downloads.
+const getDownloadStats = () => {
+	return RNTinodeClient.getDownloadStats();
+};
+
+const clearBlobCache = () => {
+	RNTinodeClient.clearBlobCache();
+};
+
+// Page the chat message window towards older messages, e.g. when the top of the list is reached.
+// Changes arrive as 'onMessageDiff' events.
+const loadOlderMessages = () => {
+	RNTinodeClient.loadOlderMessages();
+};
+
+// Page the chat message window back towards the latest messages.
+const loadNewerMessages = () => {
+	RNTinodeClient.loadNewerMessages();
+};
+
+// Apply 'onMessageDiff' event to the current message list, newest first.
+const applyMessageDiff = (list, diff) => {
+	if (diff.reset) {
+		return diff.inserted;
+	}
+	const changed = new Map();
+	diff.updated.forEach((m) => changed.set(m.msgId, m));
+	const removed = new Set(diff.removed);
+	const next = [];
+	list.forEach((m) => {
+		if (!removed.has(m.msgId)) {
+			next.push(changed.get(m.msgId) || m);
+		}
+	});
+	if (diff.inserted.length > 0) {
+		next.push(...diff.inserted);
+		next.sort((a, b) => b.seqId - a.seqId);
+	}
+	return next;
+};
+
 module.exports = {
+	applyMessageDiff,
+	loadOlderMessages,
+	loadNewerMessages,
+	getCachedFile,
+	downloadAttachment,
+	getBlobCacheStats,
+	getDownloadStats,
+	getTransferStats,
+	clearBlobCache,
+	setConversationEmitRate,
+	getDbStats,
+	searchMessages,
+	getTopicEntities,
+	getMentions,
 	removeConversationListener,
 	addConversationListener,
 	getConnversations,
+	getTopicHeaders,
+	hydrateTopics,
 	clearCurrent,
 	getTinode,
 	initClient,
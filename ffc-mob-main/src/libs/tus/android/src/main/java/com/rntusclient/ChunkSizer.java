@@ -0,0 +1,133 @@
+package com.rntusclient;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+
+import io.tus.java.client.ProtocolException;
+import io.tus.java.client.TusUploader;
+
+/**
+ * Picks the size of the next PATCH request from the measured throughput and round trip time.
+ * Each request should take long enough for the per-request overhead (round trip, server commit)
+ * to be small, but not so long that a dropped connection loses much work.
+ */
+class ChunkSizer {
+  private static final int MIN_CHUNK = 256 * 1024;
+  // tus buffers a whole chunk in memory.
+  private static final int MAX_CHUNK = 16 * 1024 * 1024;
+  private static final int ALIGN = 64 * 1024;
+  // Target duration of a single request.
+  private static final long TARGET_MS = 4000;
+  // A request should last at least this many round trips.
+  private static final int RTT_FACTOR = 20;
+  // Weight of the newest sample in moving averages.
+  private static final double ALPHA = 0.3;
+
+  interface ChunkListener {
+    /**
+     * Called before each chunk with the number of bytes uploaded so far.
+     * @return false to stop the upload.
+     */
+    boolean onChunk(long offset);
+  }
+
+  private final boolean adaptive;
+  private int chunkSize;
+  // Bytes per millisecond, 0 until measured.
+  private double throughput = 0;
+  // Milliseconds, 0 until measured.
+  private double rtt = 0;
+
+  ChunkSizer(int initial, boolean adaptive) {
+    this.adaptive = adaptive;
+    this.chunkSize = adaptive ? clamp(initial) : initial;
+  }
+
+  synchronized int getChunkSize() {
+    return chunkSize;
+  }
+
+  /** Bytes per second. */
+  synchronized double getThroughput() {
+    return throughput * 1000;
+  }
+
+  synchronized long getRtt() {
+    return (long) rtt;
+  }
+
+  /**
+   * Duration of a request without a body, e.g. upload creation or offset lookup.
+   */
+  synchronized void onRoundTrip(long ms) {
+    rtt = rtt == 0 ? ms : rtt + ALPHA * (ms - rtt);
+  }
+
+  /**
+   * A request with 'bytes' of payload completed in 'ms' milliseconds.
+   */
+  synchronized void onChunk(long bytes, long ms) {
+    if (ms <= 0) {
+      return;
+    }
+    // Time spent sending the payload, without the round trip.
+    double sample = bytes / Math.max(ms - rtt, ms / 2.0);
+    throughput = throughput == 0 ? sample : throughput + ALPHA * (sample - throughput);
+    if (!adaptive) {
+      return;
+    }
+    long target = (long) (throughput * Math.max(TARGET_MS, rtt * RTT_FACTOR));
+    // Change gradually: at most double or halve per request.
+    target = Math.max(chunkSize / 2, Math.min(chunkSize * 2L, target));
+    chunkSize = clamp(target);
+  }
+
+  /**
+   * A request has failed: the link is probably weak.
+   */
+  synchronized void onFailure() {
+    if (adaptive) {
+      chunkSize = clamp(chunkSize / 2);
+    }
+  }
+
+  /**
+   * Upload the rest of the file. Every request carries one chunk, so the size can change between requests.
+   * @return false if stopped by the listener.
+   */
+  boolean uploadChunks(TusUploader uploader, ChunkListener listener) throws ProtocolException, IOException {
+    int size = getChunkSize();
+    uploader.setChunkSize(size);
+    uploader.setRequestPayloadSize(size);
+    while (listener.onChunk(uploader.getOffset())) {
+      long start = SystemClock.elapsedRealtime();
+      int sent;
+      try {
+        sent = uploader.uploadChunk();
+      } catch (ProtocolException | IOException e) {
+        onFailure();
+        throw e;
+      }
+      if (sent == -1) {
+        return true;
+      }
+      if (sent == size) {
+        // The request is complete: the next one may have a different size.
+        onChunk(sent, SystemClock.elapsedRealtime() - start);
+        int next = getChunkSize();
+        if (next != size) {
+          size = next;
+          uploader.setChunkSize(size);
+          uploader.setRequestPayloadSize(size);
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int clamp(long size) {
+    size = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, size));
+    return (int) (size / ALIGN * ALIGN);
+  }
+}
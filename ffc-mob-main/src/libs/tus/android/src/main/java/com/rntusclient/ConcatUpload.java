@@ -0,0 +1,335 @@
+package com.rntusclient;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import co.tinode.tinodesdk.TransferScheduler;
+import io.tus.java.client.ProtocolException;
+import io.tus.java.client.TusClient;
+import io.tus.java.client.TusExecutor;
+import io.tus.java.client.TusUpload;
+import io.tus.java.client.TusUploader;
+
+/**
+ * Upload of a large file as several partial uploads sent in parallel, then concatenated into the
+ * final upload by the server (tus concatenation extension).
+ * <p>
+ * Parts share the transfer slot of the upload. URLs and offsets of the partial uploads are kept in
+ * the upload store, so an interrupted upload resumes each part from its offset.
+ */
+class ConcatUpload {
+  // Parts are never smaller than this.
+  private static final long MIN_PART_SIZE = 32L * 1024 * 1024;
+
+  interface ProgressListener {
+    void onProgress(long bytesUploaded, long bytesTotal);
+  }
+
+  private final TusClient client;
+  private final UploadStore store;
+  private final File file;
+  private final TusUpload upload;
+  private final ChunkSizer sizer;
+  private final ProgressListener listener;
+  private final TransferScheduler scheduler = TransferScheduler.getInstance();
+
+  private final long[] offsets;
+  private volatile boolean canceled = false;
+
+  ConcatUpload(TusClient client, UploadStore store, File file, TusUpload upload, int parts,
+               ChunkSizer sizer, ProgressListener listener) {
+    this.client = client;
+    this.store = store;
+    this.file = file;
+    this.upload = upload;
+    this.sizer = sizer;
+    this.listener = listener;
+    this.offsets = new long[parts];
+  }
+
+  /**
+   * Number of parts to split the file into, at most 'parallel'. Less than 2 means
+   * the file should be uploaded in one piece.
+   */
+  static int partCount(long size, int parallel) {
+    return (int) Math.max(1, Math.min(parallel, size / MIN_PART_SIZE));
+  }
+
+  /**
+   * Check if the server supports the concatenation extension.
+   */
+  static boolean isSupported(TusClient client) {
+    HttpURLConnection conn = null;
+    try {
+      conn = (HttpURLConnection) client.getUploadCreationURL().openConnection();
+      conn.setRequestMethod("OPTIONS");
+      client.prepareConnection(conn);
+      conn.connect();
+      String extensions = conn.getHeaderField("Tus-Extension");
+      return extensions != null && extensions.contains("concatenation");
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (conn != null) {
+        conn.disconnect();
+      }
+    }
+  }
+
+  void cancel() {
+    canceled = true;
+  }
+
+  /**
+   * Upload all parts and concatenate them.
+   * @return URL of the final upload or null if canceled.
+   */
+  URL upload() throws ProtocolException, IOException {
+    final int count = offsets.length;
+    final long size = upload.getSize();
+    final long partSize = size / count;
+    final URL[] urls = new URL[count];
+    final AtomicReference<Exception> error = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(count);
+
+    // Progress of an interrupted upload until the server reports the offsets.
+    synchronized (offsets) {
+      for (int i = 0; i < count; i++) {
+        offsets[i] = store.getOffset(partKey(i));
+      }
+    }
+
+    // The first part is uploaded by the calling thread, the others by threads sharing its slot.
+    Runnable first = null;
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      final long start = i * partSize;
+      final long length = i == count - 1 ? size - start : partSize;
+      Runnable task = () -> {
+        try {
+          if (error.get() == null) {
+            urls[index] = uploadPart(index, start, length);
+          }
+        } catch (Exception e) {
+          error.compareAndSet(null, e);
+        } finally {
+          done.countDown();
+        }
+      };
+      if (i == 0) {
+        first = task;
+      } else {
+        scheduler.runShared(task);
+      }
+    }
+    first.run();
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      canceled = true;
+      throw new CancellationException("Interrupted");
+    }
+
+    Exception e = error.get();
+    if (e instanceof ProtocolException) {
+      throw (ProtocolException) e;
+    } else if (e instanceof IOException) {
+      throw (IOException) e;
+    } else if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    for (URL url : urls) {
+      if (url == null) {
+        return null;
+      }
+    }
+
+    URL result = concatenate(urls);
+    for (int i = 0; i < count; i++) {
+      store.remove(partKey(i));
+    }
+    return result;
+  }
+
+  // Upload one part with retries. Returns its URL or null if canceled.
+  private URL uploadPart(final int index, final long start, final long length)
+      throws ProtocolException, IOException {
+    final URL[] result = new URL[1];
+    TusExecutor executor = new TusExecutor() {
+      @Override
+      protected void makeAttempt() throws ProtocolException, IOException {
+        TusUpload part = new TusUpload();
+        part.setSize(length);
+        part.setFingerprint(partKey(index));
+        part.setInputStream(new SliceInputStream(file, start, length));
+
+        TusUploader uploader = resumePart(part);
+        progress(index, uploader.getOffset());
+        boolean completed = sizer.uploadChunks(uploader, offset -> {
+          scheduler.awaitResumed();
+          progress(index, offset);
+          return !canceled;
+        });
+        uploader.finish();
+        progress(index, uploader.getOffset());
+        result[0] = completed ? uploader.getUploadURL() : null;
+      }
+    };
+    executor.makeAttempts();
+    return result[0];
+  }
+
+  // Continue the part from the stored URL or create it.
+  private TusUploader resumePart(TusUpload part) throws ProtocolException, IOException {
+    String key = part.getFingerprint();
+    URL url = store.get(key);
+    if (url != null) {
+      try {
+        long started = SystemClock.elapsedRealtime();
+        TusUploader uploader = client.beginOrResumeUploadFromURL(part, url);
+        sizer.onRoundTrip(SystemClock.elapsedRealtime() - started);
+        return uploader;
+      } catch (ProtocolException e) {
+        // Expired or removed on the server.
+        store.remove(key);
+      }
+    }
+    url = createPart(part.getSize());
+    store.set(key, url);
+    return client.beginOrResumeUploadFromURL(part, url);
+  }
+
+  private URL createPart(long length) throws ProtocolException, IOException {
+    HttpURLConnection conn = (HttpURLConnection) client.getUploadCreationURL().openConnection();
+    try {
+      conn.setRequestMethod("POST");
+      client.prepareConnection(conn);
+      conn.setRequestProperty("Upload-Length", Long.toString(length));
+      conn.setRequestProperty("Upload-Concat", "partial");
+      long started = SystemClock.elapsedRealtime();
+      conn.connect();
+      int code = conn.getResponseCode();
+      sizer.onRoundTrip(SystemClock.elapsedRealtime() - started);
+      return location(conn, code, "creating partial upload");
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  private URL concatenate(URL[] parts) throws ProtocolException, IOException {
+    StringBuilder concat = new StringBuilder("final;");
+    for (int i = 0; i < parts.length; i++) {
+      if (i > 0) {
+        concat.append(' ');
+      }
+      concat.append(parts[i]);
+    }
+    HttpURLConnection conn = (HttpURLConnection) client.getUploadCreationURL().openConnection();
+    try {
+      conn.setRequestMethod("POST");
+      client.prepareConnection(conn);
+      conn.setRequestProperty("Upload-Concat", concat.toString());
+      String metadata = upload.getEncodedMetadata();
+      if (metadata != null && metadata.length() > 0) {
+        conn.setRequestProperty("Upload-Metadata", metadata);
+      }
+      conn.connect();
+      return location(conn, conn.getResponseCode(), "concatenating uploads");
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  private URL location(HttpURLConnection conn, int code, String action) throws ProtocolException, IOException {
+    if (code < 200 || code >= 300) {
+      throw new ProtocolException("unexpected status code (" + code + ") while " + action, conn);
+    }
+    String location = conn.getHeaderField("Location");
+    if (location == null || location.length() == 0) {
+      throw new ProtocolException("missing upload URL in response for " + action, conn);
+    }
+    return new URL(client.getUploadCreationURL(), location);
+  }
+
+  // Record part offset and report the total.
+  private void progress(int index, long offset) {
+    long total = 0;
+    synchronized (offsets) {
+      offsets[index] = offset;
+      for (long o : offsets) {
+        total += o;
+      }
+      store.setOffset(partKey(index), offset);
+      // Shown when the paused upload is resumed.
+      store.setOffset(upload.getFingerprint(), total);
+    }
+    listener.onProgress(total, upload.getSize());
+  }
+
+  private String partKey(int index) {
+    return partPrefix(upload.getFingerprint()) + index + "of" + offsets.length;
+  }
+
+  // Common prefix of the store keys of all parts of the upload.
+  static String partPrefix(String fingerprint) {
+    return fingerprint + "-part";
+  }
+
+  // Part of a file: bytes [start, start + length).
+  private static class SliceInputStream extends InputStream {
+    private final RandomAccessFile file;
+    private final long end;
+    private long pos;
+
+    SliceInputStream(File file, long start, long length) throws IOException {
+      this.file = new RandomAccessFile(file, "r");
+      this.pos = start;
+      this.end = start + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (pos >= end) {
+        return -1;
+      }
+      file.seek(pos);
+      int n = file.read(b, off, (int) Math.min(len, end - pos));
+      if (n > 0) {
+        pos += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, end - pos));
+      pos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - pos);
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+}
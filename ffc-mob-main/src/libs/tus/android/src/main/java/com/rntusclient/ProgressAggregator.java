@@ -0,0 +1,168 @@
+package com.rntusclient;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects progress of all active uploads and sends it to JS as one batch per interval.
+ * Uploads which made no progress since the last batch are left out; nothing is sent if no upload
+ * has changed.
+ * <p>
+ * Batch format:
+ * <pre>
+ * {
+ *   uploads: [{uploadId, bytesWritten, bytesTotal, bytesPerSecond, eta}, ...]
+ * }
+ * </pre>
+ * eta is in seconds, -1 if unknown.
+ */
+class ProgressAggregator {
+  private static final long DEFAULT_INTERVAL = 500;
+  // Weight of the newest sample in the moving average of the rate.
+  private static final double ALPHA = 0.3;
+
+  interface Emitter {
+    void emit(WritableMap batch);
+  }
+
+  private static class Entry {
+    // Written by upload threads.
+    volatile long written;
+    volatile long total;
+
+    // Used on the worker thread only.
+    long sent = -1;
+    long lastWritten = -1;
+    long lastChange;
+    double rate = 0;
+  }
+
+  private final Emitter emitter;
+  private final Handler worker;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private volatile long interval = DEFAULT_INTERVAL;
+  // Accessed on the worker thread only.
+  private boolean ticking = false;
+
+  private final Runnable tick = this::tick;
+
+  ProgressAggregator(Emitter emitter) {
+    this.emitter = emitter;
+    HandlerThread thread = new HandlerThread("tus-progress");
+    thread.start();
+    worker = new Handler(thread.getLooper());
+  }
+
+  /**
+   * Set interval between batches.
+   * @param ms interval in milliseconds; values <= 0 restore the default.
+   */
+  void setInterval(long ms) {
+    interval = ms > 0 ? ms : DEFAULT_INTERVAL;
+  }
+
+  /**
+   * Record progress of an upload. Cheap, may be called from any thread as often as needed.
+   */
+  void update(String uploadId, long written, long total) {
+    Entry entry = entries.get(uploadId);
+    if (entry == null) {
+      Entry created = new Entry();
+      entry = entries.putIfAbsent(uploadId, created);
+      if (entry == null) {
+        entry = created;
+        worker.post(this::start);
+      }
+    }
+    entry.total = total;
+    entry.written = written;
+  }
+
+  /**
+   * Upload has ended: send its last progress, forget it, then run 'then' on the worker thread,
+   * so the final progress reaches JS before the completion event.
+   */
+  void finish(final String uploadId, final Runnable then) {
+    worker.post(() -> {
+      Entry entry = entries.remove(uploadId);
+      if (entry != null) {
+        WritableArray uploads = Arguments.createArray();
+        if (collect(uploadId, entry, SystemClock.elapsedRealtime(), uploads)) {
+          emit(uploads);
+        }
+      }
+      if (then != null) {
+        then.run();
+      }
+    });
+  }
+
+  private void start() {
+    if (!ticking) {
+      ticking = true;
+      worker.postDelayed(tick, interval);
+    }
+  }
+
+  private void tick() {
+    long now = SystemClock.elapsedRealtime();
+    WritableArray uploads = Arguments.createArray();
+    boolean changed = false;
+    Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<String, Entry> e = iter.next();
+      changed |= collect(e.getKey(), e.getValue(), now, uploads);
+    }
+    if (changed) {
+      emit(uploads);
+    }
+    if (entries.isEmpty()) {
+      ticking = false;
+    } else {
+      worker.postDelayed(tick, interval);
+    }
+  }
+
+  // Add upload to the batch if it has changed since the last batch.
+  private boolean collect(String uploadId, Entry entry, long now, WritableArray uploads) {
+    long written = entry.written;
+    long total = entry.total;
+    if (entry.lastWritten >= 0 && written > entry.lastWritten && now > entry.lastChange) {
+      // Chunks arrive in bursts: measure over the time since the previous change.
+      double sample = (written - entry.lastWritten) * 1000.0 / (now - entry.lastChange);
+      entry.rate = entry.rate == 0 ? sample : entry.rate + ALPHA * (sample - entry.rate);
+    }
+    if (written != entry.lastWritten) {
+      entry.lastWritten = written;
+      entry.lastChange = now;
+    }
+    if (written == entry.sent) {
+      return false;
+    }
+    entry.sent = written;
+
+    WritableMap item = Arguments.createMap();
+    item.putString("uploadId", uploadId);
+    item.putDouble("bytesWritten", written);
+    item.putDouble("bytesTotal", total);
+    item.putDouble("bytesPerSecond", entry.rate);
+    item.putDouble("eta", entry.rate > 0 ? Math.max(0, total - written) / entry.rate : -1);
+    uploads.pushMap(item);
+    return true;
+  }
+
+  private void emit(WritableArray uploads) {
+    WritableMap batch = Arguments.createMap();
+    batch.putArray("uploads", uploads);
+    emitter.emit(batch);
+  }
+}
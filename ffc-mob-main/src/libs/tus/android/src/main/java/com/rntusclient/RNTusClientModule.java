@@ -1,7 +1,7 @@
 
 package com.rntusclient;
 
-import android.content.SharedPreferences;
+import android.os.SystemClock;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactApplicationContext;
@@ -20,14 +20,11 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import io.tus.android.client.TusPreferencesURLStore;
+import co.tinode.tinodesdk.TransferScheduler;
+
 import io.tus.java.client.ProtocolException;
 import io.tus.java.client.TusClient;
 import io.tus.java.client.TusExecutor;
@@ -42,13 +39,21 @@ public class RNTusClientModule extends ReactContextBaseJavaModule {
 
   private final ReactApplicationContext reactContext;
   private Map<String, TusRunnable> executorsMap;
-  private ExecutorService pool;
+  // Uploads share the transfer scheduler with attachment downloads.
+  private final TransferScheduler scheduler = TransferScheduler.getInstance();
+  // Progress of all uploads is sent to JS in periodic batches.
+  private final ProgressAggregator progress;
+  // Upload URLs and offsets, for resuming.
+  private final UploadStore store;
 
   public RNTusClientModule(ReactApplicationContext reactContext) {
     super(reactContext);
     this.reactContext = reactContext;
     this.executorsMap = new HashMap<String, TusRunnable>();
-    pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    this.progress = new ProgressAggregator(batch ->
+      reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+        .emit(ON_PROGRESS, batch));
+    this.store = UploadStore.getInstance(reactContext);
   }
 
   @Override
@@ -80,6 +85,18 @@ public class RNTusClientModule extends ReactContextBaseJavaModule {
     if(options.hasKey("chunkSize")){
       chunkSize = options.getInt("chunkSize");
     }
+    boolean adaptiveChunkSize = true;
+    if(options.hasKey("adaptiveChunkSize")){
+      adaptiveChunkSize = options.getBoolean("adaptiveChunkSize");
+    }
+    int parallelUploads = 1;
+    if(options.hasKey("parallelUploads")){
+      parallelUploads = options.getInt("parallelUploads");
+    }
+    int priority = TransferScheduler.PRIORITY_NORMAL;
+    if(options.hasKey("priority")){
+      priority = parsePriority(options.getString("priority"));
+    }
     try {
       TusRunnable executor = new TusRunnable(
         fileUrl,
@@ -87,7 +104,9 @@ public class RNTusClientModule extends ReactContextBaseJavaModule {
         endpoint,
         metadata,
         headers,
-        chunkSize
+        new ChunkSizer(chunkSize, adaptiveChunkSize),
+        parallelUploads,
+        priority
       );
       this.executorsMap.put(uploadId, executor);
       callback.invoke(uploadId);
@@ -100,7 +119,12 @@ public class RNTusClientModule extends ReactContextBaseJavaModule {
   public void resume(String uploadId, Callback callback) {
     TusRunnable executor = this.executorsMap.get(uploadId);
     if(executor != null) {
-      pool.submit(executor);
+      // Show the stored progress while the server is asked for the current offset.
+      UploadStore.Entry entry = store.find(uploadId);
+      if(entry != null && entry.offset > 0) {
+        progress.update(uploadId, entry.offset, entry.size);
+      }
+      scheduler.submit(executor.host, executor.priority, executor);
       callback.invoke(true);
     } else {
       callback.invoke(false);
@@ -114,74 +138,137 @@ public class RNTusClientModule extends ReactContextBaseJavaModule {
       if(executor != null) {
         executor.finish();
       }
+      // Paused upload should not expire.
+      store.touch(uploadId);
       callback.invoke((Object)null);
     } catch(IOException | ProtocolException e) {
       callback.invoke(e);
     }
   }
 
+  // Interval between progress batches in milliseconds; 0 restores the default.
+  @ReactMethod
+  public void setProgressInterval(int ms) {
+    progress.setInterval(ms);
+  }
+
+  // True if the upload is running or paused, or was interrupted earlier and can be continued
+  // by calling createUpload with the same uploadId.
   @ReactMethod
   public void hasUploadId(String uploadId, Callback callback) {
     TusRunnable executor = this.executorsMap.get(uploadId);
-    if(executor != null) {
+    if(executor != null || store.find(uploadId) != null) {
       callback.invoke(true);
     } else {
       callback.invoke(false);
     }
   }
 
+  // Priority class of an upload: "avatar", "image", "background" or default.
+  private static int parsePriority(String priority) {
+    if(priority == null) {
+      return TransferScheduler.PRIORITY_NORMAL;
+    }
+    switch(priority) {
+      case "avatar":
+        return TransferScheduler.PRIORITY_AVATAR;
+      case "image":
+        return TransferScheduler.PRIORITY_VISIBLE;
+      case "background":
+        return TransferScheduler.PRIORITY_BACKGROUND;
+      default:
+        return TransferScheduler.PRIORITY_NORMAL;
+    }
+  }
+
   class TusRunnable extends TusExecutor implements Runnable {
     private TusUpload upload;
     private TusUploader uploader;
     private String uploadId;
     private TusClient client;
-    private boolean shouldFinish;
+    private File file;
+    private volatile boolean shouldFinish;
     private boolean isRunning;
-    private int chunkSize;
+    private final ChunkSizer sizer;
+    private final int parallelUploads;
+    private ConcatUpload concat;
+    private URL uploadUrl;
+    private final String host;
+    private final int priority;
     public TusRunnable(String fileUrl,
                        String uploadId,
                        String endpoint,
                        Map<String, String> metadata,
                        Map<String, String>headers,
-                       int chunkSize
+                       ChunkSizer sizer,
+                       int parallelUploads,
+                       int priority
     ) throws FileNotFoundException, MalformedURLException {
       this.uploadId = uploadId;
       client = new TusClient();
-      client.setUploadCreationURL(new URL(endpoint));
+      URL url = new URL(endpoint);
+      client.setUploadCreationURL(url);
+      host = url.getHost();
+      this.priority = priority;
 
-      SharedPreferences pref = getReactApplicationContext().getSharedPreferences("tus", 0);
-      client.enableResuming(new TusPreferencesURLStore(pref));
+      client.enableResuming(store);
       client.setHeaders(headers);
-      File file = new File(fileUrl);
+      file = new File(fileUrl);
       upload = new TusUpload((file));
       upload.setMetadata(metadata);
+      store.bind(upload.getFingerprint(), uploadId, upload.getSize());
       shouldFinish = false;
       isRunning = false;
-      this.chunkSize = chunkSize;
+      this.sizer = sizer;
+      this.parallelUploads = parallelUploads;
     }
 
     protected void makeAttempt() throws ProtocolException, IOException {
+      uploadUrl = null;
+      int parts = ConcatUpload.partCount(upload.getSize(), parallelUploads);
+      if(parts > 1 && ConcatUpload.isSupported(client)) {
+        // Large file: parts are uploaded in parallel and concatenated by the server.
+        concat = new ConcatUpload(client, store, file, upload, parts, sizer, this::emitProgress);
+        if(shouldFinish) {
+          concat.cancel();
+        }
+        uploadUrl = concat.upload();
+        return;
+      }
+
+      long started = SystemClock.elapsedRealtime();
       uploader = client.resumeOrCreateUpload(upload);
-      uploader.setChunkSize(chunkSize);
-      uploader.setRequestPayloadSize(chunkSize);
+      sizer.onRoundTrip(SystemClock.elapsedRealtime() - started);
 
-      do {
-        long totalBytes = upload.getSize();
-        long bytesUploaded = uploader.getOffset();
-        WritableMap params = Arguments.createMap();
-        params.putString("uploadId", uploadId);
-        params.putDouble("bytesWritten", bytesUploaded);
-        params.putDouble("bytesTotal", totalBytes);
-        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                .emit(ON_PROGRESS, params);
-      }while(uploader.uploadChunk() > -1 && !shouldFinish);
+      final long[] lastOffset = {uploader.getOffset()};
+      boolean completed = sizer.uploadChunks(uploader, bytesUploaded -> {
+        // Wait for the network to come back before sending the next chunk.
+        scheduler.awaitResumed();
+        scheduler.transferred(bytesUploaded - lastOffset[0]);
+        lastOffset[0] = bytesUploaded;
+        store.setOffset(upload.getFingerprint(), bytesUploaded);
+        emitProgress(bytesUploaded, upload.getSize());
+        return !shouldFinish;
+      });
 
       uploader.finish();
+      // Paused or aborted: the stored offset is kept for resuming.
+      if(completed) {
+        uploadUrl = uploader.getUploadURL();
+      }
+    }
+
+    private void emitProgress(long bytesUploaded, long totalBytes) {
+      progress.update(uploadId, bytesUploaded, totalBytes);
     }
 
     public void finish() throws ProtocolException, IOException {
       if(isRunning) {
         shouldFinish = true;
+        ConcatUpload running = concat;
+        if(running != null) {
+          running.cancel();
+        }
       }
       else {
         if(uploader!= null){
@@ -195,19 +282,28 @@ public class RNTusClientModule extends ReactContextBaseJavaModule {
       isRunning = true;
       try {
         makeAttempts();
-        String uploadUrl = uploader.getUploadURL().toString();
+        if(uploadUrl == null) {
+          // Parallel upload was aborted: parts are kept for resuming.
+          progress.finish(uploadId, null);
+          isRunning = false;
+          return;
+        }
         executorsMap.remove(this.uploadId);
-        WritableMap params = Arguments.createMap();
+        store.remove(upload.getFingerprint());
+        final WritableMap params = Arguments.createMap();
         params.putString("uploadId", uploadId);
-        params.putString("uploadUrl", uploadUrl);
-        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                .emit(ON_SUCCESS, params);
-      } catch (ProtocolException | IOException e) {
-        WritableMap params = Arguments.createMap();
+        params.putString("uploadUrl", uploadUrl.toString());
+        // Completion is sent after the final progress.
+        progress.finish(uploadId, () ->
+          reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(ON_SUCCESS, params));
+      } catch (ProtocolException | IOException | CancellationException e) {
+        final WritableMap params = Arguments.createMap();
         params.putString("uploadId", uploadId);
         params.putString("error", e.toString());
-        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                .emit(ON_ERROR, params);
+        progress.finish(uploadId, () ->
+          reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(ON_ERROR, params));
       }
       isRunning = false;
     }
@@ -0,0 +1,260 @@
+package com.rntusclient;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+
+import io.tus.java.client.TusURLStore;
+
+/**
+ * Resumption store for tus uploads: one row per upload fingerprint with the upload URL, the
+ * number of bytes known to be on the server, the size and timestamps.
+ * <p>
+ * Lookups go through the primary key or an index, so the cost does not grow with the number of
+ * past uploads. Rows which have not been touched for {@link #TTL} are deleted when the database
+ * is opened.
+ */
+class UploadStore extends SQLiteOpenHelper implements TusURLStore {
+  private static final String TAG = "UploadStore";
+
+  private static final int DATABASE_VERSION = 1;
+  private static final String DATABASE_NAME = "tus.db";
+  // SharedPreferences file used by TusPreferencesURLStore in earlier versions.
+  private static final String LEGACY_PREFS = "tus";
+
+  // Uploads idle for longer than this are forgotten.
+  static final long TTL = 7L * 24 * 3600 * 1000;
+
+  private static final String TABLE_NAME = "uploads";
+  private static final String COLUMN_FINGERPRINT = "fingerprint";
+  private static final String COLUMN_UPLOAD_ID = "upload_id";
+  private static final String COLUMN_URL = "url";
+  private static final String COLUMN_OFFSET = "upload_offset";
+  private static final String COLUMN_SIZE = "size";
+  private static final String COLUMN_CREATED = "created";
+  private static final String COLUMN_TOUCHED = "touched";
+
+  private static final String CREATE_TABLE =
+    "CREATE TABLE " + TABLE_NAME + " (" +
+      COLUMN_FINGERPRINT + " TEXT PRIMARY KEY," +
+      COLUMN_UPLOAD_ID + " TEXT," +
+      COLUMN_URL + " TEXT," +
+      COLUMN_OFFSET + " INTEGER NOT NULL DEFAULT 0," +
+      COLUMN_SIZE + " INTEGER NOT NULL DEFAULT -1," +
+      COLUMN_CREATED + " INTEGER NOT NULL," +
+      COLUMN_TOUCHED + " INTEGER NOT NULL)";
+  private static final String CREATE_INDEX_1 =
+    "CREATE INDEX uploads_upload_id ON " + TABLE_NAME + " (" + COLUMN_UPLOAD_ID + ")";
+  private static final String CREATE_INDEX_2 =
+    "CREATE INDEX uploads_touched ON " + TABLE_NAME + " (" + COLUMN_TOUCHED + ")";
+
+  /** Stored state of an upload. */
+  static class Entry {
+    final String fingerprint;
+    final String uploadId;
+    final URL url;
+    final long offset;
+    final long size;
+
+    Entry(String fingerprint, String uploadId, URL url, long offset, long size) {
+      this.fingerprint = fingerprint;
+      this.uploadId = uploadId;
+      this.url = url;
+      this.offset = offset;
+      this.size = size;
+    }
+  }
+
+  private static UploadStore instance = null;
+
+  private final Context context;
+
+  private UploadStore(Context context) {
+    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this.context = context;
+  }
+
+  static synchronized UploadStore getInstance(Context context) {
+    if (instance == null) {
+      instance = new UploadStore(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL(CREATE_TABLE);
+    db.execSQL(CREATE_INDEX_1);
+    db.execSQL(CREATE_INDEX_2);
+    importLegacy(db);
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+    onCreate(db);
+  }
+
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    // Once per process: drop uploads which were finished elsewhere or abandoned.
+    int deleted = db.delete(TABLE_NAME, COLUMN_TOUCHED + "<?",
+      new String[]{Long.toString(System.currentTimeMillis() - TTL)});
+    if (deleted > 0) {
+      Log.d(TAG, "Expired " + deleted + " uploads");
+    }
+  }
+
+  // Move URLs saved by TusPreferencesURLStore into the table and delete the old file.
+  private void importLegacy(SQLiteDatabase db) {
+    SharedPreferences pref = context.getSharedPreferences(LEGACY_PREFS, 0);
+    Map<String, ?> all = pref.getAll();
+    if (all.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, ?> e : all.entrySet()) {
+      if (!(e.getValue() instanceof String)) {
+        continue;
+      }
+      ContentValues values = new ContentValues();
+      values.put(COLUMN_FINGERPRINT, e.getKey());
+      values.put(COLUMN_URL, (String) e.getValue());
+      values.put(COLUMN_CREATED, now);
+      values.put(COLUMN_TOUCHED, now);
+      db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+    pref.edit().clear().apply();
+  }
+
+  @Override
+  public URL get(String fingerprint) {
+    Cursor c = getReadableDatabase().query(TABLE_NAME, new String[]{COLUMN_URL},
+      COLUMN_FINGERPRINT + "=?", new String[]{fingerprint}, null, null, null);
+    try {
+      return c.moveToFirst() ? parseUrl(c.getString(0)) : null;
+    } finally {
+      c.close();
+    }
+  }
+
+  @Override
+  public void set(String fingerprint, URL url) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_URL, url.toString());
+    // A new URL means the server starts from scratch.
+    values.put(COLUMN_OFFSET, 0);
+    upsert(fingerprint, values);
+  }
+
+  @Override
+  public void remove(String fingerprint) {
+    getWritableDatabase().delete(TABLE_NAME, COLUMN_FINGERPRINT + "=?", new String[]{fingerprint});
+  }
+
+  /**
+   * Associate upload with the fingerprint of its file. The URL and offset of an earlier attempt
+   * on the same file are kept.
+   */
+  void bind(String fingerprint, String uploadId, long size) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_UPLOAD_ID, uploadId);
+    values.put(COLUMN_SIZE, size);
+    upsert(fingerprint, values);
+  }
+
+  /**
+   * Record number of bytes accepted by the server.
+   */
+  void setOffset(String fingerprint, long offset) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_OFFSET, offset);
+    values.put(COLUMN_TOUCHED, System.currentTimeMillis());
+    getWritableDatabase().update(TABLE_NAME, values, COLUMN_FINGERPRINT + "=?", new String[]{fingerprint});
+  }
+
+  /**
+   * Number of bytes accepted by the server as last recorded, 0 if unknown.
+   */
+  long getOffset(String fingerprint) {
+    Cursor c = getReadableDatabase().query(TABLE_NAME, new String[]{COLUMN_OFFSET},
+      COLUMN_FINGERPRINT + "=?", new String[]{fingerprint}, null, null, null);
+    try {
+      return c.moveToFirst() ? c.getLong(0) : 0;
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * Keep paused upload from expiring, together with the parts of a parallel upload.
+   */
+  void touch(String uploadId) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_TOUCHED, System.currentTimeMillis());
+    SQLiteDatabase db = getWritableDatabase();
+    db.update(TABLE_NAME, values, COLUMN_UPLOAD_ID + "=?", new String[]{uploadId});
+    Entry entry = find(uploadId);
+    if (entry != null) {
+      String prefix = ConcatUpload.partPrefix(entry.fingerprint);
+      db.update(TABLE_NAME, values, "substr(" + COLUMN_FINGERPRINT + ",1," + prefix.length() + ")=?",
+        new String[]{prefix});
+    }
+  }
+
+  /**
+   * Find upload by ID.
+   * @return stored state or null if the upload is unknown, finished or expired.
+   */
+  Entry find(String uploadId) {
+    Cursor c = getReadableDatabase().query(TABLE_NAME,
+      new String[]{COLUMN_FINGERPRINT, COLUMN_URL, COLUMN_OFFSET, COLUMN_SIZE},
+      COLUMN_UPLOAD_ID + "=?", new String[]{uploadId}, null, null, COLUMN_TOUCHED + " DESC", "1");
+    try {
+      if (!c.moveToFirst()) {
+        return null;
+      }
+      return new Entry(c.getString(0), uploadId, c.isNull(1) ? null : parseUrl(c.getString(1)),
+        c.getLong(2), c.getLong(3));
+    } finally {
+      c.close();
+    }
+  }
+
+  // Update row or insert it if missing. The row is marked as touched.
+  private void upsert(String fingerprint, ContentValues values) {
+    long now = System.currentTimeMillis();
+    values.put(COLUMN_TOUCHED, now);
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      if (db.update(TABLE_NAME, values, COLUMN_FINGERPRINT + "=?", new String[]{fingerprint}) == 0) {
+        values.put(COLUMN_FINGERPRINT, fingerprint);
+        values.put(COLUMN_CREATED, now);
+        db.insert(TABLE_NAME, null, values);
+      }
+      db.setTransactionSuccessful();
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Failed to save upload " + fingerprint, e);
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static URL parseUrl(String url) {
+    try {
+      return new URL(url);
+    } catch (MalformedURLException e) {
+      return null;
+    }
+  }
+}
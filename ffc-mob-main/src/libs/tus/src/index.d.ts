@@ -4,9 +4,26 @@ interface Options {
     endpoint: string;
 
     /**
-     * Value for chunk size
+     * Chunk size in bytes. Default: 5 MiB.
      */
-    chunkSize: string;
+    chunkSize?: number;
+
+    /**
+     * Grow or shrink the chunk size to match the measured throughput and round trip time.
+     * chunkSize is the initial value. Default: true.
+     */
+    adaptiveChunkSize?: boolean;
+
+    /**
+     * Number of partial uploads sent in parallel for large files, if the server supports
+     * the concatenation extension. Default: 1, no parallel uploads.
+     */
+    parallelUploads?: number;
+
+    /**
+     * Priority of the upload: 'avatar', 'image', 'background' or default.
+     */
+    priority?: string;
 
     /** An object with custom header values used in all requests. */
     headers?: object;
@@ -27,8 +44,10 @@ interface Options {
      * A function that will be called each time progress information is available.
      * @param bytesUploaded number of bytes uploaded
      * @param bytesTotal number of total bytes
+     * @param stats upload rate in bytes per second and estimated seconds left, -1 if unknown
      */
-    onProgress?(bytesUploaded: number, bytesTotal: number): void;
+    onProgress?(bytesUploaded: number, bytesTotal: number,
+                stats: { bytesPerSecond: number, eta: number }): void;
 
     /**
      * A function called when the upload finished successfully.
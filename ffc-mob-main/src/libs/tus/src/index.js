@@ -86,6 +86,12 @@ class Upload {
     return new Promise((resolve, reject) => {
       const { metadata, headers, endpoint, uploadId } = this.options;
       const settings = { metadata, headers, endpoint, uploadId };
+      // Optional settings are passed only when set: native side checks for presence.
+      ['chunkSize', 'adaptiveChunkSize', 'parallelUploads', 'priority'].forEach((key) => {
+        if (this.options[key] !== undefined && this.options[key] !== null) {
+          settings[key] = this.options[key];
+        }
+      });
       console.log('CC:', uploadId);
       RNTusClient.createUpload(
         this.file,
@@ -124,8 +130,15 @@ class Upload {
     );
     this.subscriptions.push(
       tusEventEmitter.addListener('onProgress', (payload) => {
-        if (payload.uploadId === this.uploadId) {
-          this.onProgress(payload.bytesWritten, payload.bytesTotal);
+        // Android sends progress of all active uploads in one batch, iOS one upload per event.
+        const progress = payload.uploads
+          ? payload.uploads.find((p) => p.uploadId === this.uploadId)
+          : payload.uploadId === this.uploadId && payload;
+        if (progress) {
+          this.onProgress(progress.bytesWritten, progress.bytesTotal, {
+            bytesPerSecond: progress.bytesPerSecond,
+            eta: progress.eta,
+          });
         }
       })
     );
@@ -139,9 +152,9 @@ class Upload {
     this.options.onSuccess && this.options.onSuccess();
   }
 
-  onProgress(bytesUploaded, bytesTotal) {
+  onProgress(bytesUploaded, bytesTotal, stats) {
     this.options.onProgress &&
-      this.options.onProgress(bytesUploaded, bytesTotal);
+      this.options.onProgress(bytesUploaded, bytesTotal, stats);
   }
 
   onError(error) {
@@ -194,6 +207,14 @@ const hasClient = (uploadId) => {
   }
 };
 
+// Interval between progress updates of all uploads, milliseconds.
+// Not supported on iOS, where progress is sent as it happens.
+const setProgressInterval = (ms) => {
+  if (RNTusClient.setProgressInterval) {
+    RNTusClient.setProgressInterval(ms);
+  }
+};
+
 const TusClient = {
   addClient,
   removeClient,
@@ -202,6 +223,7 @@ const TusClient = {
   startUpload,
   pauseUpload,
   hasClient,
+  setProgressInterval,
 };
 
 export default TusClient;
\ No newline at end of file
@@ -19,11 +19,14 @@ import { useTheme } from '@react-navigation/native';
 import { HEADER_HEIGHT, CHAT_COLORS } from 'utils/constants';
 import { fonts, weights } from 'themes/topography';
 import helper from 'utils/helper';
+import { applyMessageDiff, loadOlderMessages, loadNewerMessages } from 'libs/tinode';
 
 const { RNTinodeClient } = NativeModules;
 const tinodeEventEmitter = new NativeEventEmitter();
 
 export const AVATAR_BOX_SIZE = 40;
+// Distance from the newest message, in pixels, at which the window pages back to newer messages.
+const NEWER_THRESHOLD = 200;
 
 const Messages = ({ route }) => {
   const topicName = route.params.topic;
@@ -114,10 +117,9 @@ const Messages = ({ route }) => {
           .then(() => {            
             RNTinodeClient.readMessages();
             onMessage = tinodeEventEmitter.addListener(
-              'onMessageChange',
-              (list) => {
-                console.log(list[list.length - 1])
-                setMessages(list);
+              'onMessageDiff',
+              (diff) => {
+                setMessages((list) => applyMessageDiff(list, diff));
               }
             );
             onError = tinodeEventEmitter.addListener(
@@ -171,6 +173,13 @@ const Messages = ({ route }) => {
     };
   }, []);
 
+  // The list is inverted: the newest message is at offset 0.
+  const onScroll = ({ nativeEvent }) => {
+    if (nativeEvent.contentOffset.y < NEWER_THRESHOLD) {
+      loadNewerMessages();
+    }
+  };
+
   const sendTyping = () => {
     RNTinodeClient.sendTyping();
   }
@@ -210,6 +219,10 @@ const Messages = ({ route }) => {
           return item.seqId;
         }}
         data={messages}
+        onEndReached={loadOlderMessages}
+        onEndReachedThreshold={0.5}
+        onScroll={onScroll}
+        scrollEventThrottle={250}
       />
       <TextInputBar
         enabled={inputEnable}
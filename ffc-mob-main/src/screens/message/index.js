@@ -1,4 +1,4 @@
-import React, { useMemo, useState, useEffect } from 'react';
+import React, { useMemo, useState, useEffect, useRef } from 'react';
 import { View, Text, StyleSheet } from 'react-native';
 import TabHeader from 'components/header/tab';
 import { FlashList } from '@shopify/flash-list';
@@ -74,6 +74,15 @@ const MessageScreen = ({ navigation }) => {
 		// eslint-disable-next-line react-hooks/exhaustive-deps
 	}, []);
 
+	// Conversations are listed from their headers; full rows are loaded once they are on screen.
+	const onViewableItemsChanged = useRef(({ viewableItems }) => {
+		Tinode.hydrateTopics(
+			viewableItems
+				.filter((v) => v.item && !v.item.loaded)
+				.map((v) => v.item.topic)
+		);
+	}).current;
+
 	const startChat = (topic) => {
 		navigation.navigate('ChatScreen', { topic });
 	};
@@ -116,6 +125,7 @@ const MessageScreen = ({ navigation }) => {
 				keyExtractor={(item) => item.topic}
 				ListEmptyComponent={renderEmptyComponent}
 				estimatedItemSize={LIST_CONTACT_HEIGHT}
+				onViewableItemsChanged={onViewableItemsChanged}
 			/>
 		</View>
 	);